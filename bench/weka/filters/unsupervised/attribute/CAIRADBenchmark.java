@@ -0,0 +1,191 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    CAIRADBenchmark.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.core.Instances;
+import weka.filters.Filter;
+
+/**
+ * JMH benchmarks of each phase of CAIRAD: working out the generalisation and
+ * encoding the dataset, building the coappearance matrix, scoring every
+ * record with NVI, and the whole filter end to end. Each is run over every
+ * combination of rows, attributes, domain size and noise rate, on data from
+ * NoisyDataGenerator. Run with
+ * <p>
+ * ant bench
+ * <p>
+ * which writes the results as JSON (see build.xml) so that two revisions can
+ * be compared. JMH's generated code lives in another package, so the
+ * benchmarks return the package-private results as Object.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class CAIRADBenchmark {
+
+    /**
+     * Number of records
+     */
+    @Param({"10000", "100000"})
+    public int rows;
+
+    /**
+     * Number of attributes
+     */
+    @Param({"10", "40"})
+    public int attributes;
+
+    /**
+     * Number of values of each nominal attribute
+     */
+    @Param({"8", "64"})
+    public int domainSize;
+
+    /**
+     * Probability each value is made noisy: a nominal value is replaced with
+     * a different one, and a numeric value drawn from a different component
+     */
+    @Param({"0.01", "0.1"})
+    public double noiseRate;
+
+    /**
+     * The raw dataset
+     */
+    private Instances m_data;
+
+    /**
+     * Its generalisation
+     */
+    private Generalisation m_generalisation;
+
+    /**
+     * The dataset encoded with the generalisation
+     */
+    private EncodedDataset m_encoded;
+
+    /**
+     * A filter holding the CAM of the encoded dataset, ready to score
+     */
+    private CAIRAD m_model;
+
+    /**
+     * Generate the data and build everything the later phases start from.
+     *
+     * @throws Exception if the data can't be generalised
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        //a quarter of the attributes are numeric, so the generalisation
+        //has something to bin
+        NoisyDataGenerator generator = new NoisyDataGenerator();
+        generator.setNumRecords(rows);
+        generator.setNumNominal(attributes - attributes / 4);
+        generator.setNumNumeric(attributes / 4);
+        generator.setCardinality(domainSize);
+        generator.setNoiseRate(noiseRate);
+        m_data = generator.generateInstances(null);
+        DatasetStatistics statistics = DatasetStatistics.collect(m_data);
+        m_generalisation = new Generalisation(m_data, statistics);
+        m_encoded = new EncodedDataset(m_generalisation, m_data);
+        m_model = new CAIRAD();
+        m_model.setModel(statistics, m_generalisation,
+                new CAIRAD.CoappearanceMatrix(m_encoded));
+
+    }
+
+    /**
+     * Gather the statistics, work out the bins and encode the dataset.
+     *
+     * @return the encoded dataset
+     * @throws Exception if the data can't be generalised
+     */
+    @Benchmark
+    public Object generalise() throws Exception {
+        Generalisation generalisation = new Generalisation(m_data, DatasetStatistics.collect(m_data));
+        return new EncodedDataset(generalisation, m_data);
+    }
+
+    /**
+     * Build the coappearance matrix of the encoded dataset.
+     *
+     * @return the CAM
+     */
+    @Benchmark
+    public Object constructCAM() {
+        CAIRAD.CoappearanceMatrix cam = new CAIRAD.CoappearanceMatrix(m_encoded.domainSizes());
+        cam.constructCAM(m_encoded);
+        return cam;
+    }
+
+    /**
+     * Score every record of the encoded dataset with NVI.
+     *
+     * @return the noisy values
+     */
+    @Benchmark
+    public Object nvi() {
+
+        NoisyAttributeMatrix noisy = new NoisyAttributeMatrix(m_encoded.numRows(),
+                m_encoded.numColumns());
+        int[] theRecord = new int[m_encoded.numColumns()];
+        int[] totalScores = new int[m_encoded.numColumns()];
+        for (int i = 0; i < m_encoded.numRows(); i++) {
+            m_encoded.row(i, theRecord);
+            m_model.NVI(theRecord, noisy, i, totalScores);
+        }
+        return noisy;
+
+    }
+
+    /**
+     * Filter the dataset with a default CAIRAD.
+     *
+     * @return the filtered dataset
+     * @throws Exception if the data can't be filtered
+     */
+    @Benchmark
+    public Instances endToEnd() throws Exception {
+        CAIRAD filter = new CAIRAD();
+        filter.setInputFormat(m_data);
+        return Filter.useFilter(m_data, filter);
+    }
+
+}
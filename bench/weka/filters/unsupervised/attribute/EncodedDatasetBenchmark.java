@@ -0,0 +1,201 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    EncodedDatasetBenchmark.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+
+/**
+ * Compares the cost of reading every cell of a generalised dataset through
+ * Instance.value() with reading the same cells from an EncodedDataset. Run
+ * with the other JMH benchmarks by
+ * <p>
+ * ant bench
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class EncodedDatasetBenchmark {
+
+    /**
+     * Number of records
+     */
+    @Param({"200000"})
+    public int rows;
+
+    /**
+     * Number of attributes
+     */
+    @Param({"40"})
+    public int attributes;
+
+    /**
+     * The generalised dataset
+     */
+    private Instances m_data;
+
+    /**
+     * The same dataset encoded
+     */
+    private EncodedDataset m_encoded;
+
+    /**
+     * Build a nominal dataset of random values. Every third instance is a
+     * SparseInstance so that the Instance path sees more than one class, as
+     * it does on real data.
+     *
+     * @param numRows - number of instances
+     * @param numAttributes - number of attributes
+     * @param domainSize - number of values of each attribute
+     * @param rand - random number generator
+     * @return the dataset
+     */
+    static Instances randomDataset(int numRows, int numAttributes, int domainSize, Random rand) {
+
+        ArrayList<Attribute> atts = new ArrayList<Attribute>(numAttributes);
+        for (int j = 0; j < numAttributes; j++) {
+            ArrayList<String> values = new ArrayList<String>(domainSize);
+            for (int v = 0; v < domainSize; v++) {
+                values.add("v" + v);
+            }
+            atts.add(new Attribute("att" + j, values));
+        }
+
+        Instances data = new Instances("benchmark", atts, numRows);
+        for (int i = 0; i < numRows; i++) {
+            double[] values = new double[numAttributes];
+            for (int j = 0; j < numAttributes; j++) {
+                values[j] = rand.nextInt(domainSize);
+            }
+            data.add(i % 3 == 0 ? new SparseInstance(1.0, values) : new DenseInstance(1.0, values));
+        }
+        return data;
+
+    }
+
+    /**
+     * Sum every cell through the Instance interface, the way constructCAM and
+     * NVI used to read the generalised dataset.
+     *
+     * @param data - the dataset
+     * @return the sum of the codes
+     */
+    static long sumInstances(Instances data) {
+
+        long sum = 0;
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance instance = data.instance(i);
+            for (int j = 0; j < data.numAttributes(); j++) {
+                sum += (int) instance.value(j);
+            }
+        }
+        return sum;
+
+    }
+
+    /**
+     * Sum every cell of the encoded store a block of rows at a time, the way
+     * constructCAM reads it.
+     *
+     * @param data - the encoded dataset
+     * @return the sum of the codes
+     */
+    static long sumEncoded(EncodedDataset data) {
+
+        int blockSize = 1024;
+        int[] block = new int[blockSize];
+        long sum = 0;
+        for (int from = 0; from < data.numRows(); from += blockSize) {
+            int to = Math.min(from + blockSize, data.numRows());
+            for (int j = 0; j < data.numColumns(); j++) {
+                data.column(j, from, to, block);
+                for (int r = 0; r < to - from; r++) {
+                    sum += block[r];
+                }
+            }
+        }
+        return sum;
+
+    }
+
+    /**
+     * Generate the dataset and encode it, checking both access paths read
+     * the same codes.
+     *
+     * @throws Exception if the data can't be generalised
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        m_data = randomDataset(rows, attributes, 12, new Random(1));
+        Generalisation generalisation = new Generalisation(m_data, DatasetStatistics.collect(m_data));
+        m_encoded = new EncodedDataset(generalisation, m_data);
+        if (sumInstances(m_data) != sumEncoded(m_encoded)) {
+            throw new IllegalStateException("Access paths disagree");
+        }
+
+    }
+
+    /**
+     * Read every cell through Instance.value().
+     *
+     * @return the sum of the codes
+     */
+    @Benchmark
+    public long instanceValue() {
+        return sumInstances(m_data);
+    }
+
+    /**
+     * Read every cell from the EncodedDataset.
+     *
+     * @return the sum of the codes
+     */
+    @Benchmark
+    public long encodedColumns() {
+        return sumEncoded(m_encoded);
+    }
+
+}
@@ -0,0 +1,268 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    AdaptiveCountStore.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+/**
+ * Counts held per attribute pair in counters only as wide as the pair's
+ * largest count needs. Every block starts out as unsigned bytes, and the
+ * first count that won't fit promotes the whole block to unsigned shorts,
+ * then unsigned ints, then longs. Most cells of a typical CAM count far fewer
+ * than 65536 records, so blocks mostly stay one or two bytes wide, and the
+ * pairs of very large inputs can still count past 2^32 records without
+ * overflowing.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+final class AdaptiveCountStore extends CountStore {
+
+    /**
+     * For serialization
+     */
+    static final long serialVersionUID = 3089521476335094716L;
+
+    /**
+     * Width of a block of unsigned bytes
+     */
+    static final int BYTE = 1;
+
+    /**
+     * Width of a block of unsigned shorts
+     */
+    static final int SHORT = 2;
+
+    /**
+     * Width of a block of unsigned ints
+     */
+    static final int INT = 4;
+
+    /**
+     * Width of a block of longs
+     */
+    static final int LONG = 8;
+
+    /**
+     * Each pair's counters: a byte[], short[], int[] or long[]
+     */
+    private final Object[] m_blocks;
+
+    /**
+     * Number of bytes in each of a pair's counters
+     */
+    private final int[] m_widths;
+
+    /**
+     * Allocate zeroed byte counters for each pair.
+     *
+     * @param pairSizes - number of cells in each attribute pair's block
+     */
+    AdaptiveCountStore(long[] pairSizes) {
+
+        super(pairSizes);
+
+        m_blocks = new Object[pairSizes.length];
+        m_widths = new int[pairSizes.length];
+        for (int pair = 0; pair < pairSizes.length; pair++) {
+            if (pairSizes[pair] > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("Attribute pair of "
+                        + pairSizes[pair] + " cells is too large for adaptive "
+                        + "storage");
+            }
+            m_blocks[pair] = new byte[(int) pairSizes[pair]];
+            m_widths[pair] = BYTE;
+        }
+
+    }
+
+    /**
+     * Return the number of bytes in each of a pair's counters
+     *
+     * @param pair - index of the pair
+     * @return BYTE, SHORT, INT or LONG
+     */
+    int width(int pair) {
+        return m_widths[pair];
+    }
+
+    /**
+     * Return the narrowest width holding a count.
+     *
+     * @param count - the count
+     * @return BYTE, SHORT, INT or LONG
+     */
+    static int widthOf(long count) {
+
+        if (count < 0 || count > 0xFFFFFFFFL) {
+            return LONG;
+        } else if (count > 0xFFFF) {
+            return INT;
+        } else if (count > 0xFF) {
+            return SHORT;
+        }
+        return BYTE;
+
+    }
+
+    /**
+     * Copy a pair's counters into wider ones.
+     *
+     * @param pair - index of the pair
+     * @param width - the new width
+     */
+    private void promote(int pair, int width) {
+
+        int size = (int) m_pairSizes[pair];
+        Object block;
+        switch (width) {
+            case SHORT:
+                short[] shorts = new short[size];
+                for (int i = 0; i < size; i++) {
+                    shorts[i] = (short) get(pair, i);
+                }
+                block = shorts;
+                break;
+            case INT:
+                int[] ints = new int[size];
+                for (int i = 0; i < size; i++) {
+                    ints[i] = (int) get(pair, i);
+                }
+                block = ints;
+                break;
+            default:
+                long[] longs = new long[size];
+                for (int i = 0; i < size; i++) {
+                    longs[i] = get(pair, i);
+                }
+                block = longs;
+                break;
+        }
+        m_blocks[pair] = block;
+        m_widths[pair] = width;
+
+    }
+
+    @Override
+    long get(int pair, long index) {
+
+        switch (m_widths[pair]) {
+            case BYTE:
+                return ((byte[]) m_blocks[pair])[(int) index] & 0xFFL;
+            case SHORT:
+                return ((short[]) m_blocks[pair])[(int) index] & 0xFFFFL;
+            case INT:
+                return ((int[]) m_blocks[pair])[(int) index] & 0xFFFFFFFFL;
+            default:
+                return ((long[]) m_blocks[pair])[(int) index];
+        }
+
+    }
+
+    @Override
+    void add(int pair, long index, long delta) {
+
+        long count = get(pair, index) + delta;
+        int width = widthOf(count);
+        if (width > m_widths[pair]) {
+            promote(pair, width);
+        }
+
+        switch (m_widths[pair]) {
+            case BYTE:
+                ((byte[]) m_blocks[pair])[(int) index] = (byte) count;
+                break;
+            case SHORT:
+                ((short[]) m_blocks[pair])[(int) index] = (short) count;
+                break;
+            case INT:
+                ((int[]) m_blocks[pair])[(int) index] = (int) count;
+                break;
+            default:
+                ((long[]) m_blocks[pair])[(int) index] = count;
+                break;
+        }
+
+    }
+
+    @Override
+    void countBlock(int pair, int[] xs, int[] ys, int stride, int count) {
+
+        //count into the block at its current width until a cell is full,
+        //then let add() promote it and carry on at the new width
+        int r = 0;
+        while (r < count) {
+            switch (m_widths[pair]) {
+                case BYTE:
+                    byte[] bytes = (byte[]) m_blocks[pair];
+                    for (; r < count; r++) {
+                        int i = xs[r] * stride + ys[r];
+                        if (bytes[i] == (byte) 0xFF) {
+                            break;
+                        }
+                        bytes[i]++;
+                    }
+                    break;
+                case SHORT:
+                    short[] shorts = (short[]) m_blocks[pair];
+                    for (; r < count; r++) {
+                        int i = xs[r] * stride + ys[r];
+                        if (shorts[i] == (short) 0xFFFF) {
+                            break;
+                        }
+                        shorts[i]++;
+                    }
+                    break;
+                case INT:
+                    int[] ints = (int[]) m_blocks[pair];
+                    for (; r < count; r++) {
+                        int i = xs[r] * stride + ys[r];
+                        if (ints[i] == 0xFFFFFFFF) {
+                            break;
+                        }
+                        ints[i]++;
+                    }
+                    break;
+                default:
+                    long[] longs = (long[]) m_blocks[pair];
+                    for (; r < count; r++) {
+                        longs[xs[r] * stride + ys[r]]++;
+                    }
+                    break;
+            }
+            if (r < count) {
+                add(pair, (long) xs[r] * stride + ys[r], 1);
+                r++;
+            }
+        }
+
+    }
+
+    @Override
+    long heapBytes() {
+
+        long bytes = 0;
+        for (int pair = 0; pair < m_widths.length; pair++) {
+            bytes += m_pairSizes[pair] * m_widths[pair];
+        }
+        return bytes;
+
+    }
+
+}
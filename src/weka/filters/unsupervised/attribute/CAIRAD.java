@@ -20,16 +20,30 @@
  */
 package weka.filters.unsupervised.attribute;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import javax.management.JMException;
 import weka.core.Attribute;
 import weka.core.Capabilities;
+import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.Option;
+import weka.core.SelectedTag;
+import weka.core.SparseInstance;
+import weka.core.Tag;
 import weka.core.TechnicalInformation;
 import weka.core.Utils;
 import weka.core.converters.ConverterUtils.DataSource;
-import weka.filters.Filter;
 import weka.filters.SimpleBatchFilter;
 import weka.filters.UnsupervisedFilter;
 
@@ -64,6 +78,62 @@ import weka.filters.UnsupervisedFilter;
  * <pre> -M
  * makeNoisyMissing - Make detected noise into missing values. </pre>
  *
+ * <pre> -verdict-tables
+ * useVerdictTables - Precompute the score of every value combination of
+ * every attribute pair before scoring the records. </pre>
+ *
+ * <pre> -num-threads
+ * numThreads - Number of threads used to build the coappearance matrix
+ * and score the records (0 = one per available processor). </pre>
+ *
+ * <pre> -partition
+ * partitioning - How a parallel coappearance matrix build is split between
+ * threads: rows or (attribute) pairs. </pre>
+ *
+ * <pre> -storage
+ * storage - Where the coappearance counts are held: on the Java heap,
+ * off-heap in direct buffers, on the heap with hash maps for sparse
+ * attribute pairs (hybrid), approximately in Count-Min sketches, on the
+ * heap in counters that widen as counts grow (adaptive), or wherever the
+ * memory plan finds room (auto). </pre>
+ *
+ * <pre> -sketch-width
+ * sketchWidth - Number of counters in each row of an attribute pair's
+ * Count-Min sketch. </pre>
+ *
+ * <pre> -sketch-depth
+ * sketchDepth - Number of rows (hash functions) in each attribute pair's
+ * Count-Min sketch. </pre>
+ *
+ * <pre> -memory-budget
+ * memoryBudget - Megabytes the coappearance matrix and working set may
+ * use; processing stops before anything is allocated if they won't fit
+ * (0 = no budget). </pre>
+ *
+ * <pre> -score-later-batches
+ * scoreLaterBatches - Score instances after the first batch against the
+ * model built from the first batch, instead of passing them through. </pre>
+ *
+ * <pre> -window
+ * windowSize - Score instances after the first batch against a coappearance
+ * matrix over this many of the most recent records (0 = no window). </pre>
+ *
+ * <pre> -half-life
+ * halfLife - Score instances after the first batch against coappearance
+ * counts that halve in weight every this many records (0 = no decay). </pre>
+ *
+ * <pre> -save-model
+ * saveModelFile - File the trained model is saved to. </pre>
+ *
+ * <pre> -load-model
+ * loadModelFile - File a trained model is loaded from; the data is then
+ * scored against it instead of training a new one. </pre>
+ *
+ * <pre> -V
+ * printMetrics - Print the time, CPU time and allocation of each phase, the
+ * size of the coappearance matrix and the noise found after each batch.
+ * </pre>
+ *
  * <!-- options-end -->
  *
  * @author Michael Furner
@@ -76,6 +146,70 @@ public class CAIRAD extends SimpleBatchFilter implements UnsupervisedFilter {
      */
     static final long serialVersionUID = -132412310938L;
 
+    /**
+     * Parallel CAM build splits the rows between threads
+     */
+    public static final int PARTITION_ROWS = 0;
+
+    /**
+     * Parallel CAM build splits the attribute pairs between threads
+     */
+    public static final int PARTITION_PAIRS = 1;
+
+    /**
+     * Ways of splitting the parallel CAM build between threads
+     */
+    public static final Tag[] TAGS_PARTITIONING = {
+        new Tag(PARTITION_ROWS, "rows", "Rows (one partial CAM per thread)"),
+        new Tag(PARTITION_PAIRS, "pairs", "Attribute pairs (one CAM in total)")
+    };
+
+    /**
+     * CAM counts are held in one array on the Java heap
+     */
+    public static final int STORAGE_HEAP = 0;
+
+    /**
+     * CAM counts are held in direct buffers outside the Java heap
+     */
+    public static final int STORAGE_OFF_HEAP = 1;
+
+    /**
+     * CAM counts are held per attribute pair, in a dense array or, for pairs
+     * with many more cells than records, a hash map
+     */
+    public static final int STORAGE_HYBRID = 2;
+
+    /**
+     * CAM counts are estimated by a Count-Min sketch per attribute pair, in a
+     * fixed amount of memory
+     */
+    public static final int STORAGE_SKETCH = 3;
+
+    /**
+     * CAM counts are held per attribute pair in byte counters, widened to
+     * short, int and then long as the pair's counts need
+     */
+    public static final int STORAGE_ADAPTIVE = 4;
+
+    /**
+     * CAM counts are held in the first storage the memory plan finds room
+     * for
+     */
+    public static final int STORAGE_AUTO = 5;
+
+    /**
+     * Places the CAM counts can be held
+     */
+    public static final Tag[] TAGS_STORAGE = {
+        new Tag(STORAGE_HEAP, "heap", "Java heap"),
+        new Tag(STORAGE_OFF_HEAP, "off-heap", "Direct buffers outside the Java heap"),
+        new Tag(STORAGE_HYBRID, "hybrid", "Java heap, hash maps for sparse attribute pairs"),
+        new Tag(STORAGE_SKETCH, "sketch", "Java heap, approximate Count-Min sketches"),
+        new Tag(STORAGE_ADAPTIVE, "adaptive", "Java heap, counters as wide as each attribute pair needs"),
+        new Tag(STORAGE_AUTO, "auto", "Chosen by the memory plan")
+    };
+
     /**
      * Coappearance Threshold, tau in original paper.
      */
@@ -91,20 +225,128 @@ public class CAIRAD extends SimpleBatchFilter implements UnsupervisedFilter {
      */
     private boolean m_makeNoisyMissing = true;
 
+    /**
+     * Number of threads used to build the coappearance matrix and score the
+     * records, 0 to use one per available processor
+     */
+    private int m_numThreads = 1;
+
+    /**
+     * How a parallel CAM build is split between threads
+     */
+    private int m_partitioning = PARTITION_ROWS;
+
+    /**
+     * Where the CAM counts are held
+     */
+    private int m_storage = STORAGE_HEAP;
+
+    /**
+     * Number of counters in each row of a Count-Min sketch
+     */
+    private int m_sketchWidth = 2048;
+
+    /**
+     * Number of rows in each Count-Min sketch
+     */
+    private int m_sketchDepth = 4;
+
+    /**
+     * Megabytes of heap and native memory the CAM and working set may use,
+     * 0 for no budget
+     */
+    private int m_memoryBudget = 0;
+
+    /**
+     * Memory needed for the last dataset processed, null if nothing has
+     * been processed
+     */
+    private MemoryPlan m_memoryPlan;
+
+    /**
+     * Score instances after the first batch against the first batch's model
+     */
+    private boolean m_scoreLaterBatches = false;
+
+    /**
+     * Number of most recent records the CAM is kept over after the first
+     * batch, 0 for no window
+     */
+    private int m_windowSize = 0;
+
+    /**
+     * The most recent records, null if there is no window
+     */
+    private RecordWindow m_window;
+
+    /**
+     * Number of records after which a count has halved in weight, 0 for no
+     * decay
+     */
+    private double m_halfLife = 0;
+
+    /**
+     * Decayed counts that later instances are scored against, null if there
+     * is no decay
+     */
+    private DecayedCoappearanceMatrix m_decayedCAM;
+
+    /**
+     * File the model is saved to after training, a directory for none
+     */
+    private File m_saveModelFile = new File(System.getProperty("user.dir"));
+
+    /**
+     * File a model is loaded from instead of training, a directory for none
+     */
+    private File m_loadModelFile = new File(System.getProperty("user.dir"));
+
+    /**
+     * Whether to print the metrics to standard error after each batch
+     */
+    private boolean m_printMetrics = false;
+
+    /**
+     * Time, CPU time and allocation of each phase of the last call to
+     * process, and what it built and found
+     */
+    private final CAIRADMetrics m_metrics = new CAIRADMetrics();
+
     /**
      * Used to store the size of each attribute domain after discretization
      */
     private int[] m_attributeDomainSizes;
 
+    /**
+     * Statistics for each attribute of the last dataset processed
+     */
+    private DatasetStatistics m_statistics;
+
+    /**
+     * Bins and dictionaries used to generalise the last dataset processed
+     */
+    private Generalisation m_generalisation;
+
     /**
      * Coappearance Matrix used in noise detection
      */
     private CoappearanceMatrix m_CAM;
 
+    /**
+     * Whether to precompute the score of every value combination of every
+     * attribute pair before scoring the records
+     */
+    private boolean m_useVerdictTables = false;
+
+    /**
+     * Precomputed pair scores, null if they are worked out per record
+     */
+    private VerdictTable m_verdicts;
+
     /**
      * After NVI process, reflects which attributes in the dataset are noisy
      */
-    private int[][] m_noisyAttributeMatrix;
+    private NoisyAttributeMatrix m_noisyAttributeMatrix;
 
     /**
      * Return a description suitable for displaying in the
@@ -139,6 +381,81 @@ public class CAIRAD extends SimpleBatchFilter implements UnsupervisedFilter {
                 + "\n"
                 + "-M\n"
                 + "makeNoisyMissing - Make detected noise into missing values."
+                + "\n"
+                + "\n"
+                + "-verdict-tables\n"
+                + "useVerdictTables - Precompute the score of every value "
+                + "combination of every attribute pair before scoring the "
+                + "records.\n"
+                + "\n"
+                + "-num-threads\n"
+                + "numThreads - Number of threads used to build the "
+                + "coappearance matrix and score the records (0 = one per "
+                + "available processor)."
+                + "\n"
+                + "\n"
+                + "-partition\n"
+                + "partitioning - How a parallel coappearance matrix build is "
+                + "split between threads: rows or (attribute) pairs."
+                + "\n"
+                + "\n"
+                + "-storage\n"
+                + "storage - Where the coappearance counts are held: on the "
+                + "Java heap, off-heap in direct buffers, on the heap with "
+                + "hash maps for sparse attribute pairs (hybrid), "
+                + "approximately in Count-Min sketches, on the heap in "
+                + "counters that widen as counts grow (adaptive), or "
+                + "wherever the memory plan finds room (auto)."
+                + "\n"
+                + "\n"
+                + "-sketch-width\n"
+                + "sketchWidth - Number of counters in each row of an "
+                + "attribute pair's Count-Min sketch."
+                + "\n"
+                + "\n"
+                + "-sketch-depth\n"
+                + "sketchDepth - Number of rows (hash functions) in each "
+                + "attribute pair's Count-Min sketch."
+                + "\n"
+                + "\n"
+                + "-memory-budget\n"
+                + "memoryBudget - Megabytes the coappearance matrix and "
+                + "working set may use; processing stops before anything is "
+                + "allocated if they won't fit (0 = no budget)."
+                + "\n"
+                + "\n"
+                + "-score-later-batches\n"
+                + "scoreLaterBatches - Score instances after the first batch "
+                + "against the model built from the first batch, instead of "
+                + "passing them through."
+                + "\n"
+                + "\n"
+                + "-window\n"
+                + "windowSize - Score instances after the first batch against "
+                + "a coappearance matrix over this many of the most recent "
+                + "records (0 = no window)."
+                + "\n"
+                + "\n"
+                + "-half-life\n"
+                + "halfLife - Score instances after the first batch against "
+                + "coappearance counts that halve in weight every this many "
+                + "records (0 = no decay)."
+                + "\n"
+                + "\n"
+                + "-save-model\n"
+                + "saveModelFile - File the trained model is saved to."
+                + "\n"
+                + "\n"
+                + "-load-model\n"
+                + "loadModelFile - File a trained model is loaded from; the "
+                + "data is then scored against it instead of training a new "
+                + "one."
+                + "\n"
+                + "\n"
+                + "-V\n"
+                + "printMetrics - Print the time, CPU time and allocation of "
+                + "each phase, the size of the coappearance matrix and the "
+                + "noise found after each batch."
                 + "\nFor more information see: " + getTechnicalInformation();
     }
 
@@ -175,7 +492,9 @@ public class CAIRAD extends SimpleBatchFilter implements UnsupervisedFilter {
 
     /**
      * Input an instance for filtering. Filter requires all training instances
-     * be read before producing output.
+     * be read before producing output. Instances after the first batch are
+     * passed through, or scored straight away if scoreLaterBatches is set or
+     * there is a window or a half-life.
      *
      * @param instance the input instance
      * @return true if the filtered instance may now be collected with output().
@@ -192,7 +511,8 @@ public class CAIRAD extends SimpleBatchFilter implements UnsupervisedFilter {
             m_NewBatch = false;
         }
         if (isFirstBatchDone()) {
-            push(instance);
+            push(m_scoreLaterBatches || m_windowSize > 0 || m_halfLife > 0
+                    ? convertInstance(instance) : instance);
             return true;
         } else {
             bufferInput(instance);
@@ -211,122 +531,274 @@ public class CAIRAD extends SimpleBatchFilter implements UnsupervisedFilter {
     @Override
     protected Instances process(Instances input) throws Exception {
 
-        this.setInputFormat(input);
-        /*Step 1: Generalise numerical attributes in copy of dataset */
-        Instances generalisedDataset = new Instances(input);
-        Instances originalDataset = new Instances(input);
-
-        Discretize discretizer = new Discretize();
-        m_attributeDomainSizes = new int[originalDataset.numAttributes()];
+        if (m_windowSize > 0 && m_halfLife > 0) {
+            throw new Exception("Can't use both a window and a half-life");
+        }
 
-        for (int i = 1; i <= generalisedDataset.numAttributes(); i++) {
+        //the first batch is scored against its own counts, not anything kept
+        //from an earlier first batch
+        m_window = null;
+        m_decayedCAM = null;
 
-            if (generalisedDataset.attribute(i - 1).isDate()) {
+        this.setInputFormat(input);
 
-                //work out the number of bins from the range
-                double range = generalisedDataset.attributeStats(i - 1).distinctCount;
+        m_metrics.start();
+        if (isModelFile(m_loadModelFile)) {
+            scoreAgainstLoadedModel(input);
+        } else {
+            train(input);
+        }
+        m_metrics.setCAM(m_CAM.counts.numCells(), m_CAM.counts.heapBytes(),
+                m_CAM.counts.nativeBytes());
+        m_metrics.setScored(m_noisyAttributeMatrix);
 
-                int numBins = (int) Math.round(Math.sqrt(range));
+        //later instances can be scored against counts that fade with age
+        if (m_halfLife > 0) {
+            m_decayedCAM = new DecayedCoappearanceMatrix(m_CAM, m_halfLife);
+        }
 
-                //set up and run the discretiser
-                discretizer.setAttributeIndices("" + i);
-                discretizer.setInputFormat(generalisedDataset);
-                discretizer.setBins(numBins);
-                m_attributeDomainSizes[i - 1] = numBins;
+        /*Step 4: Produce dataset with all clean records and dataset with all
+                  noisy records */
+        //this step is unnecessary for this implementation
+        /*Step 5: Package it up to return the final result */
+        //Either replace all of the noisy values with missing values for later
+        //imputation, or add an indicator variable for whether or not each
+        //record is noisy. The output header is built once and each record
+        //is copied into the output just once.
+        m_metrics.startPhase(CAIRADMetrics.OUTPUT);
+        Object event = PhaseEvents.EVENTS.beginOutput();
+        Instances output = new Instances(input, 0);
+        if (!m_makeNoisyMissing) {
+            ArrayList<String> values = new ArrayList<String>();
+            values.add("False");
+            values.add("True");
+            output.insertAttributeAt(new Attribute("Noisy", values), 0);
+        }
+        this.setOutputFormat(output);
+        output = new Instances(output, input.numInstances());
 
-                generalisedDataset = Filter.useFilter(generalisedDataset, discretizer);
-            } else if (generalisedDataset.attribute(i - 1).isNumeric()) {
+        int offset = m_makeNoisyMissing ? 0 : 1;
+        for (int i = 0; i < input.numInstances(); i++) {
 
-                //work out the number of bins from the range
-                double range = generalisedDataset.attributeStats(i - 1).numericStats.max
-                        - generalisedDataset.attributeStats(i - 1).numericStats.min;
+            Instance instance = input.instance(i);
+            boolean isNoisy = m_noisyAttributeMatrix.isRecordNoisy(i);
+            if (m_makeNoisyMissing && !isNoisy) {
+                output.add(instance);
+                continue;
+            }
 
-                int numBins = (int) Math.round(Math.sqrt(range));
+            double[] values = new double[output.numAttributes()];
+            for (int j = 0; j < instance.numAttributes(); j++) {
+                values[j + offset] = instance.value(j);
+            }
+            if (m_makeNoisyMissing) {
+                //only visit the noisy values
+                for (int j = m_noisyAttributeMatrix.nextNoisyAttribute(i, 0); j >= 0;
+                        j = m_noisyAttributeMatrix.nextNoisyAttribute(i, j + 1)) {
+                    values[j] = Utils.missingValue();
+                }
+            } else {
+                values[0] = isNoisy ? 1 : 0;
+            }
+            output.add(newInstance(instance, values));
 
-                //set up and run the discretiser
-                discretizer.setAttributeIndices("" + i);
-                discretizer.setInputFormat(generalisedDataset);
-                discretizer.setBins(numBins);
-                m_attributeDomainSizes[i - 1] = numBins;
+        }
+        PhaseEvents.EVENTS.endOutput(event, output.numInstances(), output.numAttributes(),
+                m_metrics.getNoisyRecords());
+        m_metrics.endPhase();
+        m_metrics.finish();
 
-                generalisedDataset = Filter.useFilter(generalisedDataset, discretizer);
+        if (m_printMetrics) {
+            System.err.println(m_metrics);
+        }
 
-            }//end if numeric
-            else if (generalisedDataset.attribute(i - 1).isString()) {
-                StringToNominal stn = new StringToNominal();
-                stn.setAttributeRange("" + i);
-                stn.setInputFormat(generalisedDataset);
-                generalisedDataset = Filter.useFilter(generalisedDataset, stn);
+        return output;
 
-//                MergeInfrequentNominalValues minv = new MergeInfrequentNominalValues();
-//                minv.setAttributeIndices(""+i);
-//                minv.setInputFormat(generalisedDataset);
-//                generalisedDataset = Filter.useFilter(generalisedDataset, minv);
-                m_attributeDomainSizes[i - 1] = generalisedDataset.attributeStats(i - 1).nominalCounts.length;
+    }
 
+    /**
+     * Steps 1 to 3 of CAIRAD: generalise a dataset, build the CAM over it
+     * and score its records, saving the model if saveModelFile is set.
+     *
+     * @param input - dataset to train on and score
+     * @throws Exception if the model doesn't fit in memory or can't be saved
+     */
+    private void train(Instances input) throws Exception {
+
+        /*Step 1: Generalise numerical attributes into an encoded store; the
+                  input itself is left as it is */
+        //gather the statistics for every attribute in one scan, work out all
+        //of the bins and dictionaries, then encode every column in one pass
+        m_metrics.startPhase(CAIRADMetrics.GENERALISE);
+        Object event = PhaseEvents.EVENTS.beginGeneralise();
+        m_statistics = DatasetStatistics.collect(input);
+        m_generalisation = new Generalisation(input, m_statistics, PhaseEvents.EVENTS);
+        m_attributeDomainSizes = m_generalisation.attributeDomainSizes();
+        //check that the CAM and working set fit before allocating them
+        planMemory(m_generalisation.codeDomainSizes(), input.numInstances(),
+                input.numInstances());
+        EncodedDataset generalisedDataset = new EncodedDataset(m_generalisation, input);
+        PhaseEvents.EVENTS.endGeneralise(event, generalisedDataset.numRows(),
+                generalisedDataset.numColumns(), generalisedDataset.heapBytes());
+
+        ForkJoinPool pool = createPool();
+        try {
+            /*Step 2: Generate a coappearance matrix on generalised dataset */
+            m_metrics.startPhase(CAIRADMetrics.BUILD_CAM);
+            event = PhaseEvents.EVENTS.beginBuildCAM();
+            m_CAM = new CoappearanceMatrix(generalisedDataset.domainSizes(),
+                    countStoreFactory(generalisedDataset.numRows()));
+            m_CAM.constructCAM(generalisedDataset, pool, m_partitioning);
+            PhaseEvents.EVENTS.endBuildCAM(event, generalisedDataset.numRows(),
+                    generalisedDataset.numColumns(), m_CAM.counts.numCells(),
+                    m_CAM.counts.heapBytes(), m_CAM.counts.nativeBytes(),
+                    TAGS_STORAGE[storage()].getIDStr());
+
+            /*Step 3: Identify noisy values */
+            m_metrics.startPhase(CAIRADMetrics.SCORE);
+            m_verdicts = m_useVerdictTables
+                    ? new VerdictTable(m_CAM, m_attributeDomainSizes, m_coappearanceThreshold)
+                    : null;
+
+            //create noisy attribute matrix Q
+            m_noisyAttributeMatrix = new NoisyAttributeMatrix(generalisedDataset.numRows(),
+                    generalisedDataset.numColumns());
+            if (pool == null) {
+                //a block at a time, so each has its own Score event
+                for (int from = 0; from < generalisedDataset.numRows();
+                        from += CoappearanceMatrix.ROW_BLOCK_SIZE) {
+                    scoreRecords(generalisedDataset, from, Math.min(from + CoappearanceMatrix.ROW_BLOCK_SIZE,
+                            generalisedDataset.numRows()));
+                }
             } else {
-                m_attributeDomainSizes[i - 1] = generalisedDataset.attributeStats(i - 1).nominalCounts.length;
+                pool.invoke(new RecordScoring(generalisedDataset, 0, generalisedDataset.numRows(),
+                        scoringChunkSize(generalisedDataset.numRows(), pool)));
             }
+            //before the pool's workers exit, while their time can be read
+            m_metrics.endPhase();
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
 
-        } //end generalisation loop
-
-        /*Step 2: Generate a coappearance matrix on generalised dataset */
-        m_CAM = new CoappearanceMatrix(generalisedDataset);
+        //the whole batch's model is saved, before any window reduces it
+        if (isModelFile(m_saveModelFile)) {
+            saveModel(m_saveModelFile);
+        }
 
-        /*Step 3: Identify noisy values */
-        //create noisy attribute matrix Q
-        m_noisyAttributeMatrix = new int[generalisedDataset.numInstances()][generalisedDataset.numAttributes()];
-        boolean[] isNoisy = new boolean[generalisedDataset.numInstances()];
-        for (int i = 0; i < generalisedDataset.numInstances(); i++) {
-            isNoisy[i] = NVI(generalisedDataset.get(i), i);
+        //later instances are scored against the most recent records only
+        if (m_windowSize > 0) {
+            startWindow(generalisedDataset);
         }
 
-        /*Step 4: Produce dataset with all clean records and dataset with all
-                  noisy records */
-        //this step is unnecessary for this implementation
-        /*Step 5: Package it up to return the final result */
-        //If we're replacing all of the noisy values with missing values for
-        //later imputation
-        if (m_makeNoisyMissing) {
-            for (int i = 0; i < originalDataset.numInstances(); i++) {
-                for (int j = 0; j < originalDataset.numAttributes(); j++) {
-
-                    if (m_noisyAttributeMatrix[i][j] == 1) { //if noisy
-                        originalDataset.instance(i).setValue(j, Utils.missingValue());
-                    }
+    }
 
-                }
-            }
-            this.setOutputFormat(originalDataset);
-        } else { //otherwise just create an indicator variable for whether or not the records are noisy
-            ArrayList values = new ArrayList();
-            values.add("False");
-            values.add("True");
-            originalDataset.insertAttributeAt(new Attribute("Noisy", values), 0);
+    /**
+     * Score a dataset against the model in loadModelFile rather than one
+     * trained on the dataset. The records are encoded and scored one at a
+     * time, as a string value that isn't in the model's dictionary has no
+     * code in an EncodedDataset.
+     *
+     * @param input - dataset to score
+     * @throws Exception if the model can't be loaded or doesn't match the
+     * dataset
+     */
+    private void scoreAgainstLoadedModel(Instances input) throws Exception {
 
-            for (int i = 0; i < originalDataset.numInstances(); i++) {
-                if (isNoisy[i]) {
-                    originalDataset.instance(i).setValue(0, 1);
-                } else {
-                    originalDataset.instance(i).setValue(0, 0);
+        if (m_windowSize > 0) {
+            throw new Exception("Can't use a window with a loaded model");
+        }
+
+        m_metrics.startPhase(CAIRADMetrics.BUILD_CAM);
+        loadModel(m_loadModelFile);
+        m_generalisation.checkCompatible(input);
+
+        m_metrics.startPhase(CAIRADMetrics.SCORE);
+        int numAttributes = input.numAttributes();
+        m_noisyAttributeMatrix = new NoisyAttributeMatrix(input.numInstances(), numAttributes);
+        int[] theRecord = new int[numAttributes];
+        int[] totalScores = new int[numAttributes];
+        for (int from = 0; from < input.numInstances(); from += CoappearanceMatrix.ROW_BLOCK_SIZE) {
+            int to = Math.min(from + CoappearanceMatrix.ROW_BLOCK_SIZE, input.numInstances());
+            Object event = PhaseEvents.EVENTS.beginScoring();
+            for (int i = from; i < to; i++) {
+                Instance instance = input.instance(i);
+                for (int j = 0; j < numAttributes; j++) {
+                    theRecord[j] = m_generalisation.encode(instance, j);
                 }
+                NVI(theRecord, m_noisyAttributeMatrix, i, totalScores);
             }
-            this.setOutputFormat(originalDataset);
+            PhaseEvents.EVENTS.endScoring(event, from, to - from, numAttributes);
         }
-
-        return originalDataset;
+        m_metrics.endPhase();
 
     }
 
     /**
-     * Return the noisy attribute matrix (Q in original paper)
+     * Return the noisy attribute matrix (Q in original paper) as a dense
+     * array, 1 for noisy values and 0 otherwise. The array is a copy made on
+     * each call; use getNoisyValues to read the matrix without copying it.
      *
-     * @return the noisy attribute matrix
+     * @return the noisy attribute matrix, null if nothing has been processed
      */
     public int[][] getNoisyAttributeMatrix() {
+        return m_noisyAttributeMatrix == null ? null : m_noisyAttributeMatrix.toIntMatrix();
+    }
+
+    /**
+     * Return the noisy attribute matrix (Q in original paper) as found by
+     * the last call to process.
+     *
+     * @return the noisy attribute matrix, null if nothing has been processed
+     */
+    public NoisyAttributeMatrix getNoisyValues() {
         return m_noisyAttributeMatrix;
     }
 
+    /**
+     * Return the number of bytes of Java heap taken up by the coappearance
+     * counts of the current model
+     *
+     * @return the heap footprint, 0 if there is no model
+     */
+    public long getCAMHeapBytes() {
+        return m_CAM == null ? 0 : m_CAM.counts.heapBytes();
+    }
+
+    /**
+     * Return the number of bytes of memory outside the Java heap (direct or
+     * memory mapped buffers) taken up by the coappearance counts of the
+     * current model
+     *
+     * @return the native footprint, 0 if there is no model
+     */
+    public long getCAMNativeBytes() {
+        return m_CAM == null ? 0 : m_CAM.counts.nativeBytes();
+    }
+
+    /**
+     * Return the number of full scans over the data made to gather attribute
+     * statistics in the last call to process
+     *
+     * @return the number of statistics scans, 0 if nothing has been processed
+     */
+    public int getNumStatisticsScans() {
+        return m_statistics == null ? 0 : m_statistics.numScans();
+    }
+
+    /**
+     * Return the time, CPU time and allocation of each phase of the last
+     * call to process, and the size of the CAM and the noise it found. The
+     * same object is updated by each call, and can be registered as a JMX
+     * MBean with registerMBean.
+     *
+     * @return the metrics
+     */
+    public CAIRADMetrics getMetrics() {
+        return m_metrics;
+    }
+
     /**
      * Returns the tip text for this property.
      *
@@ -413,45 +885,654 @@ public class CAIRAD extends SimpleBatchFilter implements UnsupervisedFilter {
     }
 
     /**
-     * Parses a given list of options.
-     * <p/>
-     *
-     * <!-- options-start -->
-     * Valid options are:
-     * <p/>
-     * <
-     * pre> -T
-     * coappearanceThreshold - Coappearance Threshold, tau in original paper.
-     * </pre>
+     * Returns the tip text for this property.
      *
-     * <pre> -L
-     * coappearanceScoreThreshold - Coappearance Score Threshold, lambda in original
-     * paper. </pre>
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String useVerdictTablesTipText() {
+        return "Precompute the score of every value combination of every "
+                + "attribute pair once the coappearance matrix is built, so "
+                + "scoring a record is just table lookups. Faster when there "
+                + "are many more records than value combinations";
+    }
+
+    /**
+     * Return whether pair scores are precomputed before scoring the records
      *
-     * <pre> -M
-     * makeNoisyMissing - Make detected noise into missing values. </pre>
-     * <!-- options-end -->
+     * @return m_useVerdictTables
+     */
+    public boolean getUseVerdictTables() {
+        return m_useVerdictTables;
+    }
+
+    /**
+     * Set whether pair scores are precomputed before scoring the records
      *
-     * @param options the list of options as an array of strings
-     * @throws Exception if an option is not supported
+     * @param useVerdictTables whether or not to precompute pair scores
      */
-    @Override
-    public void setOptions(String[] options) throws Exception {
-        String optionString;
+    public void setUseVerdictTables(boolean useVerdictTables) {
+        this.m_useVerdictTables = useVerdictTables;
+    }
 
-        super.setOptions(options);
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String numThreadsTipText() {
+        return "Number of threads used to build the coappearance matrix and "
+                + "score the records (0 = one per available processor)";
+    }
 
-        // set coappearance threshold - T for Tau
-        optionString = Utils.getOption('T', options);
-        if (optionString.length() != 0) {
-            double tau = Double.parseDouble(optionString);
-            setCoappearanceThreshold(tau);
-            if ((tau <= 0) || (tau > 1)) {
-                throw new Exception(
-                        "Coappearance Threshold must be > 0 and <= 1"
-                );
-            }
-        }
+    /**
+     * Return the number of threads used to build the coappearance matrix and
+     * score the records
+     *
+     * @return the number of threads, 0 for one per available processor
+     */
+    public int getNumThreads() {
+        return m_numThreads;
+    }
+
+    /**
+     * Set the number of threads used to build the coappearance matrix and
+     * score the records
+     *
+     * @param numThreads - the number of threads, 0 for one per available
+     * processor
+     */
+    public void setNumThreads(int numThreads) {
+        this.m_numThreads = numThreads;
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String partitioningTipText() {
+        return "How a parallel coappearance matrix build is split between "
+                + "threads: by rows, which needs a partial matrix per thread, "
+                + "or by attribute pairs, which needs only one matrix";
+    }
+
+    /**
+     * Return how a parallel CAM build is split between threads
+     *
+     * @return the partitioning
+     */
+    public SelectedTag getPartitioning() {
+        return new SelectedTag(m_partitioning, TAGS_PARTITIONING);
+    }
+
+    /**
+     * Set how a parallel CAM build is split between threads
+     *
+     * @param partitioning - the partitioning
+     */
+    public void setPartitioning(SelectedTag partitioning) {
+        if (partitioning.getTags() == TAGS_PARTITIONING) {
+            this.m_partitioning = partitioning.getSelectedTag().getID();
+        }
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String storageTipText() {
+        return "Where the coappearance counts are held: in one array on the "
+                + "Java heap, off-heap in direct buffers that the garbage "
+                + "collector never scans or copies (bounded by "
+                + "-XX:MaxDirectMemorySize), or hybrid, where each attribute "
+                + "pair with many more value combinations than records is "
+                + "held in a hash map of just the combinations seen, or "
+                + "sketch, where each pair's counts are estimated by a "
+                + "Count-Min sketch of sketchWidth by sketchDepth counters. "
+                + "Sketch estimates are never below the true count, and "
+                + "exceed it by at most e/sketchWidth of the records counted "
+                + "with probability 1 - exp(-sketchDepth), or adaptive, "
+                + "where each pair's counters start a byte wide and are "
+                + "widened to 2, 4 and then 8 bytes when a count no longer "
+                + "fits. Adaptive and sketch counts are the only "
+                + "ones that can go past 2^31. With auto, "
+                + "the first of heap, adaptive, hybrid, off-heap and sketch "
+                + "that the memory plan finds room for is used";
+    }
+
+    /**
+     * Return where the CAM counts are held
+     *
+     * @return the storage
+     */
+    public SelectedTag getStorage() {
+        return new SelectedTag(m_storage, TAGS_STORAGE);
+    }
+
+    /**
+     * Set where the CAM counts are held
+     *
+     * @param storage - the storage
+     */
+    public void setStorage(SelectedTag storage) {
+        if (storage.getTags() == TAGS_STORAGE) {
+            this.m_storage = storage.getSelectedTag().getID();
+        }
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String sketchWidthTipText() {
+        return "Number of counters in each row of an attribute pair's "
+                + "Count-Min sketch, when the storage is sketch. A count is "
+                + "overestimated by at most e/sketchWidth of the records "
+                + "counted, with probability 1 - exp(-sketchDepth)";
+    }
+
+    /**
+     * Return the number of counters in each row of a Count-Min sketch
+     *
+     * @return the sketch width
+     */
+    public int getSketchWidth() {
+        return m_sketchWidth;
+    }
+
+    /**
+     * Set the number of counters in each row of a Count-Min sketch
+     *
+     * @param sketchWidth - the sketch width
+     */
+    public void setSketchWidth(int sketchWidth) {
+        this.m_sketchWidth = sketchWidth;
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String sketchDepthTipText() {
+        return "Number of rows (hash functions) in each attribute pair's "
+                + "Count-Min sketch, when the storage is sketch. Each pair "
+                + "takes sketchWidth * sketchDepth * 8 bytes at most";
+    }
+
+    /**
+     * Return the number of rows in each Count-Min sketch
+     *
+     * @return the sketch depth
+     */
+    public int getSketchDepth() {
+        return m_sketchDepth;
+    }
+
+    /**
+     * Set the number of rows in each Count-Min sketch
+     *
+     * @param sketchDepth - the sketch depth
+     */
+    public void setSketchDepth(int sketchDepth) {
+        this.m_sketchDepth = sketchDepth;
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String memoryBudgetTipText() {
+        return "Megabytes of heap and native memory the coappearance matrix "
+                + "and working set may use. The memory needed is worked out "
+                + "from the attributes' domain sizes once the bins are known, "
+                + "and processing stops with a report before anything else "
+                + "is allocated if the storage won't fit, or if the storage "
+                + "is auto, if no storage fits (0 = no budget, only the free "
+                + "heap is checked for auto)";
+    }
+
+    /**
+     * Return the megabytes the CAM and working set may use
+     *
+     * @return the memory budget, 0 for none
+     */
+    public int getMemoryBudget() {
+        return m_memoryBudget;
+    }
+
+    /**
+     * Set the megabytes the CAM and working set may use
+     *
+     * @param memoryBudget - the memory budget, 0 for none
+     */
+    public void setMemoryBudget(int memoryBudget) {
+        this.m_memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String scoreLaterBatchesTipText() {
+        return "Score each instance after the first batch as it arrives, "
+                + "using the bins and coappearance matrix built from the first "
+                + "batch, instead of passing it through unchanged";
+    }
+
+    /**
+     * Return whether instances after the first batch are scored
+     *
+     * @return m_scoreLaterBatches
+     */
+    public boolean getScoreLaterBatches() {
+        return m_scoreLaterBatches;
+    }
+
+    /**
+     * Set whether instances after the first batch are scored against the
+     * model built from the first batch
+     *
+     * @param scoreLaterBatches whether or not to score later batches
+     */
+    public void setScoreLaterBatches(boolean scoreLaterBatches) {
+        this.m_scoreLaterBatches = scoreLaterBatches;
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String windowSizeTipText() {
+        return "Number of most recent records the coappearance matrix is kept "
+                + "over once the first batch is done. Each later instance is "
+                + "added to the matrix, the oldest record is taken out of it, "
+                + "and the instance is then scored (0 = no window)";
+    }
+
+    /**
+     * Return the number of most recent records the CAM is kept over after
+     * the first batch
+     *
+     * @return the window size, 0 for no window
+     */
+    public int getWindowSize() {
+        return m_windowSize;
+    }
+
+    /**
+     * Set the number of most recent records the CAM is kept over after the
+     * first batch
+     *
+     * @param windowSize - the window size, 0 for no window
+     */
+    public void setWindowSize(int windowSize) {
+        this.m_windowSize = windowSize;
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String halfLifeTipText() {
+        return "Number of records after which a coappearance count has halved "
+                + "in weight. Once the first batch is done, each later "
+                + "instance is counted and then scored against the decayed "
+                + "counts. Can't be used with a window (0 = no decay)";
+    }
+
+    /**
+     * Return the number of records after which a count has halved in weight
+     *
+     * @return the half-life, 0 for no decay
+     */
+    public double getHalfLife() {
+        return m_halfLife;
+    }
+
+    /**
+     * Set the number of records after which a count has halved in weight
+     *
+     * @param halfLife - the half-life, 0 for no decay
+     */
+    public void setHalfLife(double halfLife) {
+        this.m_halfLife = halfLife;
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String saveModelFileTipText() {
+        return "File the trained model (bins, dictionaries, coappearance "
+                + "counts, tau and lambda) is saved to after each first batch "
+                + "(a directory = don't save)";
+    }
+
+    /**
+     * Return the file the trained model is saved to
+     *
+     * @return the file, a directory if the model isn't saved
+     */
+    public File getSaveModelFile() {
+        return m_saveModelFile;
+    }
+
+    /**
+     * Set the file the trained model is saved to
+     *
+     * @param saveModelFile - the file, a directory to not save the model
+     */
+    public void setSaveModelFile(File saveModelFile) {
+        this.m_saveModelFile = saveModelFile;
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String loadModelFileTipText() {
+        return "File a saved model is loaded from. The data is scored against "
+                + "the loaded model instead of training a new one, and tau "
+                + "and lambda are taken from the model (a directory = train "
+                + "as usual)";
+    }
+
+    /**
+     * Return the file a saved model is loaded from
+     *
+     * @return the file, a directory if no model is loaded
+     */
+    public File getLoadModelFile() {
+        return m_loadModelFile;
+    }
+
+    /**
+     * Set the file a saved model is loaded from
+     *
+     * @param loadModelFile - the file, a directory to train as usual
+     */
+    public void setLoadModelFile(File loadModelFile) {
+        this.m_loadModelFile = loadModelFile;
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String printMetricsTipText() {
+        return "Print the wall clock time, CPU time and heap allocation of "
+                + "each phase (generalise, build CAM, score and output), the "
+                + "size of the coappearance matrix and the number of rows "
+                + "scored and noisy values found to standard error after "
+                + "each batch";
+    }
+
+    /**
+     * Return whether the metrics are printed after each batch
+     *
+     * @return m_printMetrics
+     */
+    public boolean getPrintMetrics() {
+        return m_printMetrics;
+    }
+
+    /**
+     * Set whether the metrics are printed after each batch
+     *
+     * @param printMetrics whether or not to print the metrics
+     */
+    public void setPrintMetrics(boolean printMetrics) {
+        this.m_printMetrics = printMetrics;
+    }
+
+    /**
+     * Create the pool parallel work is run on, according to the numThreads
+     * option.
+     *
+     * @return the pool, or null if the work should be done on the calling
+     * thread
+     */
+    private ForkJoinPool createPool() {
+
+        int numThreads = m_numThreads > 0
+                ? m_numThreads
+                : Runtime.getRuntime().availableProcessors();
+        //the metrics count the time of the pool's workers
+        return numThreads > 1
+                ? new ForkJoinPool(numThreads, m_metrics.threadFactory(), null, false)
+                : null;
+
+    }
+
+    /**
+     * Returns an enumeration describing the available options.
+     *
+     * @return an enumeration of all the available options.
+     */
+    @Override
+    public Enumeration<Option> listOptions() {
+
+        Vector<Option> result = new Vector<Option>();
+
+        result.addElement(new Option(
+                "\tCoappearance Threshold, tau in original paper.\n"
+                + "\t(default 0.8)",
+                "T", 1, "-T <num>"));
+
+        result.addElement(new Option(
+                "\tCoappearance Score Threshold, lambda in original paper.\n"
+                + "\t(default 0.3)",
+                "L", 1, "-L <num>"));
+
+        result.addElement(new Option(
+                "\tMake detected noise into missing values.",
+                "M", 0, "-M"));
+
+        result.addElement(new Option(
+                "\tPrecompute the score of every value combination of every\n"
+                + "\tattribute pair before scoring the records.",
+                "verdict-tables", 0, "-verdict-tables"));
+
+        result.addElement(new Option(
+                "\tNumber of threads used to build the coappearance matrix\n"
+                + "\tand score the records.\n"
+                + "\t(default 1, 0 = one per available processor)",
+                "num-threads", 1, "-num-threads <num>"));
+
+        result.addElement(new Option(
+                "\tHow a parallel coappearance matrix build is split between\n"
+                + "\tthreads: rows or (attribute) pairs.\n"
+                + "\t(default rows)",
+                "partition", 1, "-partition <rows|pairs>"));
+
+        result.addElement(new Option(
+                "\tWhere the coappearance counts are held: on the Java heap,\n"
+                + "\toff-heap in direct buffers, on the heap with hash maps\n"
+                + "\tfor sparse attribute pairs, approximately in Count-Min\n"
+                + "\tsketches, on the heap in counters that widen as counts\n"
+                + "\tgrow, or wherever the memory plan finds room.\n"
+                + "\t(default heap)",
+                "storage", 1, "-storage <heap|off-heap|hybrid|sketch|adaptive|auto>"));
+
+        result.addElement(new Option(
+                "\tNumber of counters in each row of a Count-Min sketch.\n"
+                + "\t(default 2048)",
+                "sketch-width", 1, "-sketch-width <num>"));
+
+        result.addElement(new Option(
+                "\tNumber of rows in each Count-Min sketch.\n"
+                + "\t(default 4)",
+                "sketch-depth", 1, "-sketch-depth <num>"));
+
+        result.addElement(new Option(
+                "\tMegabytes the coappearance matrix and working set may use.\n"
+                + "\tProcessing stops before anything is allocated if they\n"
+                + "\twon't fit.\n"
+                + "\t(default 0 = no budget)",
+                "memory-budget", 1, "-memory-budget <num>"));
+
+        result.addElement(new Option(
+                "\tScore instances after the first batch against the model\n"
+                + "\tbuilt from the first batch, instead of passing them through.",
+                "score-later-batches", 0, "-score-later-batches"));
+
+        result.addElement(new Option(
+                "\tScore instances after the first batch against a\n"
+                + "\tcoappearance matrix over this many of the most recent\n"
+                + "\trecords.\n"
+                + "\t(default 0 = no window)",
+                "window", 1, "-window <num>"));
+
+        result.addElement(new Option(
+                "\tScore instances after the first batch against coappearance\n"
+                + "\tcounts that halve in weight every this many records.\n"
+                + "\t(default 0 = no decay)",
+                "half-life", 1, "-half-life <num>"));
+
+        result.addElement(new Option(
+                "\tFile the trained model is saved to.\n"
+                + "\t(default none)",
+                "save-model", 1, "-save-model <file>"));
+
+        result.addElement(new Option(
+                "\tFile a trained model is loaded from; the data is then\n"
+                + "\tscored against it instead of training a new one.\n"
+                + "\t(default none)",
+                "load-model", 1, "-load-model <file>"));
+
+        result.addElement(new Option(
+                "\tPrint the time, CPU time and allocation of each phase,\n"
+                + "\tthe size of the coappearance matrix and the noise found\n"
+                + "\tto standard error after each batch.",
+                "V", 0, "-V"));
+
+        result.addAll(Collections.list(super.listOptions()));
+
+        return result.elements();
+
+    }
+
+    /**
+     * Parses a given list of options.
+     * <p/>
+     *
+     * <!-- options-start -->
+     * Valid options are:
+     * <p/>
+     * <
+     * pre> -T
+     * coappearanceThreshold - Coappearance Threshold, tau in original paper.
+     * </pre>
+     *
+     * <pre> -L
+     * coappearanceScoreThreshold - Coappearance Score Threshold, lambda in original
+     * paper. </pre>
+     *
+     * <pre> -M
+     * makeNoisyMissing - Make detected noise into missing values. </pre>
+     *
+     * <pre> -verdict-tables
+     * useVerdictTables - Precompute the score of every value combination of
+     * every attribute pair before scoring the records. </pre>
+     *
+     * <pre> -num-threads
+     * numThreads - Number of threads used to build the coappearance matrix
+     * and score the records (0 = one per available processor). </pre>
+     *
+     * <pre> -partition
+     * partitioning - How a parallel coappearance matrix build is split between
+     * threads: rows or (attribute) pairs. </pre>
+     *
+     * <pre> -storage
+     * storage - Where the coappearance counts are held: on the Java heap,
+     * off-heap in direct buffers, on the heap with hash maps for sparse
+     * attribute pairs (hybrid), approximately in Count-Min sketches, on the
+     * heap in counters that widen as counts grow (adaptive), or wherever the
+     * memory plan finds room (auto). </pre>
+     *
+     * <pre> -sketch-width
+     * sketchWidth - Number of counters in each row of an attribute pair's
+     * Count-Min sketch. </pre>
+     *
+     * <pre> -sketch-depth
+     * sketchDepth - Number of rows (hash functions) in each attribute pair's
+     * Count-Min sketch. </pre>
+     *
+     * <pre> -memory-budget
+     * memoryBudget - Megabytes the coappearance matrix and working set may
+     * use; processing stops before anything is allocated if they won't fit
+     * (0 = no budget). </pre>
+     *
+     * <pre> -score-later-batches
+     * scoreLaterBatches - Score instances after the first batch against the
+     * model built from the first batch, instead of passing them through. </pre>
+     *
+     * <pre> -window
+     * windowSize - Score instances after the first batch against a
+     * coappearance matrix over this many of the most recent records (0 = no
+     * window). </pre>
+     *
+     * <pre> -half-life
+     * halfLife - Score instances after the first batch against coappearance
+     * counts that halve in weight every this many records (0 = no decay).
+     * </pre>
+     *
+     * <pre> -save-model
+     * saveModelFile - File the trained model is saved to. </pre>
+     *
+     * <pre> -load-model
+     * loadModelFile - File a trained model is loaded from; the data is then
+     * scored against it instead of training a new one. </pre>
+     *
+     * <pre> -V
+     * printMetrics - Print the time, CPU time and allocation of each phase,
+     * the size of the coappearance matrix and the noise found after each
+     * batch. </pre>
+     * <!-- options-end -->
+     *
+     * @param options the list of options as an array of strings
+     * @throws Exception if an option is not supported
+     */
+    @Override
+    public void setOptions(String[] options) throws Exception {
+        String optionString;
+
+        super.setOptions(options);
+
+        // set coappearance threshold - T for Tau
+        optionString = Utils.getOption('T', options);
+        if (optionString.length() != 0) {
+            double tau = Double.parseDouble(optionString);
+            setCoappearanceThreshold(tau);
+            if ((tau <= 0) || (tau > 1)) {
+                throw new Exception(
+                        "Coappearance Threshold must be > 0 and <= 1"
+                );
+            }
+        }
 
         // set coappearance score threshold - L for Lambda
         optionString = Utils.getOption('L', options);
@@ -466,90 +1547,716 @@ public class CAIRAD extends SimpleBatchFilter implements UnsupervisedFilter {
 
         }
 
-        //set whether or not to replace noisy values with missing values
-        setMakeNoisyMissing(Utils.getFlag("M", options));
+        //set whether or not to replace noisy values with missing values
+        setMakeNoisyMissing(Utils.getFlag("M", options));
+
+        //set whether or not to precompute pair scores
+        setUseVerdictTables(Utils.getFlag("verdict-tables", options));
+
+        //set the number of threads
+        optionString = Utils.getOption("num-threads", options);
+        if (optionString.length() != 0) {
+            int numThreads = Integer.parseInt(optionString);
+            if (numThreads < 0) {
+                throw new Exception(
+                        "Number of threads must be >= 0"
+                );
+            }
+            setNumThreads(numThreads);
+        } else {
+            setNumThreads(1);
+        }
+
+        //set how a parallel build is split between threads
+        optionString = Utils.getOption("partition", options);
+        if (optionString.length() != 0) {
+            setPartitioning(new SelectedTag(optionString, TAGS_PARTITIONING));
+        } else {
+            setPartitioning(new SelectedTag(PARTITION_ROWS, TAGS_PARTITIONING));
+        }
+
+        //set where the counts are held
+        optionString = Utils.getOption("storage", options);
+        if (optionString.length() != 0) {
+            setStorage(new SelectedTag(optionString, TAGS_STORAGE));
+        } else {
+            setStorage(new SelectedTag(STORAGE_HEAP, TAGS_STORAGE));
+        }
+
+        //set the size of the Count-Min sketches
+        optionString = Utils.getOption("sketch-width", options);
+        if (optionString.length() != 0) {
+            int sketchWidth = Integer.parseInt(optionString);
+            if (sketchWidth < 1) {
+                throw new Exception(
+                        "Sketch width must be >= 1"
+                );
+            }
+            setSketchWidth(sketchWidth);
+        } else {
+            setSketchWidth(2048);
+        }
+
+        optionString = Utils.getOption("sketch-depth", options);
+        if (optionString.length() != 0) {
+            int sketchDepth = Integer.parseInt(optionString);
+            if (sketchDepth < 1) {
+                throw new Exception(
+                        "Sketch depth must be >= 1"
+                );
+            }
+            setSketchDepth(sketchDepth);
+        } else {
+            setSketchDepth(4);
+        }
+
+        //set the memory budget
+        optionString = Utils.getOption("memory-budget", options);
+        if (optionString.length() != 0) {
+            int memoryBudget = Integer.parseInt(optionString);
+            if (memoryBudget < 0) {
+                throw new Exception(
+                        "Memory budget must be >= 0"
+                );
+            }
+            setMemoryBudget(memoryBudget);
+        } else {
+            setMemoryBudget(0);
+        }
+
+        //set whether or not to score instances after the first batch
+        setScoreLaterBatches(Utils.getFlag("score-later-batches", options));
+
+        //set the number of recent records to keep the CAM over
+        optionString = Utils.getOption("window", options);
+        if (optionString.length() != 0) {
+            int windowSize = Integer.parseInt(optionString);
+            if (windowSize < 0) {
+                throw new Exception(
+                        "Window size must be >= 0"
+                );
+            }
+            setWindowSize(windowSize);
+        } else {
+            setWindowSize(0);
+        }
+
+        //set the half-life of the counts
+        optionString = Utils.getOption("half-life", options);
+        if (optionString.length() != 0) {
+            double halfLife = Double.parseDouble(optionString);
+            if (halfLife < 0) {
+                throw new Exception(
+                        "Half-life must be >= 0"
+                );
+            }
+            if (halfLife > 0 && getWindowSize() > 0) {
+                throw new Exception(
+                        "Can't use both a window and a half-life"
+                );
+            }
+            setHalfLife(halfLife);
+        } else {
+            setHalfLife(0);
+        }
+
+        //set the files the model is saved to and loaded from
+        optionString = Utils.getOption("save-model", options);
+        setSaveModelFile(new File(optionString.length() != 0
+                ? optionString : System.getProperty("user.dir")));
+
+        optionString = Utils.getOption("load-model", options);
+        if (optionString.length() != 0 && getWindowSize() > 0) {
+            throw new Exception(
+                    "Can't use a window with a loaded model"
+            );
+        }
+        setLoadModelFile(new File(optionString.length() != 0
+                ? optionString : System.getProperty("user.dir")));
+
+        //set whether or not to print the metrics after each batch
+        setPrintMetrics(Utils.getFlag('V', options));
+
+    }
+
+    /**
+     * Gets the current settings of EMImputation
+     *
+     * @return an array of strings suitable for passing to setOptions()
+     */
+    public String[] getOptions() {
+
+        Vector<String> result = new Vector<String>();
+
+        result.add("-T");
+        result.add("" + getCoappearanceThreshold());
+
+        result.add("-L");
+        result.add("" + getCoappearanceScoreThreshold());
+
+        if (getMakeNoisyMissing()) {
+            result.add("-M");
+        }
+
+        //the remaining options don't change the results for the first batch,
+        //so are only listed when they differ from their defaults
+        if (getUseVerdictTables()) {
+            result.add("-verdict-tables");
+        }
+
+        if (getNumThreads() != 1) {
+            result.add("-num-threads");
+            result.add("" + getNumThreads());
+        }
+
+        if (m_partitioning != PARTITION_ROWS) {
+            result.add("-partition");
+            result.add(getPartitioning().getSelectedTag().getIDStr());
+        }
+
+        if (m_storage != STORAGE_HEAP) {
+            result.add("-storage");
+            result.add(getStorage().getSelectedTag().getIDStr());
+        }
+
+        if (getSketchWidth() != 2048) {
+            result.add("-sketch-width");
+            result.add("" + getSketchWidth());
+        }
+
+        if (getSketchDepth() != 4) {
+            result.add("-sketch-depth");
+            result.add("" + getSketchDepth());
+        }
+
+        if (getMemoryBudget() != 0) {
+            result.add("-memory-budget");
+            result.add("" + getMemoryBudget());
+        }
+
+        if (getScoreLaterBatches()) {
+            result.add("-score-later-batches");
+        }
+
+        if (getWindowSize() != 0) {
+            result.add("-window");
+            result.add("" + getWindowSize());
+        }
+
+        if (getHalfLife() != 0) {
+            result.add("-half-life");
+            result.add("" + getHalfLife());
+        }
+
+        if (isModelFile(getSaveModelFile())) {
+            result.add("-save-model");
+            result.add(getSaveModelFile().getPath());
+        }
+
+        if (isModelFile(getLoadModelFile())) {
+            result.add("-load-model");
+            result.add(getLoadModelFile().getPath());
+        }
+
+        if (getPrintMetrics()) {
+            result.add("-V");
+        }
+
+        return result.toArray(new String[result.size()]);
+
+    }
+
+    /**
+     * Score the coappearance of a pair of values against their expected
+     * coappearances.
+     *
+     * @param Cxy - actual coappearances of the values
+     * @param Exy - expected coappearance given the first value's frequency
+     * @param Eyx - expected coappearance given the second value's frequency
+     * @return 2 if the coappearance is below both expectations, 0 if above
+     * both, and 1 otherwise
+     */
+    static int coappearanceScore(double Cxy, double Exy, double Eyx) {
+
+        if (Cxy < Exy && Cxy < Eyx) {
+            return 2;
+        } else if (Cxy > Exy && Cxy > Eyx) {
+            return 0;
+        } else {
+            return 1;
+        }
+
+    }
+
+    /**
+     * Perform noisy value identification on a range of records of the
+     * generalised dataset.
+     *
+     * @param data - the generalised dataset
+     * @param from - first record, inclusive
+     * @param to - last record, exclusive
+     */
+    private void scoreRecords(EncodedDataset data, int from, int to) {
+
+        Object event = PhaseEvents.EVENTS.beginScoring();
+        int[] theRecord = new int[data.numColumns()];
+        int[] totalScores = new int[data.numColumns()];
+        for (int i = from; i < to; i++) {
+            data.row(i, theRecord);
+            NVI(theRecord, m_noisyAttributeMatrix, i, totalScores);
+        }
+        PhaseEvents.EVENTS.endScoring(event, from, to - from, data.numColumns());
+
+    }
+
+    /**
+     * Work out how many records each parallel scoring task should take: a few
+     * chunks per thread so that uneven threads can balance out.
+     *
+     * @param numRecords - number of records to score
+     * @param pool - pool the scoring is run on
+     * @return the number of records per chunk
+     */
+    private static int scoringChunkSize(int numRecords, ForkJoinPool pool) {
+        int numChunks = pool.getParallelism() * 4;
+        return Math.max(CoappearanceMatrix.ROW_BLOCK_SIZE, (numRecords + numChunks - 1) / numChunks);
+    }
+
+    /**
+     * Scores a range of records with NVI, splitting ranges larger than a
+     * chunk in two. Each record only reads the CAM and writes its own row of
+     * the noisy attribute matrix, so the result is the same as scoring
+     * serially.
+     */
+    final class RecordScoring extends RecursiveAction {
+
+        /**
+         * For serialization
+         */
+        static final long serialVersionUID = 7306342129935640191L;
+
+        /**
+         * The generalised dataset
+         */
+        private final EncodedDataset m_data;
+
+        /**
+         * First record, inclusive
+         */
+        private final int m_from;
+
+        /**
+         * Last record, exclusive
+         */
+        private final int m_to;
+
+        /**
+         * Largest range scored without splitting
+         */
+        private final int m_chunkSize;
+
+        /**
+         * Set up the task.
+         *
+         * @param data - the generalised dataset
+         * @param from - first record, inclusive
+         * @param to - last record, exclusive
+         * @param chunkSize - largest range scored without splitting
+         */
+        RecordScoring(EncodedDataset data, int from, int to, int chunkSize) {
+            m_data = data;
+            m_from = from;
+            m_to = to;
+            m_chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (m_to - m_from <= m_chunkSize) {
+                scoreRecords(m_data, m_from, m_to);
+                return;
+            }
+
+            int middle = (m_from + m_to) >>> 1;
+            invokeAll(new RecordScoring(m_data, m_from, middle, m_chunkSize),
+                    new RecordScoring(m_data, middle, m_to, m_chunkSize));
+
+        }
+
+    }
+
+    /**
+     * Score records against a model built outside process, as
+     * OutOfCoreCAIRAD does. Pair scores are precomputed if useVerdictTables
+     * is set; there is no window or decay.
+     *
+     * @param statistics - statistics the generalisation was worked out from
+     * @param generalisation - bins and dictionaries records are encoded with
+     * @param cam - coappearance matrix over the encoded records
+     */
+    void setModel(DatasetStatistics statistics, Generalisation generalisation,
+            CoappearanceMatrix cam) {
+
+        m_statistics = statistics;
+        m_generalisation = generalisation;
+        m_attributeDomainSizes = generalisation.attributeDomainSizes();
+        m_CAM = cam;
+        m_verdicts = m_useVerdictTables
+                ? new VerdictTable(m_CAM, m_attributeDomainSizes, m_coappearanceThreshold)
+                : null;
+        m_window = null;
+        m_decayedCAM = null;
+        m_noisyAttributeMatrix = null;
 
     }
 
     /**
-     * Gets the current settings of EMImputation
+     * Save the model built by the last dataset processed: the bins and
+     * dictionaries, the CAM and tau and lambda. See ModelFile for the
+     * layout.
      *
-     * @return an array of strings suitable for passing to setOptions()
+     * @param file - file to write
+     * @throws IOException if the file can't be written
+     * @throws IllegalStateException if no model has been built
      */
-    public String[] getOptions() {
+    public void saveModel(File file) throws IOException {
 
-        Vector<String> result = new Vector<String>();
+        if (m_CAM == null) {
+            throw new IllegalStateException("No model has been built yet");
+        }
+        ModelFile.save(file, m_generalisation, m_CAM, m_coappearanceThreshold,
+                m_coappearanceScoreThreshold);
 
-        result.add("-T");
-        result.add("" + getCoappearanceThreshold());
+    }
 
-        result.add("-L");
-        result.add("" + getCoappearanceScoreThreshold());
+    /**
+     * Load a model saved by saveModel, replacing the current one. The
+     * coappearance counts are memory mapped from the file rather than read,
+     * so this takes the same time whatever the size of the CAM. tau and
+     * lambda are set to the values the model was saved with.
+     *
+     * @param file - file to read
+     * @throws IOException if the file can't be read or isn't a model
+     */
+    public void loadModel(File file) throws IOException {
 
-        if (getMakeNoisyMissing()) {
-            result.add("-M");
+        ModelFile model = ModelFile.load(file);
+        if (model.isPartial()) {
+            throw new IOException(file + " is a partial model, reduce it "
+                    + "into a model with PartialCAIRAD first");
         }
+        m_coappearanceThreshold = model.getCoappearanceThreshold();
+        m_coappearanceScoreThreshold = model.getCoappearanceScoreThreshold();
+        setModel(null, model.getGeneralisation(), model.getCAM());
 
-        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Return the bins and dictionaries records are encoded with
+     *
+     * @return the generalisation, null if there is no model
+     */
+    Generalisation getGeneralisation() {
+        return m_generalisation;
+    }
 
+    /**
+     * Create the factory new CAMs get their count stores from, according to
+     * the storage option.
+     *
+     * @param numRows - number of records the CAMs will count
+     * @return the factory
+     */
+    CountStoreFactory countStoreFactory(long numRows) {
+        return new CountStoreFactory(storage(), numRows, m_sketchWidth, m_sketchDepth);
     }
 
     /**
-     * Perform noisy value identification on a record using the coappearance
-     * matrix. Works out expected coappearance for particular values, and
-     * indicates that a value could be noisy based on the actual coappearance.
+     * Return where CAM counts are held: the storage option, or the storage
+     * the last memory plan chose if the option is auto.
      *
-     * @param theRecord - record to perform noisy value identification on.
-     * @param index - index of theRecord in the dataset
-     * @return
+     * @return one of the STORAGE_ constants other than STORAGE_AUTO
      */
-    private boolean NVI(Instance theRecord, int index) {
-        boolean isNoisy = false;
+    int storage() {
+
+        if (m_storage != STORAGE_AUTO) {
+            return m_storage;
+        }
+        return m_memoryPlan != null && m_memoryPlan.isFeasible()
+                ? m_memoryPlan.getStorage()
+                : STORAGE_HEAP;
+
+    }
+
+    /**
+     * Work out the memory needed for the CAM and working set of a
+     * generalised dataset with the current options.
+     *
+     * @param domainSizes - number of codes of each generalised attribute
+     * @param numRows - number of records counted into the CAM
+     * @param rowsInMemory - number of records encoded and scored in memory,
+     * 0 when they are streamed
+     * @return the plan
+     */
+    private MemoryPlan memoryPlan(int[] domainSizes, long numRows, long rowsInMemory) {
+
+        //a parallel build split by rows holds a partial CAM per extra range
+        int numThreads = m_numThreads > 0
+                ? m_numThreads
+                : Runtime.getRuntime().availableProcessors();
+        int extraCAMs = 0;
+        if (numThreads > 1 && m_partitioning == PARTITION_ROWS
+                && rowsInMemory > CoappearanceMatrix.ROW_BLOCK_SIZE) {
+            long numBlocks = (rowsInMemory + CoappearanceMatrix.ROW_BLOCK_SIZE - 1)
+                    / CoappearanceMatrix.ROW_BLOCK_SIZE;
+            extraCAMs = (int) Math.min(numThreads, numBlocks) - 1;
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return new MemoryPlan(domainSizes, numRows, rowsInMemory, extraCAMs,
+                m_useVerdictTables, m_windowSize, m_halfLife, m_sketchWidth, m_sketchDepth,
+                m_storage,
+                (long) m_memoryBudget << 20, freeHeap);
+
+    }
+
+    /**
+     * Plan the memory for a generalised dataset, choosing the storage if it
+     * is auto. Called once the domain sizes are known and before the CAM is
+     * allocated.
+     *
+     * @param domainSizes - number of codes of each generalised attribute
+     * @param numRows - number of records counted into the CAM
+     * @param rowsInMemory - number of records encoded and scored in memory,
+     * 0 when they are streamed
+     * @throws Exception if there is a budget or the storage is auto, and
+     * the plan doesn't fit
+     */
+    void planMemory(int[] domainSizes, long numRows, long rowsInMemory) throws Exception {
+
+        m_memoryPlan = memoryPlan(domainSizes, numRows, rowsInMemory);
+        if ((m_storage == STORAGE_AUTO || m_memoryBudget > 0) && !m_memoryPlan.isFeasible()) {
+            throw new Exception("Not enough memory for the coappearance matrix\n"
+                    + m_memoryPlan.explain());
+        }
+
+    }
+
+    /**
+     * Work out the memory filtering a dataset would need with the current
+     * options, without building anything. The dataset is scanned once for
+     * the statistics its bins are worked out from.
+     *
+     * @param data - the dataset
+     * @return the plan, whose explain() reports what each storage needs
+     */
+    public MemoryPlan planMemory(Instances data) {
+        Generalisation generalisation = new Generalisation(data, DatasetStatistics.collect(data));
+        return memoryPlan(generalisation.codeDomainSizes(), data.numInstances(), data.numInstances());
+    }
+
+    /**
+     * Return the memory plan of the last dataset processed
+     *
+     * @return the plan, null if nothing has been processed
+     */
+    public MemoryPlan getMemoryPlan() {
+        return m_memoryPlan;
+    }
+
+    /**
+     * Whether a file option names a file, rather than being left at its
+     * default of a directory.
+     *
+     * @param file - the option's value
+     * @return whether or not the option is set
+     */
+    static boolean isModelFile(File file) {
+        return file != null && !file.isDirectory();
+    }
+
+    /**
+     * Reduce the CAM to the last windowSize records of the first batch and
+     * put those records in the window.
+     *
+     * @param data - the generalised first batch
+     */
+    private void startWindow(EncodedDataset data) {
 
-        int[] totalScores = new int[theRecord.numAttributes()];
+        int first = Math.max(0, data.numRows() - m_windowSize);
+        if (first > 0) {
+            m_CAM = new CoappearanceMatrix(data.domainSizes(), countStoreFactory(m_windowSize));
+            m_CAM.countRows(data, first, data.numRows());
+        }
+
+        //the verdict tables would be out of date as soon as the window moves
+        m_verdicts = null;
+
+        m_window = new RecordWindow(m_windowSize, data.numColumns());
+        int[] theRecord = new int[data.numColumns()];
+        for (int i = first; i < data.numRows(); i++) {
+            data.row(i, theRecord);
+            m_window.add(theRecord, null);
+        }
+
+    }
+
+    /**
+     * Score an instance that arrived after the first batch against the model
+     * built from the first batch, and convert it to the output format. If
+     * there is a window the instance is added to it first, and the oldest
+     * record taken out of the CAM. If there is a half-life the instance is
+     * counted into the decayed CAM first.
+     *
+     * @param instance - the instance to score
+     * @return the instance with its noisy values made missing, or with the
+     * noisy indicator prepended
+     */
+    private Instance convertInstance(Instance instance) {
+
+        int numAttributes = m_attributeDomainSizes.length;
+        int[] theRecord = new int[numAttributes];
+        for (int j = 0; j < numAttributes; j++) {
+            theRecord[j] = m_generalisation.encode(instance, j);
+        }
 
-        for (int j = 0; j < theRecord.numAttributes() - 1; j++) {
+        if (m_window != null) {
+            int[] evicted = new int[numAttributes];
+            if (m_window.add(theRecord, evicted)) {
+                m_CAM.removeRecord(evicted);
+            }
+            m_CAM.addRecord(theRecord);
+        } else if (m_decayedCAM != null) {
+            m_decayedCAM.addRecord(theRecord);
+        }
 
-            for (int k = j + 1; k < theRecord.numAttributes(); k++) {
+        NoisyAttributeMatrix noisy = new NoisyAttributeMatrix(1, numAttributes);
+        boolean isNoisy = NVI(theRecord, noisy, 0, new int[numAttributes]);
 
-                int x = (int) theRecord.value(j);
-                int y = (int) theRecord.value(k);
+        //copy the values across, string values into the output format's
+        //attributes
+        Instances outputFormat = outputFormatPeek();
+        int offset = m_makeNoisyMissing ? 0 : 1;
+        double[] values = new double[outputFormat.numAttributes()];
+        if (!m_makeNoisyMissing) {
+            values[0] = isNoisy ? 1 : 0;
+        }
+        for (int j = 0; j < numAttributes; j++) {
+            if (instance.isMissing(j) || (m_makeNoisyMissing && noisy.isNoisy(0, j))) {
+                values[j + offset] = Utils.missingValue();
+            } else if (instance.attribute(j).isString()) {
+                values[j + offset] = outputFormat.attribute(j + offset)
+                        .addStringValue(instance.stringValue(j));
+            } else {
+                values[j + offset] = instance.value(j);
+            }
+        }
 
-                //get frequencies of these values
-                double xf = m_CAM.valueAppearances[j][x];
-                double yf = m_CAM.valueAppearances[k][y];
+        return newInstance(instance, values);
 
-                //get attribute domain sizes
-                double Aj = m_attributeDomainSizes[j];
-                double Ak = m_attributeDomainSizes[k];
+    }
 
-                //get expected coappearance
-                double Exy = (xf / Ak) * m_coappearanceThreshold;
-                double Eyx = (yf / Aj) * m_coappearanceThreshold;
+    /**
+     * Create an instance with new values, of the same kind (dense or sparse)
+     * and weight as another.
+     *
+     * @param template - the instance to match
+     * @param values - the new values
+     * @return the new instance
+     */
+    private static Instance newInstance(Instance template, double[] values) {
+        return template instanceof SparseInstance
+                ? new SparseInstance(template.weight(), values)
+                : new DenseInstance(template.weight(), values);
+    }
 
-                //get actual coappearances
-                int Cxy = m_CAM.matrix[j][x][k][y];
+    /**
+     * Perform noisy value identification on a record using the coappearance
+     * matrix. Works out expected coappearance for particular values, and
+     * indicates that a value could be noisy based on the actual coappearance.
+     *
+     * @param theRecord - generalised codes of the record to perform noisy
+     * value identification on. A code of -1 stands for a value that wasn't
+     * seen when the CAM was built.
+     * @param noisy - noisy attribute matrix to mark the noisy values in
+     * @param index - row of the noisy attribute matrix for theRecord
+     * @param totalScores - working space for the score of each attribute, at
+     * least as long as theRecord
+     * @return whether or not any value of the record is noisy
+     */
+    boolean NVI(int[] theRecord, NoisyAttributeMatrix noisy, int index,
+            int[] totalScores) {
+        boolean isNoisy = false;
 
-                if (Cxy < Exy && Cxy < Eyx) {
-                    totalScores[j] += 2;
-                    totalScores[k] += 2;
-                } else if (Cxy > Exy && Cxy > Eyx) { //these are pointless statements but make it more readable
-                    totalScores[j] += 0;
-                    totalScores[k] += 0;
+        Arrays.fill(totalScores, 0);
+
+        int pair = 0;
+        for (int j = 0; j < theRecord.length - 1; j++) {
+
+            int x = theRecord[j];
+
+            for (int k = j + 1; k < theRecord.length; k++) {
+
+                int y = theRecord[k];
+                int p = pair++;
+                long cell = (long) x * m_CAM.domainSizes[k] + y;
+                int score;
+
+                if (m_decayedCAM != null) {
+                    //the counts fade with age, and so do the expected
+                    //coappearances
+                    double xf = x < 0 ? 0 : m_decayedCAM.appearances(j, x);
+                    double yf = y < 0 ? 0 : m_decayedCAM.appearances(k, y);
+                    double Exy = (xf / m_attributeDomainSizes[k]) * m_coappearanceThreshold;
+                    double Eyx = (yf / m_attributeDomainSizes[j]) * m_coappearanceThreshold;
+                    double Cxy = x < 0 || y < 0 ? 0
+                            : m_decayedCAM.coappearances(p, cell);
+                    score = coappearanceScore(Cxy, Exy, Eyx);
+                } else if (x < 0 || y < 0) {
+                    //a value that wasn't seen when the CAM was built has
+                    //never appeared, or coappeared with anything
+                    double xf = x < 0 ? 0 : m_CAM.valueAppearances[j][x];
+                    double yf = y < 0 ? 0 : m_CAM.valueAppearances[k][y];
+                    double Exy = (xf / m_attributeDomainSizes[k]) * m_coappearanceThreshold;
+                    double Eyx = (yf / m_attributeDomainSizes[j]) * m_coappearanceThreshold;
+                    score = coappearanceScore(0, Exy, Eyx);
+                } else if (m_verdicts != null) {
+                    //the score only depends on x and y, so has been worked out
+                    //already
+                    score = m_verdicts.score(p, cell);
                 } else {
-                    totalScores[j] += 1;
-                    totalScores[k] += 1;
+                    //get frequencies of these values
+                    double xf = m_CAM.valueAppearances[j][x];
+                    double yf = m_CAM.valueAppearances[k][y];
+
+                    //get attribute domain sizes
+                    double Aj = m_attributeDomainSizes[j];
+                    double Ak = m_attributeDomainSizes[k];
+
+                    //get expected coappearance
+                    double Exy = (xf / Ak) * m_coappearanceThreshold;
+                    double Eyx = (yf / Aj) * m_coappearanceThreshold;
+
+                    //get actual coappearances
+                    long Cxy = m_CAM.counts.get(p, cell);
+
+                    score = coappearanceScore(Cxy, Exy, Eyx);
                 }
 
+                totalScores[j] += score;
+                totalScores[k] += score;
+
             } //end attr k loop
 
         } //end attr j loop
 
-        for (int j = 0; j < theRecord.numAttributes(); j++) {
+        for (int j = 0; j < theRecord.length; j++) {
 
-            if (totalScores[j] / ((theRecord.numAttributes() - 1.0) * 2.0) > m_coappearanceScoreThreshold) {
+            if (totalScores[j] / ((theRecord.length - 1.0) * 2.0) > m_coappearanceScoreThreshold) {
                 isNoisy = true;
-                m_noisyAttributeMatrix[index][j] = 1;
+                noisy.set(index, j);
             }
 
         }
@@ -558,84 +2265,301 @@ public class CAIRAD extends SimpleBatchFilter implements UnsupervisedFilter {
     }
 
     /**
-     * Class for a coapparance matrix.
+     * Class for a coapparance matrix. Coappearances are symmetric, so only the
+     * upper triangle (attribute j &lt; attribute k) is stored. Each attribute
+     * pair owns a block of domainSize[j] * domainSize[k] cells laid out
+     * row-major on the value of attribute j, held in a CountStore.
      */
-    final class CoappearanceMatrix {
+    static final class CoappearanceMatrix implements Serializable {
+
+        /**
+         * For serialization
+         */
+        static final long serialVersionUID = -5810232740619125813L;
+
+        /**
+         * Number of rows read at a time when building the CAM
+         */
+        static final int ROW_BLOCK_SIZE = 1024;
+
+        /**
+         * The actual CAM. The count of coappearances between value x of
+         * attribute j and value y of attribute k, j &lt; k, is held in the
+         * block of pair pairIndex(j, k) at index x * domainSizes[k] + y.
+         */
+        CountStore counts;
 
         /**
-         * The actual CAM. Dimensions are:
-         * [attribute_i][att_i:value_a][attribute_j][att_j:value_b] the values
-         * count the number of coappearances between value a of attribute i and
-         * value b of attribute j.
+         * Where the counts of partial CAMs made from this one are held
          */
-        public int[][][][] matrix;
+        CountStoreFactory storeFactory;
+
+        /**
+         * Number of values in each (generalised) attribute domain.
+         */
+        int[] domainSizes;
 
         /**
          * Counter of how many times value_a of attribute_i appears. Dimensions:
          * [attribute_i][att_i:value_a]
          */
-        public int[][] valueAppearances;
+        public long[][] valueAppearances;
+
+        /**
+         * Initialise an empty CAM
+         *
+         * @param domainSizes - number of values in each generalised attribute
+         */
+        CoappearanceMatrix(int[] domainSizes) {
+            this(domainSizes, new CountStoreFactory(STORAGE_HEAP, 0, 0, 0));
+        }
+
+        /**
+         * Initialise an empty CAM with counts held in a given kind of store
+         *
+         * @param domainSizes - number of values in each generalised attribute
+         * @param storeFactory - creates the count store
+         */
+        CoappearanceMatrix(int[] domainSizes, CountStoreFactory storeFactory) {
+
+            this.domainSizes = domainSizes.clone();
+            this.storeFactory = storeFactory;
+            allocate();
+
+        }
+
+        /**
+         * Wrap counts that have already been made, such as ones loaded from a
+         * saved model.
+         *
+         * @param domainSizes - number of values in each generalised attribute
+         * @param valueAppearances - appearances of each value of each
+         * attribute
+         * @param counts - the coappearance counts
+         */
+        CoappearanceMatrix(int[] domainSizes, long[][] valueAppearances,
+                CountStore counts) {
+
+            this.domainSizes = domainSizes.clone();
+            this.valueAppearances = valueAppearances;
+            this.counts = counts;
+            this.storeFactory = new CountStoreFactory(STORAGE_HEAP, 0, 0, 0);
+
+        }
 
         /**
          * Initialise CAM on dataset
          *
-         * @param dataset
+         * @param dataset - generalised dataset
          */
-        CoappearanceMatrix(Instances dataset) {
+        CoappearanceMatrix(EncodedDataset dataset) {
 
-            matrix = new int[dataset.numAttributes()][][][];
-            valueAppearances = new int[dataset.numAttributes()][];
+            this(dataset.domainSizes());
             constructCAM(dataset);
 
         }
 
+        /**
+         * Allocate the counters.
+         */
+        private void allocate() {
+
+            valueAppearances = new long[domainSizes.length][];
+            for (int j = 0; j < domainSizes.length; j++) {
+                valueAppearances[j] = new long[domainSizes[j]];
+            }
+            counts = storeFactory.create(CountStore.pairSizes(domainSizes));
+
+        }
+
+        /**
+         * Index of the attribute pair (j, k), j &lt; k, in the count store.
+         *
+         * @param j - first attribute index
+         * @param k - second attribute index, greater than j
+         * @return the pair's index
+         */
+        int pairIndex(int j, int k) {
+            return j * (2 * domainSizes.length - j - 1) / 2 + (k - j - 1);
+        }
+
+        /**
+         * Number of times value x of attribute j coappears with value y of
+         * attribute k.
+         *
+         * @param j - first attribute index
+         * @param x - value of attribute j
+         * @param k - second attribute index, different to j
+         * @param y - value of attribute k
+         * @return the number of coappearances
+         */
+        public long coappearances(int j, int x, int k, int y) {
+            if (j > k) {
+                return coappearances(k, y, j, x);
+            }
+            return counts.get(pairIndex(j, k), (long) x * domainSizes[k] + y);
+        }
+
         /**
          * Build the coappearance matrix on ds.
          *
          * @param ds
          */
-        public void constructCAM(Instances ds) {
+        public void constructCAM(EncodedDataset ds) {
+            countRows(ds, 0, ds.numRows());
+        }
 
-            //initialise the arrays to hold coappearances
-            for (int i = 0; i < ds.numAttributes(); i++) {
+        /**
+         * Build the coappearance matrix on ds using the threads of a pool.
+         * <p/>
+         * With PARTITION_ROWS the rows are split into one range per thread,
+         * each range is counted into its own partial CAM and the partials are
+         * merged pairwise back up the tree of tasks.
+         * <p/>
+         * With PARTITION_PAIRS each thread owns a disjoint run of attribute
+         * pairs and scans every row for just the columns of those pairs,
+         * counting straight into this matrix. There is no merge, and memory
+         * stays at one CAM whatever the number of threads.
+         * <p/>
+         * Either way the counts are identical to the serial build.
+         *
+         * @param ds
+         * @param pool - pool to run on, or null to build serially
+         * @param partitioning - PARTITION_ROWS or PARTITION_PAIRS
+         */
+        void constructCAM(EncodedDataset ds, ForkJoinPool pool, int partitioning) {
+
+            if (pool == null || pool.getParallelism() <= 1) {
+                constructCAM(ds);
+            } else if (partitioning == PARTITION_PAIRS) {
+                int numPairs = counts.numPairs();
+                int numTasks = Math.max(1, Math.min(pool.getParallelism(), numPairs));
+                pool.invoke(new PairRangeCount(this, ds, 0, numTasks, numTasks));
+            } else if (ds.numRows() <= ROW_BLOCK_SIZE) {
+                constructCAM(ds);
+            } else {
+                int numRanges = Math.min(pool.getParallelism(), (ds.numRows() + ROW_BLOCK_SIZE - 1) / ROW_BLOCK_SIZE);
+                int rangeSize = (ds.numRows() + numRanges - 1) / numRanges;
+                pool.invoke(new RowRangeCount(this, ds, 0, numRanges, rangeSize, storeFactory));
+            }
 
-                //set up attribute i's set of attribute values
-                matrix[i] = new int[ds.attributeStats(i).nominalCounts.length][][];
-                valueAppearances[i] = new int[ds.attributeStats(i).nominalCounts.length];
+        }
 
-                for (int j = 0; j < matrix[i].length; j++) {
+        /**
+         * Add the counts of another CAM over the same generalised attributes to
+         * this one, cell by cell. CAMs counted over separate parts of a
+         * dataset with the same generalisation (the partial CAMs of a
+         * parallel build, or the partial models of data shards) add up to the
+         * CAM of the whole dataset.
+         *
+         * @param other - the CAM to add
+         * @throws IllegalArgumentException if the other CAM's attribute
+         * domains differ
+         */
+        void merge(CoappearanceMatrix other) {
 
-                    //set up attribute i value j's counts for each attribute
-                    matrix[i][j] = new int[ds.numAttributes()][];
+            if (!Arrays.equals(domainSizes, other.domainSizes)) {
+                throw new IllegalArgumentException("Can't merge coappearance "
+                        + "matrices over different attribute domains");
+            }
+            counts.addAll(other.counts);
+            for (int j = 0; j < valueAppearances.length; j++) {
+                for (int x = 0; x < valueAppearances[j].length; x++) {
+                    valueAppearances[j][x] += other.valueAppearances[j][x];
+                }
+            }
 
-                    for (int k = 0; k < matrix[i][j].length; k++) {
+        }
 
-                        matrix[i][j][k] = new int[ds.attributeStats(k).nominalCounts.length];
+        /**
+         * Count one record into the matrix.
+         *
+         * @param record - codes of the record
+         */
+        void addRecord(int[] record) {
+            updateRecord(record, 1);
+        }
 
-                    } //end attribute k loop
+        /**
+         * Take one record that was counted into the matrix back out again.
+         *
+         * @param record - codes of the record
+         */
+        void removeRecord(int[] record) {
+            updateRecord(record, -1);
+        }
 
-                } //end attribute i value j loop
+        /**
+         * Add delta to the appearances of each of a record's values and to
+         * the coappearances of each pair of them. A code of -1 (a value that
+         * wasn't seen when the bins were built) has nowhere to be counted, so
+         * is skipped.
+         *
+         * @param record - codes of the record
+         * @param delta - amount to add
+         */
+        private void updateRecord(int[] record, int delta) {
 
-            } //end attribute i loop
+            int pair = 0;
+            for (int j = 0; j < record.length; j++) {
 
-            //iterate over the dataset
-            for (int i = 0; i < ds.numInstances(); i++) {
+                int x = record[j];
+                if (x < 0) {
+                    pair += record.length - j - 1;
+                    continue;
+                }
+                valueAppearances[j][x] += delta;
 
-                Instance theRecord = ds.instance(i);
+                for (int k = j + 1; k < record.length; k++) {
+                    int p = pair++;
+                    int y = record[k];
+                    if (y >= 0) {
+                        counts.add(p, (long) x * domainSizes[k] + y, delta);
+                    }
+                }
+
+            }
+
+        }
+
+        /**
+         * Count a range of rows of ds into the matrix. Rows are read a block
+         * at a time, column by column, and each attribute pair's counts are
+         * then updated for the whole block before moving to the next pair.
+         *
+         * @param ds
+         * @param firstRow - first row to count, inclusive
+         * @param lastRow - last row to count, exclusive
+         */
+        void countRows(EncodedDataset ds, int firstRow, int lastRow) {
+
+            int numAttributes = ds.numColumns();
+            int[][] block = new int[numAttributes][ROW_BLOCK_SIZE];
 
-                for (int attrOneIndex = 0; attrOneIndex < ds.numAttributes(); attrOneIndex++) {
+            //iterate over the dataset
+            for (int from = firstRow; from < lastRow; from += ROW_BLOCK_SIZE) {
 
-                    double attrOneValue = theRecord.value(attrOneIndex);
-                    valueAppearances[attrOneIndex][(int) attrOneValue]++;
+                int to = Math.min(from + ROW_BLOCK_SIZE, lastRow);
+                int blockSize = to - from;
 
-                    for (int attrTwoIndex = 0; attrTwoIndex < ds.numAttributes(); attrTwoIndex++) {
+                for (int attrIndex = 0; attrIndex < numAttributes; attrIndex++) {
+                    ds.column(attrIndex, from, to, block[attrIndex]);
+                    long[] appearances = valueAppearances[attrIndex];
+                    int[] values = block[attrIndex];
+                    for (int r = 0; r < blockSize; r++) {
+                        appearances[values[r]]++;
+                    }
+                }
 
-                        if (attrOneIndex != attrTwoIndex) { //obviously don't do the second one
-                            double attrTwoValue = theRecord.value(attrTwoIndex);
+                int pair = 0;
+                for (int attrOneIndex = 0; attrOneIndex < numAttributes - 1; attrOneIndex++) {
 
-                            matrix[attrOneIndex][(int) attrOneValue][attrTwoIndex][(int) attrTwoValue]++;
+                    int[] attrOneValues = block[attrOneIndex];
 
-                        }
+                    for (int attrTwoIndex = attrOneIndex + 1; attrTwoIndex < numAttributes; attrTwoIndex++) {
+
+                        counts.countBlock(pair++, attrOneValues, block[attrTwoIndex],
+                                domainSizes[attrTwoIndex], blockSize);
 
                     } //end of second attr loop
 
@@ -645,6 +2569,228 @@ public class CAIRAD extends SimpleBatchFilter implements UnsupervisedFilter {
 
         }
 
+        /**
+         * Counts a run of row ranges into a partial CAM. A task covering more
+         * than one range splits itself in two, counts the first half into its
+         * own partial and the second half into a fresh one, then merges the
+         * second into the first.
+         */
+        static final class RowRangeCount extends RecursiveTask<CoappearanceMatrix> {
+
+            /**
+             * For serialization
+             */
+            static final long serialVersionUID = 2231780926367745561L;
+
+            /**
+             * Partial CAM to count into, null to allocate one
+             */
+            private final CoappearanceMatrix m_target;
+
+            /**
+             * Dataset being counted
+             */
+            private final EncodedDataset m_dataset;
+
+            /**
+             * First range covered, inclusive
+             */
+            private final int m_firstRange;
+
+            /**
+             * Last range covered, exclusive
+             */
+            private final int m_lastRange;
+
+            /**
+             * Number of rows in each range
+             */
+            private final int m_rangeSize;
+
+            /**
+             * Creates the count stores of the partial CAMs allocated
+             */
+            private final CountStoreFactory m_storeFactory;
+
+            /**
+             * Set up the task.
+             *
+             * @param target - partial CAM to count into, null to allocate one
+             * @param dataset - dataset being counted
+             * @param firstRange - first range covered, inclusive
+             * @param lastRange - last range covered, exclusive
+             * @param rangeSize - number of rows in each range
+             * @param storeFactory - creates the count stores of partial CAMs
+             */
+            RowRangeCount(CoappearanceMatrix target, EncodedDataset dataset,
+                    int firstRange, int lastRange, int rangeSize,
+                    CountStoreFactory storeFactory) {
+                m_target = target;
+                m_storeFactory = storeFactory;
+                m_dataset = dataset;
+                m_firstRange = firstRange;
+                m_lastRange = lastRange;
+                m_rangeSize = rangeSize;
+            }
+
+            @Override
+            protected CoappearanceMatrix compute() {
+
+                CoappearanceMatrix partial = m_target != null
+                        ? m_target
+                        : new CoappearanceMatrix(m_dataset.domainSizes(), m_storeFactory);
+
+                if (m_lastRange - m_firstRange == 1) {
+                    int from = m_firstRange * m_rangeSize;
+                    int to = Math.min(from + m_rangeSize, m_dataset.numRows());
+                    partial.countRows(m_dataset, from, to);
+                    return partial;
+                }
+
+                int middle = (m_firstRange + m_lastRange) >>> 1;
+                RowRangeCount second = new RowRangeCount(null, m_dataset, middle, m_lastRange,
+                        m_rangeSize, m_storeFactory);
+                second.fork();
+                new RowRangeCount(partial, m_dataset, m_firstRange, middle, m_rangeSize,
+                        m_storeFactory).compute();
+                partial.merge(second.join());
+                return partial;
+
+            }
+
+        }
+
+        /**
+         * Counts a share of the attribute pairs, and of the attributes' value
+         * appearances, straight into the CAM. The pairs and attributes are
+         * each split into numShares contiguous runs, and a task covering more
+         * than one share splits itself in two.
+         */
+        static final class PairRangeCount extends RecursiveAction {
+
+            /**
+             * For serialization
+             */
+            static final long serialVersionUID = -4650923375193104012L;
+
+            /**
+             * CAM to count into
+             */
+            private final CoappearanceMatrix m_target;
+
+            /**
+             * Dataset being counted
+             */
+            private final EncodedDataset m_dataset;
+
+            /**
+             * First share covered, inclusive
+             */
+            private final int m_firstShare;
+
+            /**
+             * Last share covered, exclusive
+             */
+            private final int m_lastShare;
+
+            /**
+             * Number of shares the work is split into
+             */
+            private final int m_numShares;
+
+            /**
+             * Set up the task.
+             *
+             * @param target - CAM to count into
+             * @param dataset - dataset being counted
+             * @param firstShare - first share covered, inclusive
+             * @param lastShare - last share covered, exclusive
+             * @param numShares - number of shares the work is split into
+             */
+            PairRangeCount(CoappearanceMatrix target, EncodedDataset dataset,
+                    int firstShare, int lastShare, int numShares) {
+                m_target = target;
+                m_dataset = dataset;
+                m_firstShare = firstShare;
+                m_lastShare = lastShare;
+                m_numShares = numShares;
+            }
+
+            @Override
+            protected void compute() {
+
+                if (m_lastShare - m_firstShare > 1) {
+                    int middle = (m_firstShare + m_lastShare) >>> 1;
+                    invokeAll(new PairRangeCount(m_target, m_dataset, m_firstShare, middle, m_numShares),
+                            new PairRangeCount(m_target, m_dataset, middle, m_lastShare, m_numShares));
+                    return;
+                }
+
+                int numAttributes = m_dataset.numColumns();
+                int numPairs = m_target.counts.numPairs();
+                int firstPair = (int) ((long) numPairs * m_firstShare / m_numShares);
+                int lastPair = (int) ((long) numPairs * m_lastShare / m_numShares);
+                int firstAttribute = (int) ((long) numAttributes * m_firstShare / m_numShares);
+                int lastAttribute = (int) ((long) numAttributes * m_lastShare / m_numShares);
+
+                //work out the attributes of each pair in the share, and which
+                //columns need to be read
+                int[] attrOneIndices = new int[lastPair - firstPair];
+                int[] attrTwoIndices = new int[lastPair - firstPair];
+                boolean[] needed = new boolean[numAttributes];
+                int pair = 0;
+                for (int j = 0; j < numAttributes - 1; j++) {
+                    for (int k = j + 1; k < numAttributes; k++, pair++) {
+                        if (pair >= firstPair && pair < lastPair) {
+                            attrOneIndices[pair - firstPair] = j;
+                            attrTwoIndices[pair - firstPair] = k;
+                            needed[j] = true;
+                            needed[k] = true;
+                        }
+                    }
+                }
+                for (int j = firstAttribute; j < lastAttribute; j++) {
+                    needed[j] = true;
+                }
+
+                int[][] block = new int[numAttributes][];
+                for (int j = 0; j < numAttributes; j++) {
+                    if (needed[j]) {
+                        block[j] = new int[ROW_BLOCK_SIZE];
+                    }
+                }
+
+                for (int from = 0; from < m_dataset.numRows(); from += ROW_BLOCK_SIZE) {
+
+                    int to = Math.min(from + ROW_BLOCK_SIZE, m_dataset.numRows());
+                    int blockSize = to - from;
+
+                    for (int j = 0; j < numAttributes; j++) {
+                        if (needed[j]) {
+                            m_dataset.column(j, from, to, block[j]);
+                        }
+                    }
+
+                    for (int j = firstAttribute; j < lastAttribute; j++) {
+                        long[] appearances = m_target.valueAppearances[j];
+                        int[] values = block[j];
+                        for (int r = 0; r < blockSize; r++) {
+                            appearances[values[r]]++;
+                        }
+                    }
+
+                    for (int p = 0; p < attrOneIndices.length; p++) {
+                        m_target.counts.countBlock(firstPair + p, block[attrOneIndices[p]],
+                                block[attrTwoIndices[p]], m_target.domainSizes[attrTwoIndices[p]],
+                                blockSize);
+                    }
+
+                }
+
+            }
+
+        }
+
     }
 
     /**
@@ -704,7 +2850,16 @@ public class CAIRAD extends SimpleBatchFilter implements UnsupervisedFilter {
      * @param argv should contain arguments to the filter: use -h for help
      */
     public static void main(String[] argv) {
-        runFilter(new CAIRAD(), argv);
+
+        //so a long run can be watched from a JMX client such as JConsole
+        CAIRAD filter = new CAIRAD();
+        try {
+            filter.getMetrics().registerMBean();
+        } catch (JMException e) {
+            System.err.println("Metrics not registered with JMX: " + e.getMessage());
+        }
+        runFilter(filter, argv);
+
     }
 
 }
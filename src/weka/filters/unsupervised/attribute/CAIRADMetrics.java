@@ -0,0 +1,554 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    CAIRADMetrics.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * What the last call to CAIRAD's process took, phase by phase, and what it
+ * built and found. Each of the four phases (generalising the dataset,
+ * building the coappearance matrix, scoring the records with NVI and
+ * packaging the output) records its wall clock time, CPU time and the bytes
+ * it allocated on the Java heap. CPU time and allocation are summed over the
+ * calling thread and the threads of the filter's pool, so they cover
+ * parallel builds; they are -1 where the JVM can't measure them. When a
+ * model is loaded rather than trained, loading it counts as building the
+ * coappearance matrix and encoding the records as scoring them.
+ * <p/>
+ * The metrics can be read with CAIRAD.getMetrics(), over JMX once
+ * registerMBean has been called, or printed after each batch with CAIRAD's
+ * -V option.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+public class CAIRADMetrics implements CAIRADMetricsMBean, Serializable {
+
+    /**
+     * For serialization
+     */
+    static final long serialVersionUID = 5270914738465020391L;
+
+    /**
+     * Gathering the statistics, working out the bins and encoding the data
+     */
+    public static final int GENERALISE = 0;
+
+    /**
+     * Building (or loading) the coappearance matrix
+     */
+    public static final int BUILD_CAM = 1;
+
+    /**
+     * Scoring every record with NVI
+     */
+    public static final int SCORE = 2;
+
+    /**
+     * Copying the records into the output dataset
+     */
+    public static final int OUTPUT = 3;
+
+    /**
+     * Names of the phases, by index
+     */
+    private static final String[] PHASE_NAMES = {"generalise", "build CAM", "score", "output"};
+
+    /**
+     * Wall clock time of each phase, in nanoseconds
+     */
+    private final long[] m_wallNanos = new long[PHASE_NAMES.length];
+
+    /**
+     * CPU time of each phase, in nanoseconds
+     */
+    private final long[] m_cpuNanos = new long[PHASE_NAMES.length];
+
+    /**
+     * Bytes allocated in each phase
+     */
+    private final long[] m_allocatedBytes = new long[PHASE_NAMES.length];
+
+    /**
+     * Wall clock time of the whole call to process, in nanoseconds
+     */
+    private long m_totalWallNanos;
+
+    /**
+     * Number of cells in the coappearance matrix
+     */
+    private long m_camCells;
+
+    /**
+     * Heap bytes taken up by the coappearance counts
+     */
+    private long m_camHeapBytes;
+
+    /**
+     * Native bytes taken up by the coappearance counts
+     */
+    private long m_camNativeBytes;
+
+    /**
+     * Number of records scored
+     */
+    private long m_rowsScored;
+
+    /**
+     * Number of noisy values found
+     */
+    private long m_noisyValues;
+
+    /**
+     * Number of records with a noisy value
+     */
+    private long m_noisyRecords;
+
+    /**
+     * Threads whose time is counted: the one calling process and the
+     * workers of its pool
+     */
+    private transient ArrayList<Thread> m_threads;
+
+    /**
+     * The phase being timed, -1 for none
+     */
+    private transient int m_phase = -1;
+
+    /**
+     * Wall clock time the phase started at
+     */
+    private transient long m_phaseStart;
+
+    /**
+     * Wall clock time process started at
+     */
+    private transient long m_processStart;
+
+    /**
+     * Ids of the threads counted when the phase started
+     */
+    private transient long[] m_startIds;
+
+    /**
+     * CPU time of each of those threads when the phase started
+     */
+    private transient long[] m_startCpu;
+
+    /**
+     * Bytes allocated by each of those threads when the phase started
+     */
+    private transient long[] m_startAllocated;
+
+    /**
+     * Name the metrics are registered under, null if they aren't
+     */
+    private transient ObjectName m_name;
+
+    /**
+     * Clear everything and start timing a call to process on the current
+     * thread.
+     */
+    synchronized void start() {
+
+        Arrays.fill(m_wallNanos, 0);
+        Arrays.fill(m_cpuNanos, 0);
+        Arrays.fill(m_allocatedBytes, 0);
+        m_totalWallNanos = 0;
+        m_camCells = 0;
+        m_camHeapBytes = 0;
+        m_camNativeBytes = 0;
+        m_rowsScored = 0;
+        m_noisyValues = 0;
+        m_noisyRecords = 0;
+
+        m_threads = new ArrayList<Thread>();
+        m_threads.add(Thread.currentThread());
+        m_phase = -1;
+        m_processStart = System.nanoTime();
+
+    }
+
+    /**
+     * Stop timing the call to process.
+     */
+    synchronized void finish() {
+        m_totalWallNanos = System.nanoTime() - m_processStart;
+    }
+
+    /**
+     * Start timing a phase, ending the one being timed if there is one.
+     *
+     * @param phase - GENERALISE, BUILD_CAM, SCORE or OUTPUT
+     */
+    synchronized void startPhase(int phase) {
+
+        endPhase();
+        if (m_threads == null) {
+            start();
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        m_startIds = new long[m_threads.size()];
+        m_startCpu = new long[m_startIds.length];
+        m_startAllocated = new long[m_startIds.length];
+        for (int i = 0; i < m_startIds.length; i++) {
+            m_startIds[i] = m_threads.get(i).getId();
+            m_startCpu[i] = cpuTime(threads, m_startIds[i]);
+            m_startAllocated[i] = allocatedBytes(threads, m_startIds[i]);
+        }
+        m_phase = phase;
+        m_phaseStart = System.nanoTime();
+
+    }
+
+    /**
+     * Stop timing the phase being timed, if there is one, adding what it
+     * took to the phase's totals.
+     */
+    synchronized void endPhase() {
+
+        if (m_phase < 0 || m_threads == null) {
+            return;
+        }
+
+        m_wallNanos[m_phase] += System.nanoTime() - m_phaseStart;
+
+        //a worker started during the phase has spent all of its time in it.
+        //A thread that has already exited reads -1 and can't be counted,
+        //but a pool's idle workers live far longer than a phase
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpu = 0;
+        long allocated = 0;
+        for (Thread thread : m_threads) {
+            long id = thread.getId();
+            long startCpu = 0;
+            long startAllocated = 0;
+            for (int i = 0; i < m_startIds.length; i++) {
+                if (m_startIds[i] == id) {
+                    startCpu = Math.max(0, m_startCpu[i]);
+                    startAllocated = Math.max(0, m_startAllocated[i]);
+                    break;
+                }
+            }
+            long endCpu = cpuTime(threads, id);
+            if (endCpu >= startCpu) {
+                cpu += endCpu - startCpu;
+            }
+            long endAllocated = allocatedBytes(threads, id);
+            if (endAllocated >= startAllocated) {
+                allocated += endAllocated - startAllocated;
+            }
+        }
+        m_cpuNanos[m_phase] = isCpuTimeMeasured(threads) ? m_cpuNanos[m_phase] + cpu : -1;
+        m_allocatedBytes[m_phase] = isAllocationMeasured(threads)
+                ? m_allocatedBytes[m_phase] + allocated : -1;
+        m_phase = -1;
+
+    }
+
+    /**
+     * Return whether the JVM measures the CPU time of threads.
+     *
+     * @param threads - the JVM's thread bean
+     * @return true if it does
+     */
+    private static boolean isCpuTimeMeasured(ThreadMXBean threads) {
+        return threads.isThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+    }
+
+    /**
+     * Return whether the JVM measures the bytes threads allocate.
+     *
+     * @param threads - the JVM's thread bean
+     * @return true if it does
+     */
+    private static boolean isAllocationMeasured(ThreadMXBean threads) {
+
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return false;
+        }
+        com.sun.management.ThreadMXBean hotSpot = (com.sun.management.ThreadMXBean) threads;
+        return hotSpot.isThreadAllocatedMemorySupported() && hotSpot.isThreadAllocatedMemoryEnabled();
+
+    }
+
+    /**
+     * Return the CPU time of a thread.
+     *
+     * @param threads - the JVM's thread bean
+     * @param id - id of the thread
+     * @return nanoseconds, -1 if it can't be measured or the thread has
+     * exited
+     */
+    private static long cpuTime(ThreadMXBean threads, long id) {
+        return isCpuTimeMeasured(threads) ? threads.getThreadCpuTime(id) : -1;
+    }
+
+    /**
+     * Return the bytes a thread has allocated on the heap.
+     *
+     * @param threads - the JVM's thread bean
+     * @param id - id of the thread
+     * @return bytes, -1 if they can't be measured or the thread has exited
+     */
+    private static long allocatedBytes(ThreadMXBean threads, long id) {
+        return isAllocationMeasured(threads)
+                ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(id) : -1;
+    }
+
+    /**
+     * Return a factory for pool workers whose time is counted in the
+     * phases.
+     *
+     * @return the factory
+     */
+    ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory() {
+
+        return new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                synchronized (CAIRADMetrics.this) {
+                    if (m_threads != null) {
+                        m_threads.add(thread);
+                    }
+                }
+                return thread;
+            }
+        };
+
+    }
+
+    /**
+     * Record the size of the coappearance matrix.
+     *
+     * @param cells - number of cells
+     * @param heapBytes - heap bytes taken up by the counts
+     * @param nativeBytes - native bytes taken up by the counts
+     */
+    synchronized void setCAM(long cells, long heapBytes, long nativeBytes) {
+        m_camCells = cells;
+        m_camHeapBytes = heapBytes;
+        m_camNativeBytes = nativeBytes;
+    }
+
+    /**
+     * Record what scoring found.
+     *
+     * @param noisy - the noisy values of the records scored
+     */
+    synchronized void setScored(NoisyAttributeMatrix noisy) {
+
+        m_rowsScored = noisy.numRecords();
+        m_noisyValues = noisy.numNoisyValues();
+        long noisyRecords = 0;
+        for (int i = noisy.nextNoisyRecord(0); i >= 0; i = noisy.nextNoisyRecord(i + 1)) {
+            noisyRecords++;
+        }
+        m_noisyRecords = noisyRecords;
+
+    }
+
+    /**
+     * Register the metrics with the platform MBean server, so they can be
+     * read with JConsole or any other JMX client while the filter runs.
+     *
+     * @return the name they are registered under
+     * @throws JMException if they can't be registered
+     */
+    public synchronized ObjectName registerMBean() throws JMException {
+
+        if (m_name == null) {
+            ObjectName name = new ObjectName(getClass().getPackage().getName()
+                    + ":type=CAIRAD,id=" + Integer.toHexString(System.identityHashCode(this)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            m_name = name;
+        }
+        return m_name;
+
+    }
+
+    /**
+     * Unregister the metrics from the platform MBean server, if they are
+     * registered.
+     *
+     * @throws JMException if they can't be unregistered
+     */
+    public synchronized void unregisterMBean() throws JMException {
+
+        if (m_name != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(m_name)) {
+                server.unregisterMBean(m_name);
+            }
+            m_name = null;
+        }
+
+    }
+
+    /**
+     * Return the wall clock time of a phase
+     *
+     * @param phase - GENERALISE, BUILD_CAM, SCORE or OUTPUT
+     * @return nanoseconds
+     */
+    public synchronized long getWallNanos(int phase) {
+        return m_wallNanos[phase];
+    }
+
+    /**
+     * Return the CPU time of a phase
+     *
+     * @param phase - GENERALISE, BUILD_CAM, SCORE or OUTPUT
+     * @return nanoseconds, -1 if the JVM can't measure it
+     */
+    public synchronized long getCpuNanos(int phase) {
+        return m_cpuNanos[phase];
+    }
+
+    /**
+     * Return the bytes allocated in a phase
+     *
+     * @param phase - GENERALISE, BUILD_CAM, SCORE or OUTPUT
+     * @return bytes, -1 if the JVM can't measure them
+     */
+    public synchronized long getAllocatedBytes(int phase) {
+        return m_allocatedBytes[phase];
+    }
+
+    @Override
+    public String[] getPhases() {
+        return PHASE_NAMES.clone();
+    }
+
+    @Override
+    public synchronized long[] getWallNanos() {
+        return m_wallNanos.clone();
+    }
+
+    @Override
+    public synchronized long[] getCpuNanos() {
+        return m_cpuNanos.clone();
+    }
+
+    @Override
+    public synchronized long[] getAllocatedBytes() {
+        return m_allocatedBytes.clone();
+    }
+
+    @Override
+    public synchronized long getTotalWallNanos() {
+        return m_totalWallNanos;
+    }
+
+    @Override
+    public synchronized long getCAMCells() {
+        return m_camCells;
+    }
+
+    @Override
+    public synchronized long getCAMHeapBytes() {
+        return m_camHeapBytes;
+    }
+
+    @Override
+    public synchronized long getCAMNativeBytes() {
+        return m_camNativeBytes;
+    }
+
+    @Override
+    public synchronized long getRowsScored() {
+        return m_rowsScored;
+    }
+
+    @Override
+    public synchronized long getNoisyValues() {
+        return m_noisyValues;
+    }
+
+    @Override
+    public synchronized long getNoisyRecords() {
+        return m_noisyRecords;
+    }
+
+    @Override
+    public String getSummary() {
+        return toString();
+    }
+
+    /**
+     * Format nanoseconds as milliseconds, n/a if unmeasured.
+     *
+     * @param nanos - the time
+     * @return the formatted time
+     */
+    private static String millis(long nanos) {
+        return nanos < 0 ? "n/a" : String.format("%.1f", nanos / 1e6);
+    }
+
+    /**
+     * Format bytes as megabytes, n/a if unmeasured.
+     *
+     * @param bytes - the bytes
+     * @return the formatted size
+     */
+    private static String megabytes(long bytes) {
+        return bytes < 0 ? "n/a" : String.format("%.1f", bytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Return a table of the phases followed by the sizes and counts.
+     *
+     * @return the summary
+     */
+    @Override
+    public synchronized String toString() {
+
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("%-12s %12s %12s %14s%n", "Phase", "Wall (ms)",
+                "CPU (ms)", "Allocated (MB)"));
+        for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+            result.append(String.format("%-12s %12s %12s %14s%n", PHASE_NAMES[phase],
+                    millis(m_wallNanos[phase]), millis(m_cpuNanos[phase]),
+                    megabytes(m_allocatedBytes[phase])));
+        }
+        result.append(String.format("%-12s %12s%n", "total", millis(m_totalWallNanos)));
+        result.append(String.format("CAM cells:      %d%n", m_camCells));
+        result.append(String.format("CAM heap MB:    %s%n", megabytes(m_camHeapBytes)));
+        result.append(String.format("CAM native MB:  %s%n", megabytes(m_camNativeBytes)));
+        result.append(String.format("Rows scored:    %d%n", m_rowsScored));
+        result.append(String.format("Noisy values:   %d%n", m_noisyValues));
+        result.append(String.format("Noisy records:  %d%n", m_noisyRecords));
+        return result.toString();
+
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    CAIRADMetricsMBean.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+/**
+ * The attributes of CAIRADMetrics read over JMX. The per phase arrays are in
+ * the order of getPhases().
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+public interface CAIRADMetricsMBean {
+
+    /**
+     * Return the names of the phases
+     *
+     * @return generalise, build CAM, score and output
+     */
+    String[] getPhases();
+
+    /**
+     * Return the wall clock time of each phase
+     *
+     * @return nanoseconds per phase
+     */
+    long[] getWallNanos();
+
+    /**
+     * Return the CPU time of each phase
+     *
+     * @return nanoseconds per phase, -1 where the JVM can't measure it
+     */
+    long[] getCpuNanos();
+
+    /**
+     * Return the bytes allocated on the Java heap in each phase
+     *
+     * @return bytes per phase, -1 where the JVM can't measure it
+     */
+    long[] getAllocatedBytes();
+
+    /**
+     * Return the wall clock time of the whole of the last call to process
+     *
+     * @return nanoseconds
+     */
+    long getTotalWallNanos();
+
+    /**
+     * Return the number of cells in the coappearance matrix
+     *
+     * @return the number of cells
+     */
+    long getCAMCells();
+
+    /**
+     * Return the bytes of Java heap taken up by the coappearance counts
+     *
+     * @return the heap footprint
+     */
+    long getCAMHeapBytes();
+
+    /**
+     * Return the bytes of native memory taken up by the coappearance counts
+     *
+     * @return the native footprint
+     */
+    long getCAMNativeBytes();
+
+    /**
+     * Return the number of records scored
+     *
+     * @return the number of records
+     */
+    long getRowsScored();
+
+    /**
+     * Return the number of values found to be noisy
+     *
+     * @return the number of noisy values
+     */
+    long getNoisyValues();
+
+    /**
+     * Return the number of records with at least one noisy value
+     *
+     * @return the number of noisy records
+     */
+    long getNoisyRecords();
+
+    /**
+     * Return a table of everything measured
+     *
+     * @return the summary
+     */
+    String getSummary();
+
+}
@@ -0,0 +1,280 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    CountStore.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.io.Serializable;
+
+/**
+ * Holds the coappearance counts of a CAIRAD.CoappearanceMatrix. Counts are
+ * addressed by attribute pair (in the order of
+ * CoappearanceMatrix.pairIndex) and by the index of the cell within the
+ * pair's block, x * domainSizes[k] + y for value x of attribute j and value y
+ * of attribute k. How and where the cells are actually kept is up to each
+ * implementation.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+abstract class CountStore implements Serializable {
+
+    /**
+     * For serialization
+     */
+    static final long serialVersionUID = 4407093322871561093L;
+
+    /**
+     * Number of cells in each attribute pair's block
+     */
+    protected final long[] m_pairSizes;
+
+    /**
+     * Set up a store for blocks of the given sizes.
+     *
+     * @param pairSizes - number of cells in each attribute pair's block
+     */
+    protected CountStore(long[] pairSizes) {
+        m_pairSizes = pairSizes;
+    }
+
+    /**
+     * Work out the size of each attribute pair's block.
+     *
+     * @param domainSizes - number of values in each generalised attribute
+     * @return the number of cells in each pair's block, in pair order
+     */
+    static long[] pairSizes(int[] domainSizes) {
+
+        int numAttributes = domainSizes.length;
+        long[] pairSizes = new long[Math.max(0, numAttributes * (numAttributes - 1) / 2)];
+        int pair = 0;
+        for (int j = 0; j < numAttributes; j++) {
+            for (int k = j + 1; k < numAttributes; k++) {
+                pairSizes[pair++] = (long) domainSizes[j] * domainSizes[k];
+            }
+        }
+        return pairSizes;
+
+    }
+
+    /**
+     * Return the number of attribute pairs
+     *
+     * @return the number of pairs
+     */
+    final int numPairs() {
+        return m_pairSizes.length;
+    }
+
+    /**
+     * Return the number of cells in a pair's block
+     *
+     * @param pair - index of the pair
+     * @return the number of cells
+     */
+    final long pairSize(int pair) {
+        return m_pairSizes[pair];
+    }
+
+    /**
+     * Return the number of cells over all pairs
+     *
+     * @return the number of cells
+     */
+    final long numCells() {
+
+        long numCells = 0;
+        for (long pairSize : m_pairSizes) {
+            numCells += pairSize;
+        }
+        return numCells;
+
+    }
+
+    /**
+     * Return the number of bytes of Java heap the counts take up
+     *
+     * @return the heap footprint
+     */
+    long heapBytes() {
+        return 0;
+    }
+
+    /**
+     * Return the number of bytes of memory outside the Java heap (direct or
+     * mapped buffers) the counts take up
+     *
+     * @return the native footprint
+     */
+    long nativeBytes() {
+        return 0;
+    }
+
+    /**
+     * Return the number of cells a pair holds in a list of just the cells
+     * counted into, rather than in a block of every cell.
+     *
+     * @param pair - index of the pair
+     * @return the number of cells listed, -1 if the pair is held in a block
+     */
+    long numListedCells(int pair) {
+        return -1;
+    }
+
+    /**
+     * Copy out the cells a pair lists, in order of index.
+     *
+     * @param pair - index of a pair whose cells are listed
+     * @param indices - set to the index of each cell
+     * @param counts - set to the count of each cell
+     */
+    void listedCells(int pair, long[] indices, long[] counts) {
+        throw new UnsupportedOperationException("Pair " + pair + " isn't listed");
+    }
+
+    /**
+     * Return whether a pair's counts are estimated by a Count-Min sketch
+     * (see SketchCountStore) rather than held exactly
+     *
+     * @param pair - index of the pair
+     * @return whether or not the pair is sketched
+     */
+    boolean isSketched(int pair) {
+        return false;
+    }
+
+    /**
+     * Return the number of counters in each row of the store's sketches
+     *
+     * @return the width, 0 if no pair is sketched
+     */
+    int sketchWidth() {
+        return 0;
+    }
+
+    /**
+     * Return the number of rows in each of the store's sketches
+     *
+     * @return the depth, 0 if no pair is sketched
+     */
+    int sketchDepth() {
+        return 0;
+    }
+
+    /**
+     * Return one of the counters of a sketched pair, which are depth rows of
+     * width counters.
+     *
+     * @param pair - index of a sketched pair
+     * @param counter - position of the counter in the sketch
+     * @return the counter
+     */
+    long sketchCounter(int pair, int counter) {
+        throw new UnsupportedOperationException("Pair " + pair + " isn't sketched");
+    }
+
+    /**
+     * Return the count held in a cell.
+     *
+     * @param pair - index of the pair
+     * @param index - index of the cell within the pair's block
+     * @return the count
+     */
+    abstract long get(int pair, long index);
+
+    /**
+     * Add to the count held in a cell.
+     *
+     * @param pair - index of the pair
+     * @param index - index of the cell within the pair's block
+     * @param delta - amount to add
+     */
+    abstract void add(int pair, long index, long delta);
+
+    /**
+     * Count a block of rows into one pair: for each row r &lt; count, adds
+     * one to cell xs[r] * stride + ys[r]. Different pairs may be counted from
+     * different threads at the same time, but each pair from only one.
+     *
+     * @param pair - index of the pair
+     * @param xs - values of the pair's first attribute
+     * @param ys - values of the pair's second attribute
+     * @param stride - domain size of the pair's second attribute
+     * @param count - number of rows to count
+     */
+    void countBlock(int pair, int[] xs, int[] ys, int stride, int count) {
+        for (int r = 0; r < count; r++) {
+            add(pair, (long) xs[r] * stride + ys[r], 1);
+        }
+    }
+
+    /**
+     * Add every count of another store, over blocks of the same sizes, to
+     * this one.
+     *
+     * @param other - the store to add
+     * @throws IllegalArgumentException if the other store has sketched pairs
+     * that this one can't add counter by counter
+     */
+    void addAll(CountStore other) {
+
+        for (int pair = 0; pair < m_pairSizes.length; pair++) {
+            addPair(other, pair);
+        }
+
+    }
+
+    /**
+     * Add the counts of one pair of another store to this one. Only the
+     * cells the other store lists are visited, if it lists the pair's cells.
+     *
+     * @param other - the store to add
+     * @param pair - index of the pair
+     * @throws IllegalArgumentException if the other store's pair is
+     * sketched, as its estimates can't be added up as exact counts
+     */
+    final void addPair(CountStore other, int pair) {
+
+        if (other.isSketched(pair)) {
+            throw new IllegalArgumentException("Counts estimated by a sketch can "
+                    + "only be added to sketch storage of the same width and depth");
+        }
+
+        long numListed = other.numListedCells(pair);
+        if (numListed >= 0) {
+            long[] indices = new long[(int) numListed];
+            long[] counts = new long[(int) numListed];
+            other.listedCells(pair, indices, counts);
+            for (int i = 0; i < indices.length; i++) {
+                add(pair, indices[i], counts[i]);
+            }
+            return;
+        }
+
+        for (long index = 0; index < m_pairSizes[pair]; index++) {
+            long count = other.get(pair, index);
+            if (count != 0) {
+                add(pair, index, count);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    CountStoreFactory.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.io.Serializable;
+
+/**
+ * Creates the count stores of coappearance matrices according to CAIRAD's
+ * storage option. A CAM keeps the factory it was made with, so the partial
+ * CAMs of a parallel build use the same storage as the CAM they are merged
+ * into.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+final class CountStoreFactory implements Serializable {
+
+    /**
+     * For serialization
+     */
+    static final long serialVersionUID = 1940358155707434862L;
+
+    /**
+     * Where the counts are kept, one of CAIRAD's STORAGE_ constants
+     */
+    private final int m_storage;
+
+    /**
+     * Number of records the CAMs will count, used to decide which pairs are
+     * held sparsely by hybrid storage
+     */
+    private final long m_numRows;
+
+    /**
+     * Number of counters in each row of a sketch
+     */
+    private final int m_sketchWidth;
+
+    /**
+     * Number of rows in each sketch
+     */
+    private final int m_sketchDepth;
+
+    /**
+     * Set up a factory for a kind of storage.
+     *
+     * @param storage - one of CAIRAD's STORAGE_ constants
+     * @param numRows - number of records the CAMs will count
+     * @param sketchWidth - number of counters in each row of a sketch
+     * @param sketchDepth - number of rows in each sketch
+     */
+    CountStoreFactory(int storage, long numRows, int sketchWidth, int sketchDepth) {
+        m_storage = storage;
+        m_numRows = numRows;
+        m_sketchWidth = sketchWidth;
+        m_sketchDepth = sketchDepth;
+    }
+
+    /**
+     * Create a zeroed store.
+     *
+     * @param pairSizes - number of cells in each attribute pair's block
+     * @return the store
+     */
+    CountStore create(long[] pairSizes) {
+
+        switch (m_storage) {
+            case CAIRAD.STORAGE_OFF_HEAP:
+                return new OffHeapCountStore(pairSizes);
+            case CAIRAD.STORAGE_HYBRID:
+                return new HybridCountStore(pairSizes, m_numRows);
+            case CAIRAD.STORAGE_SKETCH:
+                return new SketchCountStore(pairSizes, m_sketchWidth, m_sketchDepth);
+            case CAIRAD.STORAGE_ADAPTIVE:
+                return new AdaptiveCountStore(pairSizes);
+            default:
+                return new HeapCountStore(pairSizes);
+        }
+
+    }
+
+}
@@ -0,0 +1,361 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    DatasetStatistics.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Per-attribute statistics used by CAIRAD, gathered for every attribute in a
+ * single scan over the data. Replaces repeated calls to
+ * Instances.attributeStats(), each of which is a full pass over the dataset.
+ * <p/>
+ * Numeric and date attributes record their minimum and maximum (NaN if there
+ * are no non-missing values), date attributes additionally record their number
+ * of distinct values, and nominal and string attributes record a count for
+ * each value in the header.
+ * <p/>
+ * Distinct dates are counted exactly. Statistics gathered from a stream too
+ * large to hold in memory can instead be bounded: a timestamp-like attribute
+ * can have as many distinct values as there are records, so beyond
+ * EXACT_DISTINCT_LIMIT of them they are estimated with a HyperLogLog sketch of
+ * 2^HLL_BITS registers, whose standard error is 1.04 / sqrt(2^HLL_BITS), about
+ * 1.6%. The number of bins is the square root of the count, so is out by
+ * about 0.8%. The memory held is then bounded however many records there
+ * are, and the estimate doesn't depend on the order the records come in.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+final class DatasetStatistics implements Serializable {
+
+    /**
+     * For serialization
+     */
+    static final long serialVersionUID = 3204958130447721190L;
+
+    /**
+     * Number of distinct values of a date attribute that are counted exactly
+     */
+    static final int EXACT_DISTINCT_LIMIT = 10000;
+
+    /**
+     * Base 2 log of the number of registers in a HyperLogLog sketch
+     */
+    static final int HLL_BITS = 12;
+
+    /**
+     * Smallest non-missing value of each numeric or date attribute
+     */
+    private final double[] m_min;
+
+    /**
+     * Largest non-missing value of each numeric or date attribute
+     */
+    private final double[] m_max;
+
+    /**
+     * Number of missing values in each attribute
+     */
+    private final long[] m_missingCounts;
+
+    /**
+     * Counts of each value of nominal and string attributes, null for other
+     * attributes
+     */
+    private final long[][] m_nominalCounts;
+
+    /**
+     * Distinct values seen for each date attribute, null for other attributes
+     * and for date attributes whose distinct values are being estimated
+     */
+    private final HashSet<Double>[] m_distinctValues;
+
+    /**
+     * HyperLogLog registers of each date attribute with more than
+     * EXACT_DISTINCT_LIMIT distinct values, null for other attributes
+     */
+    private final byte[][] m_distinctSketches;
+
+    /**
+     * Whether distinct dates are estimated beyond EXACT_DISTINCT_LIMIT of
+     * them
+     */
+    private final boolean m_bounded;
+
+    /**
+     * Number of instances seen
+     */
+    private long m_numInstances;
+
+    /**
+     * Number of full scans over a dataset made to gather these statistics
+     */
+    private int m_numScans;
+
+    /**
+     * Set up empty statistics for the attributes in a header, counting
+     * distinct dates exactly.
+     *
+     * @param header - dataset whose attributes the statistics describe
+     */
+    DatasetStatistics(Instances header) {
+        this(header, false);
+    }
+
+    /**
+     * Set up empty statistics for the attributes in a header.
+     *
+     * @param header - dataset whose attributes the statistics describe
+     * @param bounded - whether to estimate distinct dates beyond
+     * EXACT_DISTINCT_LIMIT of them, so the memory held doesn't grow with the
+     * number of records
+     */
+    @SuppressWarnings("unchecked")
+    DatasetStatistics(Instances header, boolean bounded) {
+
+        m_bounded = bounded;
+        int numAttributes = header.numAttributes();
+        m_min = new double[numAttributes];
+        m_max = new double[numAttributes];
+        m_missingCounts = new long[numAttributes];
+        m_nominalCounts = new long[numAttributes][];
+        m_distinctValues = new HashSet[numAttributes];
+        m_distinctSketches = new byte[numAttributes][];
+
+        for (int i = 0; i < numAttributes; i++) {
+            Attribute att = header.attribute(i);
+            m_min[i] = Double.NaN;
+            m_max[i] = Double.NaN;
+            if (att.isNominal() || att.isString()) {
+                m_nominalCounts[i] = new long[att.numValues()];
+            } else if (att.isDate()) {
+                m_distinctValues[i] = new HashSet<Double>();
+            }
+        }
+
+    }
+
+    /**
+     * Gather statistics for every attribute of a dataset in one scan.
+     *
+     * @param data - the dataset
+     * @return the statistics
+     */
+    static DatasetStatistics collect(Instances data) {
+
+        DatasetStatistics stats = new DatasetStatistics(data);
+        for (int i = 0; i < data.numInstances(); i++) {
+            stats.add(data.instance(i));
+        }
+        stats.endScan();
+        return stats;
+
+    }
+
+    /**
+     * Record that a full scan over the data has been added.
+     */
+    void endScan() {
+        m_numScans++;
+    }
+
+    /**
+     * Update the statistics with one instance.
+     *
+     * @param instance - the instance
+     */
+    void add(Instance instance) {
+
+        for (int i = 0; i < m_min.length; i++) {
+
+            if (instance.isMissing(i)) {
+                m_missingCounts[i]++;
+                continue;
+            }
+
+            double value = instance.value(i);
+            if (m_nominalCounts[i] != null) {
+                int index = (int) value;
+                if (index >= m_nominalCounts[i].length) {
+                    //a string attribute read incrementally gains values as
+                    //it goes
+                    m_nominalCounts[i] = Arrays.copyOf(m_nominalCounts[i],
+                            Math.max(index + 1, m_nominalCounts[i].length * 2));
+                }
+                m_nominalCounts[i][index]++;
+            } else {
+                if (Double.isNaN(m_min[i]) || value < m_min[i]) {
+                    m_min[i] = value;
+                }
+                if (Double.isNaN(m_max[i]) || value > m_max[i]) {
+                    m_max[i] = value;
+                }
+                if (m_distinctValues[i] != null) {
+                    m_distinctValues[i].add(value);
+                    if (m_bounded && m_distinctValues[i].size() > EXACT_DISTINCT_LIMIT) {
+                        //too many to keep, so estimate from here on
+                        m_distinctSketches[i] = new byte[1 << HLL_BITS];
+                        for (double distinct : m_distinctValues[i]) {
+                            sketch(m_distinctSketches[i], distinct);
+                        }
+                        m_distinctValues[i] = null;
+                    }
+                } else if (m_distinctSketches[i] != null) {
+                    sketch(m_distinctSketches[i], value);
+                }
+            }
+
+        }
+        m_numInstances++;
+
+    }
+
+    /**
+     * Add a value to a HyperLogLog sketch: the top HLL_BITS bits of its hash
+     * pick a register, which keeps the largest number of leading zeros, plus
+     * one, seen in the rest of the hash.
+     *
+     * @param registers - the sketch
+     * @param value - the value
+     */
+    private static void sketch(byte[] registers, double value) {
+
+        //the finalising mix of MurmurHash3
+        long hash = Double.doubleToLongBits(value);
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+
+        int register = (int) (hash >>> (64 - HLL_BITS));
+        int rank = Long.numberOfLeadingZeros((hash << HLL_BITS) | (1L << (HLL_BITS - 1))) + 1;
+        if (rank > registers[register]) {
+            registers[register] = (byte) rank;
+        }
+
+    }
+
+    /**
+     * Estimate the number of distinct values added to a HyperLogLog sketch.
+     *
+     * @param registers - the sketch
+     * @return the estimate
+     */
+    private static int estimate(byte[] registers) {
+
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            //linear counting is more accurate for small counts
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return (int) Math.round(estimate);
+
+    }
+
+    /**
+     * Return the smallest non-missing value of a numeric or date attribute
+     *
+     * @param attIndex - index of the attribute
+     * @return the minimum, or NaN if all values are missing
+     */
+    double min(int attIndex) {
+        return m_min[attIndex];
+    }
+
+    /**
+     * Return the largest non-missing value of a numeric or date attribute
+     *
+     * @param attIndex - index of the attribute
+     * @return the maximum, or NaN if all values are missing
+     */
+    double max(int attIndex) {
+        return m_max[attIndex];
+    }
+
+    /**
+     * Return the number of distinct non-missing values of a date attribute,
+     * estimated if the statistics are bounded and there are more than
+     * EXACT_DISTINCT_LIMIT
+     *
+     * @param attIndex - index of the attribute
+     * @return the number of distinct values
+     */
+    int distinctCount(int attIndex) {
+        return m_distinctValues[attIndex] != null
+                ? m_distinctValues[attIndex].size()
+                : estimate(m_distinctSketches[attIndex]);
+    }
+
+    /**
+     * Return the counts of each value of a nominal or string attribute. For a
+     * string attribute that gained values as the instances were added, the
+     * array can be longer than the number of values.
+     *
+     * @param attIndex - index of the attribute
+     * @return the value counts
+     */
+    long[] nominalCounts(int attIndex) {
+        return m_nominalCounts[attIndex];
+    }
+
+    /**
+     * Return the number of missing values in an attribute
+     *
+     * @param attIndex - index of the attribute
+     * @return the number of missing values
+     */
+    long missingCount(int attIndex) {
+        return m_missingCounts[attIndex];
+    }
+
+    /**
+     * Return the number of instances the statistics were gathered from
+     *
+     * @return the number of instances
+     */
+    long numInstances() {
+        return m_numInstances;
+    }
+
+    /**
+     * Return the number of full scans over a dataset made to gather these
+     * statistics
+     *
+     * @return the number of scans
+     */
+    int numScans() {
+        return m_numScans;
+    }
+
+}
@@ -0,0 +1,508 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    DecayedCoappearanceMatrix.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Coappearance counts that fade with age: a record counted h records ago (h
+ * being the half-life) carries half the weight of the record just counted.
+ * Cells are addressed the same way as CAIRAD.CoappearanceMatrix.counts, by
+ * pair and index within the pair's block.
+ * <p/>
+ * The trained CAM is left as it is. Its counts all have the same age, so
+ * they decay by one shared factor. The records counted after it are kept
+ * apart, as doubles, in a block per attribute pair and per attribute's
+ * value appearances. Decay is lazy, with an epoch and a scale per block:
+ * a block's values are in units of the weight a record had at the block's
+ * epoch, so counting a record only adds the record's weight in those units
+ * to the m(m-1)/2 cells and m appearances it touches. Once a block's epoch
+ * is RENORMALISE_HALF_LIVES half-lives old, the block is brought up to date
+ * the next time it is counted into, so the weights never overflow; blocks
+ * that aren't counted into are never visited.
+ * <p/>
+ * A pair whose block has far more cells than the records still carrying
+ * weight is held in a hash map of the cells counted into, which drops the
+ * cells that have decayed to nothing when the block is brought up to date.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+final class DecayedCoappearanceMatrix implements Serializable {
+
+    /**
+     * For serialization
+     */
+    static final long serialVersionUID = 2969216434709010778L;
+
+    /**
+     * Number of half-lives after its epoch that a block is brought up to
+     * date, the next time it is counted into
+     */
+    static final int RENORMALISE_HALF_LIVES = 64;
+
+    /**
+     * A held cell is dropped once its weight has decayed below 2^-this of a
+     * record
+     */
+    static final int NEGLIGIBLE_HALF_LIVES = 32;
+
+    /**
+     * A pair is held in a hash map when its block has more than this many
+     * cells per record still carrying weight. At a load factor of at most
+     * one half each held cell costs at most 32 bytes of map against 8 bytes
+     * per cell of a dense block
+     */
+    static final int SPARSE_RATIO = 4;
+
+    /**
+     * Number of half-lives the weight of a new record grows by before every
+     * block's scale is rebased
+     */
+    private static final int REBASE_HALF_LIVES = 512;
+
+    /**
+     * Largest block held densely
+     */
+    private static final long MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+    /**
+     * The trained matrix, which is never changed
+     */
+    private final CAIRAD.CoappearanceMatrix m_cam;
+
+    /**
+     * Factor the weight of a new record grows by per record
+     */
+    private final double m_growth;
+
+    /**
+     * Number of records after its epoch that a block is brought up to date
+     */
+    private final long m_renormaliseAge;
+
+    /**
+     * Weight of a new record at which every scale is rebased
+     */
+    private final double m_rebaseWeight;
+
+    /**
+     * Counts of the records since training, per attribute pair
+     */
+    private final Block[] m_pairs;
+
+    /**
+     * Appearances of the records since training, per attribute
+     */
+    private final Block[] m_appearances;
+
+    /**
+     * Weight the trained counts carry now
+     */
+    private double m_camWeight = 1;
+
+    /**
+     * Weight of a record counted now, relative to the scales of the blocks
+     */
+    private double m_weight = 1;
+
+    /**
+     * Number of records counted since training
+     */
+    private long m_now;
+
+    /**
+     * Decay the counts of a coappearance matrix from now on, starting with
+     * all of them at full weight. The matrix itself is only read.
+     *
+     * @param cam - the trained matrix
+     * @param halfLife - number of records after which a count has halved
+     */
+    DecayedCoappearanceMatrix(CAIRAD.CoappearanceMatrix cam, double halfLife) {
+
+        m_cam = cam;
+        m_growth = Math.pow(2, 1 / halfLife);
+        m_renormaliseAge = Math.max(1, (long) (halfLife * RENORMALISE_HALF_LIVES));
+        m_rebaseWeight = Math.pow(2, REBASE_HALF_LIVES);
+
+        long liveRecords = liveRecords(halfLife);
+        m_pairs = new Block[cam.counts.numPairs()];
+        for (int pair = 0; pair < m_pairs.length; pair++) {
+            m_pairs[pair] = new Block(isSparse(cam.counts.pairSize(pair), liveRecords)
+                    ? 0 : cam.counts.pairSize(pair));
+        }
+        m_appearances = new Block[cam.domainSizes.length];
+        for (int j = 0; j < m_appearances.length; j++) {
+            m_appearances[j] = new Block(cam.domainSizes[j]);
+        }
+
+    }
+
+    /**
+     * Return the most records whose counts can still be held in a block: a
+     * block is brought up to date at most RENORMALISE_HALF_LIVES half-lives
+     * after its epoch, and then drops cells more than NEGLIGIBLE_HALF_LIVES
+     * half-lives old.
+     *
+     * @param halfLife - number of records after which a count has halved
+     * @return the number of records
+     */
+    private static long liveRecords(double halfLife) {
+        return (long) Math.ceil(halfLife * (RENORMALISE_HALF_LIVES + NEGLIGIBLE_HALF_LIVES));
+    }
+
+    /**
+     * Return whether a pair's block is held in a hash map.
+     *
+     * @param pairSize - number of cells in the pair's block
+     * @param liveRecords - most records whose counts can be held
+     * @return whether or not the block is sparse
+     */
+    private static boolean isSparse(long pairSize, long liveRecords) {
+        return pairSize > SPARSE_RATIO * liveRecords || pairSize > MAX_ARRAY;
+    }
+
+    /**
+     * Work out the most heap the decayed counts of a matrix can take up.
+     *
+     * @param domainSizes - number of codes of each generalised attribute
+     * @param halfLife - number of records after which a count has halved
+     * @return the bytes
+     */
+    static long heapBytes(int[] domainSizes, double halfLife) {
+
+        long liveRecords = liveRecords(halfLife);
+        long bytes = 0;
+        for (int domainSize : domainSizes) {
+            bytes += (long) domainSize * 8;
+        }
+        for (long pairSize : CountStore.pairSizes(domainSizes)) {
+            if (isSparse(pairSize, liveRecords)) {
+                //a map at most half full of the cells held
+                long entries = Math.min(pairSize, liveRecords);
+                bytes += Math.max(16, Long.highestOneBit(2 * entries - 1) << 1) * 16;
+            } else {
+                bytes += pairSize * 8;
+            }
+        }
+        return bytes;
+
+    }
+
+    /**
+     * Bring a block up to date if its epoch is old enough, and return the
+     * weight of a record counted now in the block's units.
+     *
+     * @param block - the block
+     * @return the weight
+     */
+    private double touch(Block block) {
+
+        if (m_now - block.m_epoch >= m_renormaliseAge) {
+            block.renormalise(block.m_scale / m_weight);
+            block.m_epoch = m_now;
+            block.m_scale = m_weight;
+        }
+        return m_weight / block.m_scale;
+
+    }
+
+    /**
+     * Age every count by one record and count a new record at full weight.
+     * A code of -1 (a value that wasn't seen when the bins were built) has
+     * nowhere to be counted, so is skipped.
+     *
+     * @param record - codes of the record
+     */
+    void addRecord(int[] record) {
+
+        m_now++;
+        m_camWeight /= m_growth;
+        m_weight *= m_growth;
+        if (m_weight > m_rebaseWeight) {
+            //a block's scale that underflows belongs to counts that have
+            //decayed to nothing
+            for (Block block : m_pairs) {
+                block.m_scale /= m_weight;
+            }
+            for (Block block : m_appearances) {
+                block.m_scale /= m_weight;
+            }
+            m_weight = 1;
+        }
+
+        int[] domainSizes = m_cam.domainSizes;
+        int pair = 0;
+        for (int j = 0; j < record.length; j++) {
+
+            int x = record[j];
+            if (x < 0) {
+                pair += record.length - j - 1;
+                continue;
+            }
+            Block appearances = m_appearances[j];
+            appearances.add(x, touch(appearances));
+
+            for (int k = j + 1; k < record.length; k++) {
+                int p = pair++;
+                int y = record[k];
+                if (y >= 0) {
+                    Block block = m_pairs[p];
+                    block.add((long) x * domainSizes[k] + y, touch(block));
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     * Decayed number of coappearances held in a cell.
+     *
+     * @param pair - index of the pair, as in CoappearanceMatrix.counts
+     * @param index - index of the cell within the pair's block
+     * @return the decayed count
+     */
+    double coappearances(int pair, long index) {
+
+        Block block = m_pairs[pair];
+        return m_cam.counts.get(pair, index) * m_camWeight
+                + block.get(index) * (block.m_scale / m_weight);
+
+    }
+
+    /**
+     * Decayed number of appearances of value x of attribute j.
+     *
+     * @param j - attribute index
+     * @param x - value of attribute j
+     * @return the decayed count
+     */
+    double appearances(int j, int x) {
+
+        Block block = m_appearances[j];
+        return m_cam.valueAppearances[j][x] * m_camWeight
+                + block.get(x) * (block.m_scale / m_weight);
+
+    }
+
+    /**
+     * Weighted counts of the records since training, for one attribute pair
+     * or one attribute's values, held densely or in an open-addressing hash
+     * map from cell index to count with linear probing.
+     */
+    static final class Block implements Serializable {
+
+        /**
+         * For serialization
+         */
+        static final long serialVersionUID = -6329540823144771804L;
+
+        /**
+         * Key of an empty slot; cell indices are never negative
+         */
+        private static final long EMPTY = -1;
+
+        /**
+         * Record number the counts were last brought up to date at
+         */
+        long m_epoch;
+
+        /**
+         * Weight of a new record at the epoch; a count times this over the
+         * weight of a record counted now is the decayed count
+         */
+        double m_scale = 1;
+
+        /**
+         * Counts of a dense block, null for a sparse one
+         */
+        private double[] m_dense;
+
+        /**
+         * Cell index held in each slot of a sparse block, EMPTY for none
+         */
+        private long[] m_keys;
+
+        /**
+         * Count held in each slot of a sparse block
+         */
+        private double[] m_values;
+
+        /**
+         * Number of filled slots of a sparse block
+         */
+        private int m_size;
+
+        /**
+         * Create an empty block.
+         *
+         * @param size - number of cells of a dense block, 0 for a sparse one
+         */
+        Block(long size) {
+
+            if (size > 0) {
+                m_dense = new double[(int) size];
+            } else {
+                allocate(16);
+            }
+
+        }
+
+        /**
+         * Allocate empty slots.
+         *
+         * @param capacity - number of slots, a power of two
+         */
+        private void allocate(int capacity) {
+            m_keys = new long[capacity];
+            Arrays.fill(m_keys, EMPTY);
+            m_values = new double[capacity];
+            m_size = 0;
+        }
+
+        /**
+         * Slot a key's probe starts from.
+         *
+         * @param key - the cell index
+         * @return the slot
+         */
+        private int home(long key) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & (m_keys.length - 1);
+        }
+
+        /**
+         * Return the count of a cell.
+         *
+         * @param key - the cell index
+         * @return the count, 0 if the cell isn't held
+         */
+        double get(long key) {
+
+            if (m_dense != null) {
+                return m_dense[(int) key];
+            }
+            int mask = m_keys.length - 1;
+            for (int slot = home(key);; slot = (slot + 1) & mask) {
+                long k = m_keys[slot];
+                if (k == key) {
+                    return m_values[slot];
+                } else if (k == EMPTY) {
+                    return 0;
+                }
+            }
+
+        }
+
+        /**
+         * Add to the count of a cell, growing a sparse block to keep it at
+         * most half full.
+         *
+         * @param key - the cell index
+         * @param delta - amount to add
+         */
+        void add(long key, double delta) {
+
+            if (m_dense != null) {
+                m_dense[(int) key] += delta;
+                return;
+            }
+            int mask = m_keys.length - 1;
+            for (int slot = home(key);; slot = (slot + 1) & mask) {
+                long k = m_keys[slot];
+                if (k == key) {
+                    m_values[slot] += delta;
+                    return;
+                } else if (k == EMPTY) {
+                    m_keys[slot] = key;
+                    m_values[slot] = delta;
+                    if (++m_size > m_keys.length >>> 1) {
+                        rehash(m_keys.length << 1, 0);
+                    }
+                    return;
+                }
+            }
+
+        }
+
+        /**
+         * Multiply every count by a factor. A sparse block drops the cells
+         * whose count has decayed below 2^-NEGLIGIBLE_HALF_LIVES, and
+         * shrinks if it is left at most an eighth full.
+         *
+         * @param factor - the factor
+         */
+        void renormalise(double factor) {
+
+            if (m_dense != null) {
+                for (int index = 0; index < m_dense.length; index++) {
+                    m_dense[index] *= factor;
+                }
+                return;
+            }
+            int kept = 0;
+            double negligible = Math.pow(2, -NEGLIGIBLE_HALF_LIVES);
+            for (int slot = 0; slot < m_keys.length; slot++) {
+                m_values[slot] *= factor;
+                if (m_keys[slot] != EMPTY && m_values[slot] >= negligible) {
+                    kept++;
+                }
+            }
+            int capacity = m_keys.length;
+            while (capacity > 16 && kept <= capacity >>> 3) {
+                capacity >>>= 1;
+            }
+            rehash(capacity, negligible);
+
+        }
+
+        /**
+         * Put every filled slot of a sparse block with a count of at least
+         * a minimum back into a given number of slots.
+         *
+         * @param capacity - number of slots, a power of two
+         * @param minimum - smallest count kept
+         */
+        private void rehash(int capacity, double minimum) {
+
+            long[] keys = m_keys;
+            double[] values = m_values;
+            allocate(capacity);
+            int mask = capacity - 1;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY && values[i] >= minimum) {
+                    int slot = home(keys[i]);
+                    while (m_keys[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    m_keys[slot] = keys[i];
+                    m_values[slot] = values[i];
+                    m_size++;
+                }
+            }
+
+        }
+
+    }
+
+}
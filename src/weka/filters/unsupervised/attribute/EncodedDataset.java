@@ -0,0 +1,240 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    EncodedDataset.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * A generalised dataset held column by column as primitive codes. Each column
+ * uses the narrowest array type that holds its domain: byte for up to 256
+ * values, short for up to 65536 values and int otherwise. The coappearance
+ * matrix builder and NVI read codes straight from these arrays instead of
+ * going through Instance.value() and casting every cell.
+ * <p/>
+ * Missing values are stored as code 0, which is how the original
+ * implementation treated them when it cast a missing value to an int.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+final class EncodedDataset {
+
+    /**
+     * Number of rows (instances)
+     */
+    private final int m_numRows;
+
+    /**
+     * Number of distinct codes in each column
+     */
+    private final int[] m_domainSizes;
+
+    /**
+     * Columns with at most 256 codes, null for wider columns
+     */
+    private final byte[][] m_byteColumns;
+
+    /**
+     * Columns with at most 65536 codes, null for other columns
+     */
+    private final short[][] m_shortColumns;
+
+    /**
+     * Columns with more than 65536 codes, null for other columns
+     */
+    private final int[][] m_intColumns;
+
+    /**
+     * Allocate an empty store for the given number of rows.
+     *
+     * @param numRows - number of rows
+     * @param domainSizes - number of distinct codes in each column
+     */
+    EncodedDataset(int numRows, int[] domainSizes) {
+
+        m_numRows = numRows;
+        m_domainSizes = domainSizes.clone();
+        m_byteColumns = new byte[domainSizes.length][];
+        m_shortColumns = new short[domainSizes.length][];
+        m_intColumns = new int[domainSizes.length][];
+
+        for (int j = 0; j < domainSizes.length; j++) {
+            if (domainSizes[j] <= 1 << 8) {
+                m_byteColumns[j] = new byte[numRows];
+            } else if (domainSizes[j] <= 1 << 16) {
+                m_shortColumns[j] = new short[numRows];
+            } else {
+                m_intColumns[j] = new int[numRows];
+            }
+        }
+
+    }
+
+    /**
+     * Generalise and encode a dataset in one pass.
+     *
+     * @param generalisation - bins and dictionaries to encode with
+     * @param data - the dataset
+     */
+    EncodedDataset(Generalisation generalisation, Instances data) {
+
+        this(data.numInstances(), generalisation.codeDomainSizes());
+
+        for (int i = 0; i < m_numRows; i++) {
+            Instance instance = data.instance(i);
+            for (int j = 0; j < m_domainSizes.length; j++) {
+                set(i, j, generalisation.encode(instance, j));
+            }
+        }
+
+    }
+
+    /**
+     * Store the code of one cell.
+     *
+     * @param row - row index
+     * @param column - column index
+     * @param code - the code, between 0 and the column's domain size - 1
+     */
+    void set(int row, int column, int code) {
+
+        if (m_byteColumns[column] != null) {
+            m_byteColumns[column][row] = (byte) code;
+        } else if (m_shortColumns[column] != null) {
+            m_shortColumns[column][row] = (short) code;
+        } else {
+            m_intColumns[column][row] = code;
+        }
+
+    }
+
+    /**
+     * Return the code of one cell.
+     *
+     * @param row - row index
+     * @param column - column index
+     * @return the code
+     */
+    int code(int row, int column) {
+
+        if (m_byteColumns[column] != null) {
+            return m_byteColumns[column][row] & 0xFF;
+        } else if (m_shortColumns[column] != null) {
+            return m_shortColumns[column][row] & 0xFFFF;
+        } else {
+            return m_intColumns[column][row];
+        }
+
+    }
+
+    /**
+     * Copy the codes of one row into dest.
+     *
+     * @param row - row index
+     * @param dest - array of at least numColumns() elements
+     */
+    void row(int row, int[] dest) {
+        for (int j = 0; j < m_domainSizes.length; j++) {
+            dest[j] = code(row, j);
+        }
+    }
+
+    /**
+     * Copy the codes of a range of rows of one column into dest.
+     *
+     * @param column - column index
+     * @param from - first row, inclusive
+     * @param to - last row, exclusive
+     * @param dest - array of at least to - from elements
+     */
+    void column(int column, int from, int to, int[] dest) {
+
+        if (m_byteColumns[column] != null) {
+            byte[] codes = m_byteColumns[column];
+            for (int i = from; i < to; i++) {
+                dest[i - from] = codes[i] & 0xFF;
+            }
+        } else if (m_shortColumns[column] != null) {
+            short[] codes = m_shortColumns[column];
+            for (int i = from; i < to; i++) {
+                dest[i - from] = codes[i] & 0xFFFF;
+            }
+        } else {
+            System.arraycopy(m_intColumns[column], from, dest, 0, to - from);
+        }
+
+    }
+
+    /**
+     * Return the number of rows
+     *
+     * @return the number of rows
+     */
+    int numRows() {
+        return m_numRows;
+    }
+
+    /**
+     * Return the number of columns
+     *
+     * @return the number of columns
+     */
+    int numColumns() {
+        return m_domainSizes.length;
+    }
+
+    /**
+     * Return the number of distinct codes in each column
+     *
+     * @return the domain sizes
+     */
+    int[] domainSizes() {
+        return m_domainSizes;
+    }
+
+    /**
+     * Return the number of bytes each row takes up when encoded, from the
+     * array type each column would use.
+     *
+     * @param domainSizes - number of distinct codes in each column
+     * @return bytes per row
+     */
+    static long bytesPerRow(int[] domainSizes) {
+
+        long bytes = 0;
+        for (int domainSize : domainSizes) {
+            bytes += domainSize <= 1 << 8 ? 1 : domainSize <= 1 << 16 ? 2 : 4;
+        }
+        return bytes;
+
+    }
+
+    /**
+     * Return the number of bytes of Java heap taken up by the codes
+     *
+     * @return the footprint of the columns
+     */
+    long heapBytes() {
+        return m_numRows * bytesPerRow(m_domainSizes);
+    }
+
+}
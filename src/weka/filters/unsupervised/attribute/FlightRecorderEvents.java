@@ -0,0 +1,294 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    FlightRecorderEvents.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Records the phases of CAIRAD as Java Flight Recorder events, under Weka /
+ * CAIRAD in JDK Mission Control. Only loaded by PhaseEvents, and only when
+ * the JVM has Flight Recorder. Recordings only include the events when they
+ * are enabled, e.g. with the default or profile settings; an event that
+ * isn't enabled is never begun, so costs nothing but the isEnabled check.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+final class FlightRecorderEvents extends PhaseEvents {
+
+    /**
+     * Generalising a dataset
+     */
+    @Name("weka.CAIRAD.Generalise")
+    @Label("CAIRAD Generalise")
+    @Category({"Weka", "CAIRAD"})
+    @Description("Gathering the statistics of a dataset, working out the bins and encoding it")
+    @StackTrace(false)
+    static final class GeneraliseEvent extends Event {
+
+        @Label("Rows")
+        long rows;
+
+        @Label("Attributes")
+        int attributes;
+
+        @Label("Encoded Size")
+        @DataAmount
+        long bytes;
+
+    }
+
+    /**
+     * Working out the bins or dictionary of one attribute
+     */
+    @Name("weka.CAIRAD.GeneraliseAttribute")
+    @Label("CAIRAD Generalise Attribute")
+    @Category({"Weka", "CAIRAD"})
+    @Description("Working out the bins or dictionary of one attribute")
+    @StackTrace(false)
+    static final class AttributeEvent extends Event {
+
+        @Label("Attribute")
+        int attribute;
+
+        @Label("Name")
+        String name;
+
+        @Label("Kind")
+        String kind;
+
+        @Label("Bins")
+        int bins;
+
+    }
+
+    /**
+     * Building the coappearance matrix
+     */
+    @Name("weka.CAIRAD.BuildCAM")
+    @Label("CAIRAD Build CAM")
+    @Category({"Weka", "CAIRAD"})
+    @Description("Counting every record into the coappearance matrix")
+    @StackTrace(false)
+    static final class BuildCAMEvent extends Event {
+
+        @Label("Rows")
+        long rows;
+
+        @Label("Attributes")
+        int attributes;
+
+        @Label("Cells")
+        long cells;
+
+        @Label("Heap Size")
+        @DataAmount
+        long heapBytes;
+
+        @Label("Native Size")
+        @DataAmount
+        long nativeBytes;
+
+        @Label("Storage")
+        String storage;
+
+    }
+
+    /**
+     * Scoring a chunk of records
+     */
+    @Name("weka.CAIRAD.Score")
+    @Label("CAIRAD Score")
+    @Category({"Weka", "CAIRAD"})
+    @Description("Scoring a chunk of records with NVI")
+    @StackTrace(false)
+    static final class ScoreEvent extends Event {
+
+        @Label("First Row")
+        long firstRow;
+
+        @Label("Rows")
+        long rows;
+
+        @Label("Attributes")
+        int attributes;
+
+    }
+
+    /**
+     * Packaging the output
+     */
+    @Name("weka.CAIRAD.Output")
+    @Label("CAIRAD Output")
+    @Category({"Weka", "CAIRAD"})
+    @Description("Copying the records into the output dataset")
+    @StackTrace(false)
+    static final class OutputEvent extends Event {
+
+        @Label("Rows")
+        long rows;
+
+        @Label("Attributes")
+        int attributes;
+
+        @Label("Noisy Records")
+        long noisyRecords;
+
+    }
+
+    /**
+     * Begin an event if it is enabled.
+     *
+     * @param event - the event
+     * @return the event, null if it isn't enabled
+     */
+    private static Event begin(Event event) {
+
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+
+    }
+
+    @Override
+    Object beginGeneralise() {
+        return begin(new GeneraliseEvent());
+    }
+
+    @Override
+    void endGeneralise(Object handle, long rows, int attributes, long bytes) {
+
+        if (handle == null) {
+            return;
+        }
+        GeneraliseEvent event = (GeneraliseEvent) handle;
+        event.end();
+        if (event.shouldCommit()) {
+            event.rows = rows;
+            event.attributes = attributes;
+            event.bytes = bytes;
+            event.commit();
+        }
+
+    }
+
+    @Override
+    Object beginAttribute() {
+        return begin(new AttributeEvent());
+    }
+
+    @Override
+    void endAttribute(Object handle, int attribute, String name, String kind, int bins) {
+
+        if (handle == null) {
+            return;
+        }
+        AttributeEvent event = (AttributeEvent) handle;
+        event.end();
+        if (event.shouldCommit()) {
+            event.attribute = attribute;
+            event.name = name;
+            event.kind = kind;
+            event.bins = bins;
+            event.commit();
+        }
+
+    }
+
+    @Override
+    Object beginBuildCAM() {
+        return begin(new BuildCAMEvent());
+    }
+
+    @Override
+    void endBuildCAM(Object handle, long rows, int attributes, long cells, long heapBytes,
+            long nativeBytes, String storage) {
+
+        if (handle == null) {
+            return;
+        }
+        BuildCAMEvent event = (BuildCAMEvent) handle;
+        event.end();
+        if (event.shouldCommit()) {
+            event.rows = rows;
+            event.attributes = attributes;
+            event.cells = cells;
+            event.heapBytes = heapBytes;
+            event.nativeBytes = nativeBytes;
+            event.storage = storage;
+            event.commit();
+        }
+
+    }
+
+    @Override
+    Object beginScoring() {
+        return begin(new ScoreEvent());
+    }
+
+    @Override
+    void endScoring(Object handle, long firstRow, long rows, int attributes) {
+
+        if (handle == null) {
+            return;
+        }
+        ScoreEvent event = (ScoreEvent) handle;
+        event.end();
+        if (event.shouldCommit()) {
+            event.firstRow = firstRow;
+            event.rows = rows;
+            event.attributes = attributes;
+            event.commit();
+        }
+
+    }
+
+    @Override
+    Object beginOutput() {
+        return begin(new OutputEvent());
+    }
+
+    @Override
+    void endOutput(Object handle, long rows, int attributes, long noisyRecords) {
+
+        if (handle == null) {
+            return;
+        }
+        OutputEvent event = (OutputEvent) handle;
+        event.end();
+        if (event.shouldCommit()) {
+            event.rows = rows;
+            event.attributes = attributes;
+            event.noisyRecords = noisyRecords;
+            event.commit();
+        }
+
+    }
+
+}
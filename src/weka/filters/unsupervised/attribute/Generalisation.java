@@ -0,0 +1,426 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    Generalisation.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Step 1 of CAIRAD: maps every attribute onto a small nominal domain. Numeric
+ * and date attributes are split into equal-width bins, exactly as the
+ * unsupervised Discretize filter would (sqrt of the range bins for numeric
+ * attributes, sqrt of the number of distinct values for dates), string
+ * attributes are mapped through a dictionary of their values, and nominal
+ * attributes are left as they are.
+ * <p/>
+ * All bin boundaries and dictionaries are worked out up front from a
+ * DatasetStatistics, so a whole dataset can then be encoded in one pass (see
+ * EncodedDataset) rather than running a filter, and copying the dataset, once
+ * per attribute.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+final class Generalisation implements Serializable {
+
+    /**
+     * For serialization
+     */
+    static final long serialVersionUID = -6602188513913428950L;
+
+    /**
+     * Attribute is nominal and its values are used as they are
+     */
+    static final int NOMINAL = 0;
+
+    /**
+     * Attribute is a string and is mapped through a dictionary
+     */
+    static final int STRING = 1;
+
+    /**
+     * Attribute is numeric or a date and is split into equal-width bins
+     */
+    static final int BINNED = 2;
+
+    /**
+     * Name of each attribute
+     */
+    private final String[] m_names;
+
+    /**
+     * How each attribute is generalised, one of NOMINAL, STRING or BINNED
+     */
+    private final int[] m_kinds;
+
+    /**
+     * Upper (inclusive) bound of each bin but the last for binned attributes,
+     * null if the attribute is not binned or its range could not be split
+     */
+    private final double[][] m_cutPoints;
+
+    /**
+     * Values of each string attribute, null for other attributes
+     */
+    private final String[][] m_dictionaries;
+
+    /**
+     * Lookup from string value to code for each string attribute
+     */
+    private transient HashMap<String, Integer>[] m_dictionaryLookups;
+
+    /**
+     * Domain size of each attribute as used in the expected coappearance
+     * (A_j in the original paper). For binned attributes this is the number
+     * of bins asked for, which can differ from the number of codes when the
+     * range is too small to split.
+     */
+    private final int[] m_attributeDomainSizes;
+
+    /**
+     * Number of distinct codes each generalised attribute can take
+     */
+    private final int[] m_codeDomainSizes;
+
+    /**
+     * Work out the bins and dictionaries for every attribute, without
+     * recording any events.
+     *
+     * @param header - dataset whose attributes are to be generalised
+     * @param stats - statistics gathered over the dataset
+     */
+    Generalisation(Instances header, DatasetStatistics stats) {
+        this(header, stats, PhaseEvents.NONE);
+    }
+
+    /**
+     * Work out the bins and dictionaries for every attribute, recording an
+     * event for each attribute.
+     *
+     * @param header - dataset whose attributes are to be generalised
+     * @param stats - statistics gathered over the dataset
+     * @param events - the events to record
+     */
+    Generalisation(Instances header, DatasetStatistics stats, PhaseEvents events) {
+
+        int numAttributes = header.numAttributes();
+        m_names = new String[numAttributes];
+        m_kinds = new int[numAttributes];
+        m_cutPoints = new double[numAttributes][];
+        m_dictionaries = new String[numAttributes][];
+        m_attributeDomainSizes = new int[numAttributes];
+        m_codeDomainSizes = new int[numAttributes];
+
+        for (int i = 0; i < numAttributes; i++) {
+
+            Object event = events.beginAttribute();
+            Attribute att = header.attribute(i);
+            m_names[i] = att.name();
+
+            if (att.isNumeric()) {
+
+                //work out the number of bins from the range, or from the
+                //number of distinct values for dates
+                double range = att.isDate()
+                        ? stats.distinctCount(i)
+                        : stats.max(i) - stats.min(i);
+                int numBins = (int) Math.round(Math.sqrt(range));
+
+                m_kinds[i] = BINNED;
+                m_cutPoints[i] = equalWidthCutPoints(stats.min(i), stats.max(i), numBins);
+                m_attributeDomainSizes[i] = numBins;
+                m_codeDomainSizes[i] = m_cutPoints[i] == null ? 1 : m_cutPoints[i].length + 1;
+
+            } else if (att.isString()) {
+
+                m_kinds[i] = STRING;
+                m_dictionaries[i] = new String[att.numValues()];
+                for (int v = 0; v < att.numValues(); v++) {
+                    m_dictionaries[i][v] = att.value(v);
+                }
+                m_attributeDomainSizes[i] = att.numValues();
+                m_codeDomainSizes[i] = att.numValues();
+
+            } else {
+
+                m_kinds[i] = NOMINAL;
+                m_attributeDomainSizes[i] = att.numValues();
+                m_codeDomainSizes[i] = att.numValues();
+
+            }
+            events.endAttribute(event, i, m_names[i],
+                    att.isNumeric() ? "numeric" : att.isString() ? "string" : "nominal",
+                    m_attributeDomainSizes[i]);
+
+        }
+
+    }
+
+    /**
+     * Put back a generalisation that was worked out earlier, such as one
+     * read from a saved model.
+     *
+     * @param names - name of each attribute
+     * @param kinds - how each attribute is generalised
+     * @param cutPoints - cut points of each binned attribute
+     * @param dictionaries - values of each string attribute
+     * @param attributeDomainSizes - domain size of each attribute as used in
+     * the expected coappearance
+     * @param codeDomainSizes - number of codes each attribute can take
+     */
+    Generalisation(String[] names, int[] kinds, double[][] cutPoints,
+            String[][] dictionaries, int[] attributeDomainSizes,
+            int[] codeDomainSizes) {
+
+        m_names = names;
+        m_kinds = kinds;
+        m_cutPoints = cutPoints;
+        m_dictionaries = dictionaries;
+        m_attributeDomainSizes = attributeDomainSizes;
+        m_codeDomainSizes = codeDomainSizes;
+
+    }
+
+    /**
+     * Work out equal-width cut points the same way as Discretize.
+     *
+     * @param min - smallest value of the attribute
+     * @param max - largest value of the attribute
+     * @param numBins - number of bins to split the range into
+     * @return the cut points, or null if the range can't be split
+     */
+    private static double[] equalWidthCutPoints(double min, double max, int numBins) {
+
+        if (Double.isNaN(min)) {
+            return null;
+        }
+
+        double binWidth = (max - min) / numBins;
+        if (numBins <= 1 || !(binWidth > 0)) {
+            return null;
+        }
+
+        double[] cutPoints = new double[numBins - 1];
+        for (int i = 1; i < numBins; i++) {
+            cutPoints[i - 1] = min + binWidth * i;
+        }
+        return cutPoints;
+
+    }
+
+    /**
+     * Return the generalised value (code) of an attribute of an instance.
+     * Numeric values are binned, strings are looked up in the dictionary and
+     * nominal values are passed straight through. Missing values get code 0,
+     * as they did when the original implementation cast them to an int.
+     *
+     * @param instance - instance to take the value from
+     * @param attIndex - index of the attribute
+     * @return the code, or -1 for a string that is not in the dictionary
+     */
+    int encode(Instance instance, int attIndex) {
+
+        if (instance.isMissing(attIndex)) {
+            return 0;
+        }
+
+        switch (m_kinds[attIndex]) {
+            case BINNED:
+                return bin(m_cutPoints[attIndex], instance.value(attIndex));
+            case STRING:
+                Integer code = dictionaryLookup(attIndex).get(instance.stringValue(attIndex));
+                return code == null ? -1 : code;
+            default:
+                return (int) instance.value(attIndex);
+        }
+
+    }
+
+    /**
+     * Find the bin a value falls in: the first cut point the value is less
+     * than or equal to, or the last bin if it is above them all.
+     *
+     * @param cutPoints - the cut points, possibly null
+     * @param value - the value to bin
+     * @return the index of the bin
+     */
+    private static int bin(double[] cutPoints, double value) {
+
+        if (cutPoints == null) {
+            return 0;
+        }
+
+        int low = 0;
+        int high = cutPoints.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (value <= cutPoints[mid]) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+
+    }
+
+    /**
+     * Return the lookup from string value to code for a string attribute,
+     * building it on first use.
+     *
+     * @param attIndex - index of the attribute
+     * @return the lookup
+     */
+    @SuppressWarnings("unchecked")
+    private HashMap<String, Integer> dictionaryLookup(int attIndex) {
+
+        if (m_dictionaryLookups == null) {
+            m_dictionaryLookups = new HashMap[m_kinds.length];
+        }
+        if (m_dictionaryLookups[attIndex] == null) {
+            String[] dictionary = m_dictionaries[attIndex];
+            HashMap<String, Integer> lookup = new HashMap<String, Integer>(dictionary.length * 2);
+            for (int v = 0; v < dictionary.length; v++) {
+                lookup.put(dictionary[v], v);
+            }
+            m_dictionaryLookups[attIndex] = lookup;
+        }
+        return m_dictionaryLookups[attIndex];
+
+    }
+
+    /**
+     * Check that a dataset has the attributes this generalisation was
+     * worked out for: the same number, with the same names, and nominal
+     * attributes with the same number of values.
+     *
+     * @param header - the dataset
+     * @throws IllegalArgumentException if the attributes don't match
+     */
+    void checkCompatible(Instances header) {
+
+        if (header.numAttributes() != m_kinds.length) {
+            throw new IllegalArgumentException("Model has " + m_kinds.length
+                    + " attributes, data has " + header.numAttributes());
+        }
+        for (int i = 0; i < m_kinds.length; i++) {
+            Attribute att = header.attribute(i);
+            boolean sameKind = att.isNumeric() ? m_kinds[i] == BINNED
+                    : att.isString() ? m_kinds[i] == STRING
+                    : m_kinds[i] == NOMINAL && att.numValues() == m_codeDomainSizes[i];
+            if (!att.name().equals(m_names[i]) || !sameKind) {
+                throw new IllegalArgumentException("Attribute " + (i + 1) + " ("
+                        + att.name() + ") doesn't match the model's attribute "
+                        + m_names[i]);
+            }
+        }
+
+    }
+
+    /**
+     * Check that another generalisation encodes records exactly as this one
+     * does: the same attributes, cut points and dictionaries. Counts made
+     * with the two can then be added together.
+     *
+     * @param other - the other generalisation
+     * @throws IllegalArgumentException if the generalisations differ
+     */
+    void checkSameBins(Generalisation other) {
+
+        if (!Arrays.equals(m_names, other.m_names) || !Arrays.equals(m_kinds, other.m_kinds)) {
+            throw new IllegalArgumentException("Generalisations are of different attributes");
+        }
+        for (int i = 0; i < m_kinds.length; i++) {
+            if (m_attributeDomainSizes[i] != other.m_attributeDomainSizes[i]
+                    || m_codeDomainSizes[i] != other.m_codeDomainSizes[i]
+                    || !Arrays.equals(m_cutPoints[i], other.m_cutPoints[i])
+                    || !Arrays.equals(m_dictionaries[i], other.m_dictionaries[i])) {
+                throw new IllegalArgumentException("Attribute " + (i + 1) + " ("
+                        + m_names[i] + ") has different bins in each generalisation");
+            }
+        }
+
+    }
+
+    /**
+     * Return the name of each attribute
+     *
+     * @return the attribute names
+     */
+    String[] names() {
+        return m_names;
+    }
+
+    /**
+     * Return how each attribute is generalised, one of NOMINAL, STRING or
+     * BINNED
+     *
+     * @return the kind of each attribute
+     */
+    int[] kinds() {
+        return m_kinds;
+    }
+
+    /**
+     * Return the cut points of a binned attribute
+     *
+     * @param attIndex - index of the attribute
+     * @return the cut points, null if the attribute is not binned or its
+     * range could not be split
+     */
+    double[] cutPoints(int attIndex) {
+        return m_cutPoints[attIndex];
+    }
+
+    /**
+     * Return the values of a string attribute, in code order
+     *
+     * @param attIndex - index of the attribute
+     * @return the dictionary, null if the attribute is not a string
+     */
+    String[] dictionary(int attIndex) {
+        return m_dictionaries[attIndex];
+    }
+
+    /**
+     * Return the domain size of each attribute as used in the expected
+     * coappearance (A_j in the original paper)
+     *
+     * @return the attribute domain sizes
+     */
+    int[] attributeDomainSizes() {
+        return m_attributeDomainSizes;
+    }
+
+    /**
+     * Return the number of distinct codes each generalised attribute can take
+     *
+     * @return the code domain sizes
+     */
+    int[] codeDomainSizes() {
+        return m_codeDomainSizes;
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    HeapCountStore.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+/**
+ * Counts held in one int array on the heap. The pairs' blocks are packed one
+ * after another, and the start of each block is kept in an offset table.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+final class HeapCountStore extends CountStore {
+
+    /**
+     * For serialization
+     */
+    static final long serialVersionUID = -7349712026541834541L;
+
+    /**
+     * Start of each pair's block in m_counts
+     */
+    private final int[] m_offsets;
+
+    /**
+     * The counts
+     */
+    private final int[] m_counts;
+
+    /**
+     * Allocate zeroed counts for blocks of the given sizes.
+     *
+     * @param pairSizes - number of cells in each attribute pair's block
+     */
+    HeapCountStore(long[] pairSizes) {
+
+        super(pairSizes);
+
+        long numCells = numCells();
+        if (numCells > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Coappearance matrix needs "
+                    + numCells + " cells, more than a single array can hold");
+        }
+
+        m_offsets = new int[pairSizes.length];
+        int offset = 0;
+        for (int pair = 0; pair < pairSizes.length; pair++) {
+            m_offsets[pair] = offset;
+            offset += (int) pairSizes[pair];
+        }
+        m_counts = new int[(int) numCells];
+
+    }
+
+    @Override
+    long heapBytes() {
+        return (long) m_counts.length * 4 + (long) m_offsets.length * 4;
+    }
+
+    @Override
+    long get(int pair, long index) {
+        return m_counts[m_offsets[pair] + (int) index];
+    }
+
+    @Override
+    void add(int pair, long index, long delta) {
+        m_counts[m_offsets[pair] + (int) index] += delta;
+    }
+
+    @Override
+    void countBlock(int pair, int[] xs, int[] ys, int stride, int count) {
+
+        int[] counts = m_counts;
+        int offset = m_offsets[pair];
+        for (int r = 0; r < count; r++) {
+            counts[offset + xs[r] * stride + ys[r]]++;
+        }
+
+    }
+
+    @Override
+    void addAll(CountStore other) {
+
+        if (!(other instanceof HeapCountStore)) {
+            super.addAll(other);
+            return;
+        }
+
+        int[] otherCounts = ((HeapCountStore) other).m_counts;
+        for (int i = 0; i < m_counts.length; i++) {
+            m_counts[i] += otherCounts[i];
+        }
+
+    }
+
+}
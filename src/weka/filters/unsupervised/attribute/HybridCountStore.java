@@ -0,0 +1,363 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    HybridCountStore.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Counts held per attribute pair, either densely or in a hash map. A pair
+ * of high-cardinality attributes (customer and product IDs, say) has far
+ * more cells than there are records to fill them, so most of its dense block
+ * would be zeros. n records can fill at most n cells of a pair, so a pair is
+ * held in an open-addressing map from cell index to count when its block has
+ * more than SPARSE_RATIO * n cells, and in a dense int array otherwise. At a
+ * load factor of at most one half each filled cell costs at most 24 bytes of
+ * map against 4 bytes per cell of the dense block, hence the ratio of 6.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+final class HybridCountStore extends CountStore {
+
+    /**
+     * For serialization
+     */
+    static final long serialVersionUID = -4176542230391608432L;
+
+    /**
+     * A pair is held sparsely when its block has more than this many cells
+     * per record counted
+     */
+    static final int SPARSE_RATIO = 6;
+
+    /**
+     * Counts of each densely held pair, null for sparse pairs
+     */
+    private final int[][] m_dense;
+
+    /**
+     * Counts of each sparsely held pair, null for dense pairs
+     */
+    private final SparseBlock[] m_sparse;
+
+    /**
+     * Allocate zeroed counts, choosing dense or sparse storage for each pair.
+     *
+     * @param pairSizes - number of cells in each attribute pair's block
+     * @param numRows - number of records that will be counted
+     */
+    HybridCountStore(long[] pairSizes, long numRows) {
+
+        super(pairSizes);
+
+        m_dense = new int[pairSizes.length][];
+        m_sparse = new SparseBlock[pairSizes.length];
+        for (int pair = 0; pair < pairSizes.length; pair++) {
+            if (pairSizes[pair] > SPARSE_RATIO * numRows
+                    || pairSizes[pair] > Integer.MAX_VALUE - 8) {
+                m_sparse[pair] = new SparseBlock();
+            } else {
+                m_dense[pair] = new int[(int) pairSizes[pair]];
+            }
+        }
+
+    }
+
+    /**
+     * Return whether a pair is held sparsely
+     *
+     * @param pair - index of the pair
+     * @return whether or not the pair is in a hash map
+     */
+    boolean isSparse(int pair) {
+        return m_sparse[pair] != null;
+    }
+
+    @Override
+    long numListedCells(int pair) {
+        return m_sparse[pair] != null ? m_sparse[pair].m_size : -1;
+    }
+
+    @Override
+    void listedCells(int pair, long[] indices, long[] counts) {
+
+        SparseBlock sparse = m_sparse[pair];
+        int cell = 0;
+        for (long key : sparse.m_keys) {
+            if (key != SparseBlock.EMPTY) {
+                indices[cell++] = key;
+            }
+        }
+        Arrays.sort(indices, 0, cell);
+        for (int i = 0; i < cell; i++) {
+            counts[i] = sparse.get(indices[i]);
+        }
+
+    }
+
+    @Override
+    long get(int pair, long index) {
+        int[] dense = m_dense[pair];
+        return dense != null ? dense[(int) index] : m_sparse[pair].get(index);
+    }
+
+    @Override
+    void add(int pair, long index, long delta) {
+        int[] dense = m_dense[pair];
+        if (dense != null) {
+            dense[(int) index] += delta;
+        } else {
+            m_sparse[pair].add(index, (int) delta);
+        }
+    }
+
+    @Override
+    void countBlock(int pair, int[] xs, int[] ys, int stride, int count) {
+
+        int[] dense = m_dense[pair];
+        if (dense != null) {
+            for (int r = 0; r < count; r++) {
+                dense[xs[r] * stride + ys[r]]++;
+            }
+        } else {
+            SparseBlock sparse = m_sparse[pair];
+            for (int r = 0; r < count; r++) {
+                sparse.add((long) xs[r] * stride + ys[r], 1);
+            }
+        }
+
+    }
+
+    @Override
+    void addAll(CountStore other) {
+
+        if (!(other instanceof HybridCountStore)) {
+            super.addAll(other);
+            return;
+        }
+
+        //only visit the filled cells of sparse pairs
+        HybridCountStore hybrid = (HybridCountStore) other;
+        for (int pair = 0; pair < m_dense.length; pair++) {
+            if (hybrid.m_sparse[pair] != null) {
+                SparseBlock sparse = hybrid.m_sparse[pair];
+                for (int slot = 0; slot < sparse.m_keys.length; slot++) {
+                    if (sparse.m_keys[slot] != SparseBlock.EMPTY) {
+                        add(pair, sparse.m_keys[slot], sparse.m_values[slot]);
+                    }
+                }
+            } else {
+                int[] dense = hybrid.m_dense[pair];
+                for (int index = 0; index < dense.length; index++) {
+                    if (dense[index] != 0) {
+                        add(pair, index, dense[index]);
+                    }
+                }
+            }
+        }
+
+    }
+
+    @Override
+    long heapBytes() {
+
+        long bytes = 0;
+        for (int pair = 0; pair < m_dense.length; pair++) {
+            bytes += m_dense[pair] != null
+                    ? (long) m_dense[pair].length * 4
+                    : (long) m_sparse[pair].m_keys.length * 12;
+        }
+        return bytes;
+
+    }
+
+    /**
+     * Open-addressing hash map from cell index to count, with linear
+     * probing. Keys and values are kept in parallel primitive arrays, so
+     * nothing is boxed. A cell whose count goes back to zero, as a record
+     * leaving a window takes its counts out, gives up its slot, so the map
+     * only holds the cells of the records counted in and not taken out.
+     */
+    static final class SparseBlock implements Serializable {
+
+        /**
+         * For serialization
+         */
+        static final long serialVersionUID = 8816627010302542174L;
+
+        /**
+         * Key of an empty slot; cell indices are never negative
+         */
+        static final long EMPTY = -1;
+
+        /**
+         * Cell index held in each slot, EMPTY for none
+         */
+        long[] m_keys;
+
+        /**
+         * Count held in each slot
+         */
+        int[] m_values;
+
+        /**
+         * Number of filled slots
+         */
+        private int m_size;
+
+        /**
+         * Create an empty map.
+         */
+        SparseBlock() {
+            allocate(16);
+        }
+
+        /**
+         * Allocate empty slots.
+         *
+         * @param capacity - number of slots, a power of two
+         */
+        private void allocate(int capacity) {
+            m_keys = new long[capacity];
+            Arrays.fill(m_keys, EMPTY);
+            m_values = new int[capacity];
+        }
+
+        /**
+         * Slot a key's probe starts from.
+         *
+         * @param key - the cell index
+         * @return the slot
+         */
+        private int home(long key) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & (m_keys.length - 1);
+        }
+
+        /**
+         * Return the count of a cell.
+         *
+         * @param key - the cell index
+         * @return the count, 0 if the cell isn't held
+         */
+        int get(long key) {
+
+            int mask = m_keys.length - 1;
+            for (int slot = home(key);; slot = (slot + 1) & mask) {
+                long k = m_keys[slot];
+                if (k == key) {
+                    return m_values[slot];
+                } else if (k == EMPTY) {
+                    return 0;
+                }
+            }
+
+        }
+
+        /**
+         * Add to the count of a cell, growing the map to keep it at most
+         * half full.
+         *
+         * @param key - the cell index
+         * @param delta - amount to add
+         */
+        void add(long key, int delta) {
+
+            int mask = m_keys.length - 1;
+            for (int slot = home(key);; slot = (slot + 1) & mask) {
+                long k = m_keys[slot];
+                if (k == key) {
+                    m_values[slot] += delta;
+                    if (m_values[slot] == 0) {
+                        remove(slot);
+                    }
+                    return;
+                } else if (k == EMPTY) {
+                    if (delta == 0) {
+                        return;
+                    }
+                    m_keys[slot] = key;
+                    m_values[slot] = delta;
+                    if (++m_size > m_keys.length >>> 1) {
+                        grow();
+                    }
+                    return;
+                }
+            }
+
+        }
+
+        /**
+         * Empty a slot. Keys probed past it are shifted back into the gap
+         * (backward-shift deletion), so every key can still be reached from
+         * its home slot without leaving markers behind.
+         *
+         * @param slot - the slot to empty
+         */
+        private void remove(int slot) {
+
+            int mask = m_keys.length - 1;
+            int gap = slot;
+            for (int next = (gap + 1) & mask;; next = (next + 1) & mask) {
+                long k = m_keys[next];
+                if (k == EMPTY) {
+                    break;
+                }
+                //the key can fill the gap if its home isn't between the gap
+                //and where it is now
+                if (((next - home(k)) & mask) >= ((next - gap) & mask)) {
+                    m_keys[gap] = k;
+                    m_values[gap] = m_values[next];
+                    gap = next;
+                }
+            }
+            m_keys[gap] = EMPTY;
+            m_values[gap] = 0;
+            m_size--;
+
+        }
+
+        /**
+         * Double the number of slots and put every filled slot back.
+         */
+        private void grow() {
+
+            long[] keys = m_keys;
+            int[] values = m_values;
+            allocate(keys.length << 1);
+            int mask = m_keys.length - 1;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY) {
+                    int slot = home(keys[i]);
+                    while (m_keys[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    m_keys[slot] = keys[i];
+                    m_values[slot] = values[i];
+                }
+            }
+
+        }
+
+    }
+
+}
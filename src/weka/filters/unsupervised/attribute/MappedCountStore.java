@@ -0,0 +1,320 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    MappedCountStore.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only counts memory mapped from the count section of a saved model
+ * (see ModelFile). Nothing is read up front; pages of the file are brought in
+ * by the operating system as cells are first looked at, so opening a model
+ * takes the same time whatever the size of its CAM. The section is mapped in
+ * chunks of 1GB, as a single mapping can't be larger than 2GB; every count
+ * and index is aligned to its own size, so none straddles two chunks.
+ * <p/>
+ * Each pair is laid out the way it was held when saved: a dense block is
+ * looked up directly, a list of cells by binary search over its sorted
+ * indices, and a sketch by taking the smallest of the cell's counters, as in
+ * SketchCountStore.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+final class MappedCountStore extends CountStore {
+
+    /**
+     * For serialization
+     */
+    static final long serialVersionUID = 6023117400960722471L;
+
+    /**
+     * Log2 of the number of bytes in each mapped chunk
+     */
+    private static final int CHUNK_SHIFT = 30;
+
+    /**
+     * Mask giving a byte's position within its chunk
+     */
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    /**
+     * The model file
+     */
+    private final File m_file;
+
+    /**
+     * Position of the count section in the file
+     */
+    private final long m_position;
+
+    /**
+     * Number of bytes in each count, 4 or 8
+     */
+    private final int m_countWidth;
+
+    /**
+     * How each pair is laid out, one of ModelFile's DENSE_PAIR, LISTED_PAIR
+     * and SKETCHED_PAIR
+     */
+    private final int[] m_layouts;
+
+    /**
+     * Number of cells each listed pair holds
+     */
+    private final long[] m_numListed;
+
+    /**
+     * Number of counters in each row of a sketch
+     */
+    private final int m_sketchWidth;
+
+    /**
+     * Number of rows in each sketch
+     */
+    private final int m_sketchDepth;
+
+    /**
+     * Hash functions of the sketches, null if no pair is sketched
+     */
+    private final long[][] m_hashes;
+
+    /**
+     * Position of each pair's counts within the count section
+     */
+    private final long[] m_pairStarts;
+
+    /**
+     * Number of bytes in the count section
+     */
+    private final long m_sectionBytes;
+
+    /**
+     * The mapped chunks, mapped again when the store is deserialized
+     */
+    private transient ByteBuffer[] m_chunks;
+
+    /**
+     * Map the count section of a file, whose pairs are laid out as written
+     * by ModelFile, one after another in pair order.
+     *
+     * @param file - the file
+     * @param position - position of the count section in the file
+     * @param countWidth - number of bytes in each count, 4 or 8
+     * @param pairSizes - number of cells in each attribute pair's block
+     * @param layouts - how each pair is laid out
+     * @param numListed - number of cells each listed pair holds
+     * @param sketchWidth - number of counters in each row of a sketch
+     * @param sketchDepth - number of rows in each sketch
+     * @throws IOException if the file can't be mapped
+     */
+    MappedCountStore(File file, long position, int countWidth, long[] pairSizes, int[] layouts,
+            long[] numListed, int sketchWidth, int sketchDepth) throws IOException {
+
+        super(pairSizes);
+        m_file = file;
+        m_position = position;
+        m_countWidth = countWidth;
+        m_layouts = layouts;
+        m_numListed = numListed;
+        m_sketchWidth = sketchWidth;
+        m_sketchDepth = sketchDepth;
+        m_hashes = sketchDepth > 0 ? SketchCountStore.hashes(sketchDepth) : null;
+
+        m_pairStarts = new long[pairSizes.length];
+        long start = 0;
+        for (int pair = 0; pair < pairSizes.length; pair++) {
+            m_pairStarts[pair] = start;
+            start += ModelFile.pairBytes(layouts[pair], pairSizes[pair], numListed[pair],
+                    sketchWidth, sketchDepth, countWidth);
+        }
+        m_sectionBytes = start;
+
+        map();
+
+    }
+
+    /**
+     * Map the count section, a chunk at a time.
+     *
+     * @throws IOException if the file can't be mapped
+     */
+    private void map() throws IOException {
+
+        int numChunks = (int) ((m_sectionBytes + CHUNK_MASK) >>> CHUNK_SHIFT);
+        m_chunks = new ByteBuffer[numChunks];
+
+        //a mapping stays valid once the channel it came from is closed
+        RandomAccessFile in = new RandomAccessFile(m_file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() < m_position + m_sectionBytes) {
+                throw new IOException(m_file + " is too short to hold its counts");
+            }
+            for (int c = 0; c < numChunks; c++) {
+                long first = (long) c << CHUNK_SHIFT;
+                long size = Math.min(CHUNK_MASK + 1, m_sectionBytes - first);
+                m_chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, m_position + first, size)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } finally {
+            in.close();
+        }
+
+    }
+
+    /**
+     * Read a long from the count section.
+     *
+     * @param offset - position of the long in the section
+     * @return the long
+     */
+    private long readLong(long offset) {
+        return m_chunks[(int) (offset >>> CHUNK_SHIFT)].getLong((int) (offset & CHUNK_MASK));
+    }
+
+    /**
+     * Read a count from the count section.
+     *
+     * @param offset - position of the count in the section
+     * @return the count
+     */
+    private long readCount(long offset) {
+        return m_countWidth == 8
+                ? readLong(offset)
+                : m_chunks[(int) (offset >>> CHUNK_SHIFT)].getInt((int) (offset & CHUNK_MASK));
+    }
+
+    /**
+     * Find a cell in a listed pair.
+     *
+     * @param pair - index of a listed pair
+     * @param index - index of the cell
+     * @return the cell's position in the list, -1 if it isn't listed
+     */
+    private long find(int pair, long index) {
+
+        long start = m_pairStarts[pair];
+        long low = 0;
+        long high = m_numListed[pair] - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            long key = readLong(start + middle * 8);
+            if (key < index) {
+                low = middle + 1;
+            } else if (key > index) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+
+    }
+
+    @Override
+    long nativeBytes() {
+        return m_sectionBytes;
+    }
+
+    @Override
+    long numListedCells(int pair) {
+        return m_layouts[pair] == ModelFile.LISTED_PAIR ? m_numListed[pair] : -1;
+    }
+
+    @Override
+    void listedCells(int pair, long[] indices, long[] counts) {
+
+        long start = m_pairStarts[pair];
+        long countStart = start + m_numListed[pair] * 8;
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = readLong(start + (long) i * 8);
+            counts[i] = readCount(countStart + (long) i * m_countWidth);
+        }
+
+    }
+
+    @Override
+    boolean isSketched(int pair) {
+        return m_layouts[pair] == ModelFile.SKETCHED_PAIR;
+    }
+
+    @Override
+    int sketchWidth() {
+        return m_sketchWidth;
+    }
+
+    @Override
+    int sketchDepth() {
+        return m_sketchDepth;
+    }
+
+    @Override
+    long sketchCounter(int pair, int counter) {
+        return readCount(m_pairStarts[pair] + (long) counter * m_countWidth);
+    }
+
+    @Override
+    long get(int pair, long index) {
+
+        long start = m_pairStarts[pair];
+        switch (m_layouts[pair]) {
+            case ModelFile.LISTED_PAIR:
+                long cell = find(pair, index);
+                return cell < 0 ? 0
+                        : readCount(start + m_numListed[pair] * 8 + cell * m_countWidth);
+            case ModelFile.SKETCHED_PAIR:
+                long estimate = Long.MAX_VALUE;
+                for (int row = 0; row < m_sketchDepth; row++) {
+                    int counter = SketchCountStore.counter(m_hashes, m_sketchWidth, row, index);
+                    estimate = Math.min(estimate, readCount(start + (long) counter * m_countWidth));
+                }
+                return estimate;
+            default:
+                return readCount(start + index * m_countWidth);
+        }
+
+    }
+
+    @Override
+    void add(int pair, long index, long delta) {
+        throw new UnsupportedOperationException("Counts mapped from "
+                + m_file + " are read-only");
+    }
+
+    /**
+     * Read the store back in and map the file again.
+     *
+     * @param in - the stream to read from
+     * @throws IOException if the file can't be mapped
+     * @throws ClassNotFoundException never
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        map();
+    }
+
+}
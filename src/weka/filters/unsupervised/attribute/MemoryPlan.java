@@ -0,0 +1,494 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    MemoryPlan.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.io.Serializable;
+
+/**
+ * How much memory CAIRAD needs for a generalised dataset with each kind of
+ * count storage, worked out from the attributes' domain sizes before
+ * anything is allocated, and which storage fits. The CAM has
+ * sum_j sum_k&gt;j d_j * d_k cells, where d_j is the number of codes of
+ * attribute j; on top of it CAIRAD holds a working set of the encoded
+ * records, the noisy attribute matrix, the value appearances, the verdict
+ * tables if they are used, the records of a sliding window if there is one,
+ * and the partial CAMs of a parallel build split by rows, which are each as
+ * large as the CAM. Reducing the CAM to a window's records builds a second
+ * CAM while the first is still held. A half-life keeps the decayed counts
+ * of the records since training apart from the CAM, as doubles, in blocks
+ * that are dense or hashed the way DecayedCoappearanceMatrix chooses; their
+ * size is an upper bound.
+ * <p/>
+ * Heap, off-heap and sketch sizes are exact. Hybrid and adaptive sizes are
+ * upper bounds: a sparse pair's hash map can't hold more cells than there
+ * are records, and an adaptive counter is never wider than the number of
+ * records needs, though most stay one or two bytes wide.
+ * <p/>
+ * A storage fits when the heap it needs is no more than the heap that was
+ * free when planning, the heap and native memory together are no more than
+ * the budget, if there is one, and none of its arrays would be too large.
+ * When the storage is left to the plan, the first that fits of heap,
+ * adaptive, hybrid, off-heap and sketch is chosen, so approximate counts are
+ * only used when no exact storage fits. explain() reports the sizes and why
+ * each storage does or doesn't fit.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+public final class MemoryPlan implements Serializable {
+
+    /**
+     * For serialization
+     */
+    static final long serialVersionUID = -2271948302756186430L;
+
+    /**
+     * Order storages are tried in when the plan chooses
+     */
+    private static final int[] PREFERENCE = {CAIRAD.STORAGE_HEAP, CAIRAD.STORAGE_ADAPTIVE,
+        CAIRAD.STORAGE_HYBRID, CAIRAD.STORAGE_OFF_HEAP, CAIRAD.STORAGE_SKETCH};
+
+    /**
+     * Number of kinds of storage, not counting automatic
+     */
+    private static final int NUM_STORAGES = 5;
+
+    /**
+     * Largest array the JVM can allocate
+     */
+    private static final long MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+    /**
+     * Number of attributes
+     */
+    private final int m_numAttributes;
+
+    /**
+     * Number of records counted
+     */
+    private final long m_numRows;
+
+    /**
+     * Number of attribute pairs
+     */
+    private final int m_numPairs;
+
+    /**
+     * Number of cells in the CAM
+     */
+    private final long m_numCells;
+
+    /**
+     * Bytes of the encoded records
+     */
+    private final long m_encodedBytes;
+
+    /**
+     * Bytes of the noisy attribute matrix
+     */
+    private final long m_noisyBytes;
+
+    /**
+     * Bytes of the value appearances
+     */
+    private final long m_appearanceBytes;
+
+    /**
+     * Bytes of the verdict tables, 0 if they aren't used
+     */
+    private final long m_verdictBytes;
+
+    /**
+     * Bytes of the sliding window's records, 0 if there is no window
+     */
+    private final long m_windowBytes;
+
+    /**
+     * Most bytes of the decayed counts, 0 if there is no half-life
+     */
+    private final long m_decayedBytes;
+
+    /**
+     * Number of partial CAMs, and the window's CAM, held alongside the CAM
+     */
+    private final int m_extraCAMs;
+
+    /**
+     * Budget for heap and native memory together, 0 for none
+     */
+    private final long m_budget;
+
+    /**
+     * Heap free when planning
+     */
+    private final long m_freeHeap;
+
+    /**
+     * Storage asked for, one of CAIRAD's STORAGE_ constants
+     */
+    private final int m_requested;
+
+    /**
+     * Heap bytes of the CAM with each storage
+     */
+    private final long[] m_camHeapBytes = new long[NUM_STORAGES];
+
+    /**
+     * Native bytes of the CAM with each storage
+     */
+    private final long[] m_camNativeBytes = new long[NUM_STORAGES];
+
+    /**
+     * Why each storage doesn't fit, null for those that do
+     */
+    private final String[] m_problems = new String[NUM_STORAGES];
+
+    /**
+     * The storage chosen, -1 if the one asked for, or every one, doesn't
+     * fit
+     */
+    private final int m_storage;
+
+    /**
+     * Work out the plan.
+     *
+     * @param domainSizes - number of codes of each generalised attribute
+     * @param numRows - number of records counted into the CAM
+     * @param rowsInMemory - number of records encoded and scored in memory,
+     * 0 when they are streamed
+     * @param extraCAMs - number of partial CAMs a parallel build holds
+     * alongside the CAM
+     * @param verdictTables - whether verdict tables are built
+     * @param windowSize - number of records in the sliding window, 0 for
+     * none
+     * @param halfLife - number of records after which a decayed count has
+     * halved, 0 for no decay
+     * @param sketchWidth - number of counters in each row of a sketch
+     * @param sketchDepth - number of rows in each sketch
+     * @param requested - the storage asked for, one of CAIRAD's STORAGE_
+     * constants
+     * @param budget - bytes of heap and native memory that may be used, 0
+     * for no budget
+     * @param freeHeap - bytes of heap free
+     */
+    MemoryPlan(int[] domainSizes, long numRows, long rowsInMemory, int extraCAMs,
+            boolean verdictTables, int windowSize, double halfLife, int sketchWidth,
+            int sketchDepth, int requested, long budget, long freeHeap) {
+
+        m_numAttributes = domainSizes.length;
+        m_numRows = numRows;
+        m_extraCAMs = windowSize > 0 && numRows > windowSize ? extraCAMs + 1 : extraCAMs;
+        m_budget = budget;
+        m_freeHeap = freeHeap;
+        m_requested = requested;
+
+        long[] pairSizes = CountStore.pairSizes(domainSizes);
+        m_numPairs = pairSizes.length;
+        long numCells = 0;
+        long largestPair = 0;
+        for (long pairSize : pairSizes) {
+            numCells += pairSize;
+            largestPair = Math.max(largestPair, pairSize);
+        }
+        m_numCells = numCells;
+
+        //the working set
+        long appearances = 0;
+        for (int domainSize : domainSizes) {
+            appearances += domainSize;
+        }
+        m_appearanceBytes = appearances * 8;
+        m_encodedBytes = rowsInMemory * EncodedDataset.bytesPerRow(domainSizes);
+        long noisyWords = rowsInMemory * ((m_numAttributes + 63) >>> 6);
+        m_noisyBytes = noisyWords * 8;
+        long verdictWords = (numCells + 31) / 32;
+        m_verdictBytes = verdictTables ? verdictWords * 8 + (long) m_numPairs * 8 : 0;
+        long windowCodes = (long) windowSize * m_numAttributes;
+        m_windowBytes = windowCodes * 4;
+        m_decayedBytes = halfLife > 0
+                ? DecayedCoappearanceMatrix.heapBytes(domainSizes, halfLife) : 0;
+
+        //the CAM with each storage
+        m_camHeapBytes[CAIRAD.STORAGE_HEAP] = numCells * 4 + (long) m_numPairs * 4;
+        if (numCells > MAX_ARRAY) {
+            m_problems[CAIRAD.STORAGE_HEAP] = numCells + " cells are more than one array can hold";
+        }
+
+        m_camNativeBytes[CAIRAD.STORAGE_OFF_HEAP] = numCells * 4;
+
+        long hybrid = 0;
+        for (long pairSize : pairSizes) {
+            if (pairSize > HybridCountStore.SPARSE_RATIO * numRows || pairSize > MAX_ARRAY) {
+                //a map at most half full of the cells seen
+                long entries = Math.min(pairSize, numRows);
+                hybrid += Math.max(16, nextPowerOfTwo(2 * entries)) * 12;
+            } else {
+                hybrid += pairSize * 4;
+            }
+        }
+        m_camHeapBytes[CAIRAD.STORAGE_HYBRID] = hybrid;
+
+        long sketchSize = (long) sketchWidth * sketchDepth;
+        long sketch = 0;
+        for (long pairSize : pairSizes) {
+            sketch += Math.min(pairSize, sketchSize) * 8;
+        }
+        m_camHeapBytes[CAIRAD.STORAGE_SKETCH] = sketch;
+        if (sketchSize > MAX_ARRAY) {
+            m_problems[CAIRAD.STORAGE_SKETCH] = "a sketch of " + sketchSize
+                    + " counters is more than one array can hold";
+        }
+
+        m_camHeapBytes[CAIRAD.STORAGE_ADAPTIVE] = numCells * AdaptiveCountStore.widthOf(numRows);
+        if (largestPair > MAX_ARRAY) {
+            m_problems[CAIRAD.STORAGE_ADAPTIVE] = "an attribute pair of " + largestPair
+                    + " cells is more than one array can hold";
+        }
+
+        if (verdictWords > MAX_ARRAY && verdictTables) {
+            for (int storage = 0; storage < NUM_STORAGES; storage++) {
+                if (m_problems[storage] == null) {
+                    m_problems[storage] = "verdict tables of " + numCells
+                            + " cells are more than one array can hold";
+                }
+            }
+        }
+        if (windowCodes > MAX_ARRAY) {
+            for (int storage = 0; storage < NUM_STORAGES; storage++) {
+                if (m_problems[storage] == null) {
+                    m_problems[storage] = "a window of " + windowSize
+                            + " records is more than one array can hold";
+                }
+            }
+        }
+        if (noisyWords > MAX_ARRAY) {
+            for (int storage = 0; storage < NUM_STORAGES; storage++) {
+                if (m_problems[storage] == null) {
+                    m_problems[storage] = "the noisy attribute matrix is more than one array can hold";
+                }
+            }
+        }
+
+        //what each storage needs in all
+        for (int storage = 0; storage < NUM_STORAGES; storage++) {
+            if (m_problems[storage] != null) {
+                continue;
+            }
+            long heap = getHeapBytes(storage);
+            long total = heap + getNativeBytes(storage);
+            if (heap > freeHeap) {
+                m_problems[storage] = "needs " + megabytes(heap) + " MB of heap, "
+                        + megabytes(freeHeap) + " MB free";
+            } else if (budget > 0 && total > budget) {
+                m_problems[storage] = "needs " + megabytes(total) + " MB, budget "
+                        + megabytes(budget) + " MB";
+            }
+        }
+
+        int chosen = -1;
+        if (requested == CAIRAD.STORAGE_AUTO) {
+            for (int storage : PREFERENCE) {
+                if (m_problems[storage] == null) {
+                    chosen = storage;
+                    break;
+                }
+            }
+        } else if (m_problems[requested] == null) {
+            chosen = requested;
+        }
+        m_storage = chosen;
+
+    }
+
+    /**
+     * Return the smallest power of two at least as large as a number.
+     *
+     * @param n - the number, at least 1
+     * @return the power of two
+     */
+    private static long nextPowerOfTwo(long n) {
+        return n <= 1 ? 1 : Long.highestOneBit(n - 1) << 1;
+    }
+
+    /**
+     * Format bytes as megabytes.
+     *
+     * @param bytes - the bytes
+     * @return the formatted size
+     */
+    private static String megabytes(long bytes) {
+        return String.format("%.1f", bytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Return whether the storage asked for, or any storage if the choice was
+     * left to the plan, fits
+     *
+     * @return true if there is a storage to use
+     */
+    public boolean isFeasible() {
+        return m_storage >= 0;
+    }
+
+    /**
+     * Return the storage chosen
+     *
+     * @return one of CAIRAD's STORAGE_ constants, -1 if nothing fits
+     */
+    public int getStorage() {
+        return m_storage;
+    }
+
+    /**
+     * Return the number of cells in the CAM
+     *
+     * @return the number of cells
+     */
+    public long getCAMCells() {
+        return m_numCells;
+    }
+
+    /**
+     * Return the heap bytes of the CAM alone with a storage
+     *
+     * @param storage - one of CAIRAD's STORAGE_ constants, other than
+     * automatic
+     * @return the bytes
+     */
+    public long getCAMHeapBytes(int storage) {
+        return m_camHeapBytes[storage];
+    }
+
+    /**
+     * Return the native bytes of the CAM alone with a storage
+     *
+     * @param storage - one of CAIRAD's STORAGE_ constants, other than
+     * automatic
+     * @return the bytes
+     */
+    public long getCAMNativeBytes(int storage) {
+        return m_camNativeBytes[storage];
+    }
+
+    /**
+     * Return the heap bytes of everything but the CAMs
+     *
+     * @return the bytes
+     */
+    public long getWorkingSetBytes() {
+        return m_encodedBytes + m_noisyBytes + m_appearanceBytes + m_verdictBytes
+                + m_windowBytes + m_decayedBytes;
+    }
+
+    /**
+     * Return the heap bytes needed in all with a storage: the working set,
+     * the CAM and any partial CAMs or window CAM
+     *
+     * @param storage - one of CAIRAD's STORAGE_ constants, other than
+     * automatic
+     * @return the bytes
+     */
+    public long getHeapBytes(int storage) {
+        return getWorkingSetBytes() + m_camHeapBytes[storage] * (1 + m_extraCAMs);
+    }
+
+    /**
+     * Return the native bytes needed in all with a storage
+     *
+     * @param storage - one of CAIRAD's STORAGE_ constants, other than
+     * automatic
+     * @return the bytes
+     */
+    public long getNativeBytes(int storage) {
+        return m_camNativeBytes[storage] * (1 + m_extraCAMs);
+    }
+
+    /**
+     * Return why a storage doesn't fit
+     *
+     * @param storage - one of CAIRAD's STORAGE_ constants, other than
+     * automatic
+     * @return the reason, null if it fits
+     */
+    public String getProblem(int storage) {
+        return m_problems[storage];
+    }
+
+    /**
+     * Describe the plan: the working set, what each storage needs and
+     * whether it fits, and the storage chosen.
+     *
+     * @return the report
+     */
+    public String explain() {
+
+        StringBuilder result = new StringBuilder();
+        result.append("Memory plan for ").append(m_numRows).append(" records of ")
+                .append(m_numAttributes).append(" attributes: ").append(m_numCells)
+                .append(" CAM cells in ").append(m_numPairs).append(" attribute pairs\n");
+        result.append("Working set (MB): ").append(megabytes(m_encodedBytes))
+                .append(" encoded records, ").append(megabytes(m_noisyBytes))
+                .append(" noisy attribute matrix, ").append(megabytes(m_appearanceBytes))
+                .append(" value appearances, ").append(megabytes(m_verdictBytes))
+                .append(" verdict tables, ").append(megabytes(m_windowBytes))
+                .append(" window, ").append(megabytes(m_decayedBytes))
+                .append(" decayed counts\n");
+        if (m_extraCAMs > 0) {
+            result.append("CAMs held alongside the CAM (partial CAMs of a parallel build, ")
+                    .append("window CAM): ").append(m_extraCAMs).append("\n");
+        }
+        result.append("Free heap: ").append(megabytes(m_freeHeap)).append(" MB, budget: ")
+                .append(m_budget > 0 ? megabytes(m_budget) + " MB" : "none").append("\n");
+
+        result.append(String.format("%-10s %12s %14s %12s %12s  %s%n", "Storage", "CAM heap MB",
+                "CAM native MB", "Heap MB", "Native MB", "Fits"));
+        for (int storage : PREFERENCE) {
+            String name = CAIRAD.TAGS_STORAGE[storage].getIDStr();
+            if (storage == CAIRAD.STORAGE_HYBRID || storage == CAIRAD.STORAGE_ADAPTIVE) {
+                name += "*";
+            }
+            result.append(String.format("%-10s %12s %14s %12s %12s  %s%n", name,
+                    megabytes(m_camHeapBytes[storage]), megabytes(m_camNativeBytes[storage]),
+                    megabytes(getHeapBytes(storage)), megabytes(getNativeBytes(storage)),
+                    m_problems[storage] == null ? "yes" : "no, " + m_problems[storage]));
+        }
+        result.append("* upper bound\n");
+
+        String requested = m_requested == CAIRAD.STORAGE_AUTO
+                ? "automatic" : CAIRAD.TAGS_STORAGE[m_requested].getIDStr();
+        result.append("Storage asked for: ").append(requested).append(", chosen: ")
+                .append(m_storage >= 0 ? CAIRAD.TAGS_STORAGE[m_storage].getIDStr() : "none")
+                .append("\n");
+        return result.toString();
+
+    }
+
+    /**
+     * Return the report from explain().
+     *
+     * @return the report
+     */
+    @Override
+    public String toString() {
+        return explain();
+    }
+
+}
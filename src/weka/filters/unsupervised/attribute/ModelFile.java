@@ -0,0 +1,692 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    ModelFile.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads and writes a trained CAIRAD model: the bins and dictionaries of the
+ * generalisation, the value appearances and coappearance counts of the CAM,
+ * and tau and lambda. Partial models, the CAMs of single data shards counted
+ * with shared bins (see PartialCAIRAD), are written the same way with a
+ * different magic and no tau or lambda. Everything is little-endian:
+ * <pre>
+ * preamble (32 bytes)
+ *   magic           8 bytes, "CAIRADM" (or "CAIRADP" for a partial) followed
+ *                   by a 0 byte
+ *   version         int
+ *   count width     int, 4 or 8 bytes per count
+ *   count offset    long, position of the count section
+ *   number of cells long
+ * header
+ *   tau, lambda     double, double, NaN in a partial
+ *   attributes      int
+ *   per attribute
+ *     name                  string
+ *     kind                  int, NOMINAL, STRING or BINNED
+ *     attribute domain size int
+ *     code domain size      int
+ *     cut points            int count (-1 for none) then doubles, binned only
+ *     dictionary            int count then strings, string only
+ *     value appearances     long per code
+ *   sketch width, depth     int, int, 0 and 0 if no pair is sketched
+ *   per attribute pair
+ *     layout                int, DENSE_PAIR, LISTED_PAIR or SKETCHED_PAIR
+ *     listed cells          long, 0 unless listed
+ * padding up to a multiple of 8 bytes
+ * count section, the pairs one after another in pair order, each padded up
+ * to a multiple of 8 bytes
+ *   dense pair              one count per cell
+ *   listed pair             the index (long) of each cell, in order, then
+ *                           the count of each cell
+ *   sketched pair           the sketch's counters, row by row
+ * </pre>
+ * Each pair is saved the way its count store holds it. The pairs hybrid
+ * storage hashes, whose blocks are far larger than the records counted into
+ * them, are saved as a list of just their non-zero cells, and the pairs of
+ * sketch storage as the sketch's counters rather than as estimates of every
+ * cell, so the file is about the size of the CAM in memory. Counts are
+ * written as ints unless the model was trained on more than 2^31 records,
+ * when they may not fit and are written as longs. Only files of the current
+ * version can be read.
+ * Strings are an int byte count followed by UTF-8. On loading only the
+ * preamble and header are read; the count section is memory mapped (see
+ * MappedCountStore), so loading time depends on the number of attributes and
+ * values rather than on the size of the CAM.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+final class ModelFile {
+
+    /**
+     * Bytes every model file starts with
+     */
+    static final byte[] MAGIC = {'C', 'A', 'I', 'R', 'A', 'D', 'M', 0};
+
+    /**
+     * Bytes every partial model file starts with
+     */
+    static final byte[] PARTIAL_MAGIC = {'C', 'A', 'I', 'R', 'A', 'D', 'P', 0};
+
+    /**
+     * Version of the layout written
+     */
+    static final int VERSION = 3;
+
+    /**
+     * Layout of a pair saved as a block of every cell's count
+     */
+    static final int DENSE_PAIR = 0;
+
+    /**
+     * Layout of a pair saved as a list of the cells its store holds
+     */
+    static final int LISTED_PAIR = 1;
+
+    /**
+     * Layout of a pair saved as the counters of a Count-Min sketch
+     */
+    static final int SKETCHED_PAIR = 2;
+
+    /**
+     * Number of bytes in the preamble
+     */
+    private static final int PREAMBLE_SIZE = 32;
+
+    /**
+     * Encoding of strings
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Coappearance Threshold, tau in original paper
+     */
+    private final double m_coappearanceThreshold;
+
+    /**
+     * Coappearance Score Threshold, lambda in original paper
+     */
+    private final double m_coappearanceScoreThreshold;
+
+    /**
+     * The bins and dictionaries
+     */
+    private final Generalisation m_generalisation;
+
+    /**
+     * The coappearance matrix, its counts mapped from the file
+     */
+    private final CAIRAD.CoappearanceMatrix m_CAM;
+
+    /**
+     * Whether the file holds a partial model
+     */
+    private final boolean m_partial;
+
+    /**
+     * Hold a model read from a file.
+     *
+     * @param coappearanceThreshold - tau
+     * @param coappearanceScoreThreshold - lambda
+     * @param generalisation - the bins and dictionaries
+     * @param cam - the coappearance matrix
+     * @param partial - whether the model is partial
+     */
+    private ModelFile(double coappearanceThreshold, double coappearanceScoreThreshold,
+            Generalisation generalisation, CAIRAD.CoappearanceMatrix cam, boolean partial) {
+        m_coappearanceThreshold = coappearanceThreshold;
+        m_coappearanceScoreThreshold = coappearanceScoreThreshold;
+        m_generalisation = generalisation;
+        m_CAM = cam;
+        m_partial = partial;
+    }
+
+    /**
+     * Work out the number of bytes a pair takes up in the count section.
+     *
+     * @param layout - DENSE_PAIR, LISTED_PAIR or SKETCHED_PAIR
+     * @param pairSize - number of cells in the pair's block
+     * @param numListed - number of cells a listed pair holds
+     * @param sketchWidth - number of counters in each row of a sketch
+     * @param sketchDepth - number of rows in each sketch
+     * @param countWidth - number of bytes in each count, 4 or 8
+     * @return the bytes, padded up to a multiple of 8
+     */
+    static long pairBytes(int layout, long pairSize, long numListed, int sketchWidth,
+            int sketchDepth, int countWidth) {
+
+        long bytes;
+        switch (layout) {
+            case LISTED_PAIR:
+                bytes = numListed * (8 + countWidth);
+                break;
+            case SKETCHED_PAIR:
+                bytes = (long) sketchWidth * sketchDepth * countWidth;
+                break;
+            default:
+                bytes = pairSize * countWidth;
+        }
+        return (bytes + 7) & ~7L;
+
+    }
+
+    /**
+     * Write a model to a file.
+     *
+     * @param file - the file to write
+     * @param generalisation - the bins and dictionaries
+     * @param cam - the coappearance matrix
+     * @param coappearanceThreshold - tau
+     * @param coappearanceScoreThreshold - lambda
+     * @throws IOException if the file can't be written
+     */
+    static void save(File file, Generalisation generalisation,
+            CAIRAD.CoappearanceMatrix cam, double coappearanceThreshold,
+            double coappearanceScoreThreshold) throws IOException {
+        write(file, MAGIC, generalisation, cam, coappearanceThreshold,
+                coappearanceScoreThreshold);
+    }
+
+    /**
+     * Write a partial model to a file.
+     *
+     * @param file - the file to write
+     * @param generalisation - the bins and dictionaries the shard was
+     * counted with
+     * @param cam - the shard's coappearance matrix
+     * @throws IOException if the file can't be written
+     */
+    static void savePartial(File file, Generalisation generalisation,
+            CAIRAD.CoappearanceMatrix cam) throws IOException {
+        write(file, PARTIAL_MAGIC, generalisation, cam, Double.NaN, Double.NaN);
+    }
+
+    /**
+     * Write a model or partial model to a file.
+     *
+     * @param file - the file to write
+     * @param magic - MAGIC or PARTIAL_MAGIC
+     * @param generalisation - the bins and dictionaries
+     * @param cam - the coappearance matrix
+     * @param coappearanceThreshold - tau
+     * @param coappearanceScoreThreshold - lambda
+     * @throws IOException if the file can't be written
+     */
+    private static void write(File file, byte[] magic, Generalisation generalisation,
+            CAIRAD.CoappearanceMatrix cam, double coappearanceThreshold,
+            double coappearanceScoreThreshold) throws IOException {
+
+        /*The header, built first so the count section's position is known */
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        writeDouble(header, coappearanceThreshold);
+        writeDouble(header, coappearanceScoreThreshold);
+
+        String[] names = generalisation.names();
+        int[] kinds = generalisation.kinds();
+        int[] attributeDomainSizes = generalisation.attributeDomainSizes();
+        int[] codeDomainSizes = generalisation.codeDomainSizes();
+        writeInt(header, names.length);
+        for (int j = 0; j < names.length; j++) {
+
+            writeString(header, names[j]);
+            writeInt(header, kinds[j]);
+            writeInt(header, attributeDomainSizes[j]);
+            writeInt(header, codeDomainSizes[j]);
+
+            if (kinds[j] == Generalisation.BINNED) {
+                double[] cutPoints = generalisation.cutPoints(j);
+                writeInt(header, cutPoints == null ? -1 : cutPoints.length);
+                if (cutPoints != null) {
+                    for (double cutPoint : cutPoints) {
+                        writeDouble(header, cutPoint);
+                    }
+                }
+            } else if (kinds[j] == Generalisation.STRING) {
+                String[] dictionary = generalisation.dictionary(j);
+                writeInt(header, dictionary.length);
+                for (String value : dictionary) {
+                    writeString(header, value);
+                }
+            }
+
+            for (int x = 0; x < codeDomainSizes[j]; x++) {
+                writeLong(header, cam.valueAppearances[j][x]);
+            }
+
+        }
+
+        //each pair as its store holds it
+        CountStore counts = cam.counts;
+        int[] layouts = new int[counts.numPairs()];
+        long[] numListed = new long[counts.numPairs()];
+        boolean sketched = false;
+        for (int pair = 0; pair < layouts.length; pair++) {
+            if (counts.isSketched(pair)) {
+                layouts[pair] = SKETCHED_PAIR;
+                sketched = true;
+            } else if (counts.numListedCells(pair) >= 0) {
+                layouts[pair] = LISTED_PAIR;
+                numListed[pair] = counts.numListedCells(pair);
+            }
+        }
+        int sketchWidth = sketched ? counts.sketchWidth() : 0;
+        int sketchDepth = sketched ? counts.sketchDepth() : 0;
+        writeInt(header, sketchWidth);
+        writeInt(header, sketchDepth);
+        for (int pair = 0; pair < layouts.length; pair++) {
+            writeInt(header, layouts[pair]);
+            writeLong(header, numListed[pair]);
+        }
+        header.flush();
+
+        //no count can be more than the number of records
+        long numRecords = 0;
+        if (names.length > 0) {
+            for (long appearances : cam.valueAppearances[0]) {
+                numRecords += appearances;
+            }
+        }
+        int countWidth = numRecords > Integer.MAX_VALUE ? 8 : 4;
+
+        long countOffset = PREAMBLE_SIZE + headerBytes.size();
+        countOffset = (countOffset + 7) & ~7L;
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(magic);
+            buffer.putInt(VERSION);
+            buffer.putInt(countWidth);
+            buffer.putLong(countOffset);
+            buffer.putLong(cam.counts.numCells());
+            flush(channel, buffer);
+            writeFully(channel, ByteBuffer.wrap(headerBytes.toByteArray()));
+            writeFully(channel, ByteBuffer.allocate((int) (countOffset - channel.position())));
+
+            /*The count section */
+            for (int pair = 0; pair < layouts.length; pair++) {
+                long written = 0;
+                if (layouts[pair] == LISTED_PAIR) {
+                    long[] indices = new long[(int) numListed[pair]];
+                    long[] cellCounts = new long[indices.length];
+                    counts.listedCells(pair, indices, cellCounts);
+                    for (long index : indices) {
+                        if (buffer.remaining() < 8) {
+                            flush(channel, buffer);
+                        }
+                        buffer.putLong(index);
+                    }
+                    for (long count : cellCounts) {
+                        putCount(channel, buffer, count, countWidth);
+                    }
+                    written = indices.length * (8L + countWidth);
+                } else if (layouts[pair] == SKETCHED_PAIR) {
+                    int numCounters = sketchWidth * sketchDepth;
+                    for (int counter = 0; counter < numCounters; counter++) {
+                        putCount(channel, buffer, counts.sketchCounter(pair, counter), countWidth);
+                    }
+                    written = (long) numCounters * countWidth;
+                } else {
+                    long pairSize = counts.pairSize(pair);
+                    for (long index = 0; index < pairSize; index++) {
+                        putCount(channel, buffer, counts.get(pair, index), countWidth);
+                    }
+                    written = pairSize * countWidth;
+                }
+                //pad so the next pair's counts are aligned
+                for (long padding = written; padding % 8 != 0; padding += countWidth) {
+                    putCount(channel, buffer, 0, countWidth);
+                }
+            }
+            flush(channel, buffer);
+        } finally {
+            out.close();
+        }
+
+    }
+
+    /**
+     * Put a count in a buffer, writing out the buffer first if it is full.
+     *
+     * @param channel - where the buffer is written out to
+     * @param buffer - the buffer
+     * @param count - the count
+     * @param countWidth - number of bytes in each count, 4 or 8
+     * @throws IOException if the buffer can't be written out
+     */
+    private static void putCount(FileChannel channel, ByteBuffer buffer, long count,
+            int countWidth) throws IOException {
+
+        if (buffer.remaining() < countWidth) {
+            flush(channel, buffer);
+        }
+        if (countWidth == 8) {
+            buffer.putLong(count);
+        } else {
+            buffer.putInt((int) count);
+        }
+
+    }
+
+    /**
+     * Read a model or partial model from a file, mapping its count section.
+     *
+     * @param file - the file to read
+     * @return the model
+     * @throws IOException if the file can't be read or isn't a model
+     */
+    static ModelFile load(File file) throws IOException {
+
+        boolean partial;
+        int countWidth;
+        long countOffset;
+        long numCells;
+        ByteBuffer header;
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+
+            ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, preamble, file);
+            byte[] magic = new byte[MAGIC.length];
+            preamble.get(magic);
+            partial = Arrays.equals(magic, PARTIAL_MAGIC);
+            if (!partial && !Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a CAIRAD model");
+            }
+            int version = preamble.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + " is a version " + version
+                        + " CAIRAD model, only version " + VERSION + " can be read");
+            }
+            countWidth = preamble.getInt();
+            if (countWidth != 4 && countWidth != 8) {
+                throw new IOException(file + " has a damaged preamble");
+            }
+            countOffset = preamble.getLong();
+            numCells = preamble.getLong();
+            if (countOffset < PREAMBLE_SIZE || countOffset - PREAMBLE_SIZE > Integer.MAX_VALUE) {
+                throw new IOException(file + " has a damaged preamble");
+            }
+
+            header = ByteBuffer.allocate((int) (countOffset - PREAMBLE_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, file);
+        } finally {
+            in.close();
+        }
+
+        try {
+            double coappearanceThreshold = header.getDouble();
+            double coappearanceScoreThreshold = header.getDouble();
+
+            int numAttributes = header.getInt();
+            String[] names = new String[numAttributes];
+            int[] kinds = new int[numAttributes];
+            double[][] cutPoints = new double[numAttributes][];
+            String[][] dictionaries = new String[numAttributes][];
+            int[] attributeDomainSizes = new int[numAttributes];
+            int[] codeDomainSizes = new int[numAttributes];
+            long[][] valueAppearances = new long[numAttributes][];
+
+            for (int j = 0; j < numAttributes; j++) {
+
+                names[j] = readString(header);
+                kinds[j] = header.getInt();
+                attributeDomainSizes[j] = header.getInt();
+                codeDomainSizes[j] = header.getInt();
+
+                if (kinds[j] == Generalisation.BINNED) {
+                    int numCutPoints = header.getInt();
+                    if (numCutPoints >= 0) {
+                        cutPoints[j] = new double[numCutPoints];
+                        for (int c = 0; c < numCutPoints; c++) {
+                            cutPoints[j][c] = header.getDouble();
+                        }
+                    }
+                } else if (kinds[j] == Generalisation.STRING) {
+                    dictionaries[j] = new String[header.getInt()];
+                    for (int v = 0; v < dictionaries[j].length; v++) {
+                        dictionaries[j][v] = readString(header);
+                    }
+                }
+
+                valueAppearances[j] = new long[codeDomainSizes[j]];
+                for (int x = 0; x < codeDomainSizes[j]; x++) {
+                    valueAppearances[j][x] = header.getLong();
+                }
+
+            }
+
+            long[] pairSizes = CountStore.pairSizes(codeDomainSizes);
+            long expectedCells = 0;
+            for (long pairSize : pairSizes) {
+                expectedCells += pairSize;
+            }
+            if (expectedCells != numCells) {
+                throw new IOException(file + " holds " + numCells
+                        + " counts, but its attributes need " + expectedCells);
+            }
+
+            int sketchWidth = header.getInt();
+            int sketchDepth = header.getInt();
+            int[] layouts = new int[pairSizes.length];
+            long[] numListed = new long[pairSizes.length];
+            for (int pair = 0; pair < pairSizes.length; pair++) {
+                layouts[pair] = header.getInt();
+                numListed[pair] = header.getLong();
+                boolean damaged;
+                switch (layouts[pair]) {
+                    case DENSE_PAIR:
+                        damaged = false;
+                        break;
+                    case LISTED_PAIR:
+                        damaged = numListed[pair] < 0 || numListed[pair] > pairSizes[pair]
+                                || numListed[pair] > Integer.MAX_VALUE;
+                        break;
+                    case SKETCHED_PAIR:
+                        damaged = sketchWidth <= 0 || sketchDepth <= 0;
+                        break;
+                    default:
+                        damaged = true;
+                }
+                if (damaged) {
+                    throw new IOException(file + " has a damaged header");
+                }
+            }
+
+            Generalisation generalisation = new Generalisation(names, kinds, cutPoints,
+                    dictionaries, attributeDomainSizes, codeDomainSizes);
+            CAIRAD.CoappearanceMatrix cam = new CAIRAD.CoappearanceMatrix(codeDomainSizes,
+                    valueAppearances, new MappedCountStore(file, countOffset, countWidth, pairSizes,
+                            layouts, numListed, sketchWidth, sketchDepth));
+            return new ModelFile(coappearanceThreshold, coappearanceScoreThreshold,
+                    generalisation, cam, partial);
+        } catch (BufferUnderflowException e) {
+            throw new IOException(file + " has a damaged header");
+        } catch (NegativeArraySizeException e) {
+            throw new IOException(file + " has a damaged header");
+        }
+
+    }
+
+    /**
+     * Return whether a file starts with the magic of a model or partial
+     * model.
+     *
+     * @param file - the file
+     * @return whether or not the file looks like a model
+     * @throws IOException if the file can't be read
+     */
+    static boolean hasMagic(File file) throws IOException {
+
+        byte[] magic = new byte[MAGIC.length];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < magic.length) {
+                int n = in.read(magic, read, magic.length - read);
+                if (n < 0) {
+                    return false;
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return Arrays.equals(magic, MAGIC) || Arrays.equals(magic, PARTIAL_MAGIC);
+
+    }
+
+    /**
+     * Return tau as it was when the model was saved
+     *
+     * @return the coappearance threshold
+     */
+    double getCoappearanceThreshold() {
+        return m_coappearanceThreshold;
+    }
+
+    /**
+     * Return lambda as it was when the model was saved
+     *
+     * @return the coappearance score threshold
+     */
+    double getCoappearanceScoreThreshold() {
+        return m_coappearanceScoreThreshold;
+    }
+
+    /**
+     * Return the bins and dictionaries
+     *
+     * @return the generalisation
+     */
+    Generalisation getGeneralisation() {
+        return m_generalisation;
+    }
+
+    /**
+     * Return whether the file holds a partial model, whose tau and lambda
+     * are NaN
+     *
+     * @return whether or not the model is partial
+     */
+    boolean isPartial() {
+        return m_partial;
+    }
+
+    /**
+     * Return the coappearance matrix, whose counts are read-only
+     *
+     * @return the CAM
+     */
+    CAIRAD.CoappearanceMatrix getCAM() {
+        return m_CAM;
+    }
+
+    /**
+     * Write a little-endian int.
+     */
+    private static void writeInt(DataOutputStream out, int value) throws IOException {
+        out.writeInt(Integer.reverseBytes(value));
+    }
+
+    /**
+     * Write a little-endian long.
+     */
+    private static void writeLong(DataOutputStream out, long value) throws IOException {
+        out.writeLong(Long.reverseBytes(value));
+    }
+
+    /**
+     * Write a little-endian double.
+     */
+    private static void writeDouble(DataOutputStream out, double value) throws IOException {
+        out.writeLong(Long.reverseBytes(Double.doubleToLongBits(value)));
+    }
+
+    /**
+     * Write a string as its UTF-8 byte count followed by the bytes.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        writeInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string written by writeString.
+     */
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Write out the remaining bytes of a buffer.
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Write out what has been put in a buffer, then clear it to be filled
+     * again.
+     */
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Fill a buffer from the channel's current position, then flip it ready
+     * to be read.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, File file) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException(file + " ends too soon to be a CAIRAD model");
+            }
+        }
+        buffer.flip();
+    }
+
+}
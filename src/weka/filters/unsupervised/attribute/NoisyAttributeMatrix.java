@@ -0,0 +1,231 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    NoisyAttributeMatrix.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The noisy attribute matrix (Q in the original paper) found by CAIRAD: which
+ * attribute values of which records were identified as noisy. Stored as one
+ * bit per cell, packed into longs. Each record starts on a fresh long, so
+ * records can be marked from different threads without interfering.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+public final class NoisyAttributeMatrix implements Serializable {
+
+    /**
+     * For serialization
+     */
+    static final long serialVersionUID = 5580379113570815722L;
+
+    /**
+     * Number of records
+     */
+    private final int m_numRecords;
+
+    /**
+     * Number of attributes
+     */
+    private final int m_numAttributes;
+
+    /**
+     * Number of longs used by each record
+     */
+    private final int m_wordsPerRecord;
+
+    /**
+     * The bits, record by record
+     */
+    private final long[] m_words;
+
+    /**
+     * Create a matrix with no noisy values.
+     *
+     * @param numRecords - number of records
+     * @param numAttributes - number of attributes
+     */
+    public NoisyAttributeMatrix(int numRecords, int numAttributes) {
+
+        m_numRecords = numRecords;
+        m_numAttributes = numAttributes;
+        m_wordsPerRecord = (numAttributes + 63) >>> 6;
+
+        long numWords = (long) numRecords * m_wordsPerRecord;
+        if (numWords > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Noisy attribute matrix of "
+                    + numRecords + " x " + numAttributes + " is too large");
+        }
+        m_words = new long[(int) numWords];
+
+    }
+
+    /**
+     * Mark an attribute value of a record as noisy.
+     *
+     * @param record - index of the record
+     * @param attribute - index of the attribute
+     */
+    void set(int record, int attribute) {
+        m_words[record * m_wordsPerRecord + (attribute >>> 6)] |= 1L << attribute;
+    }
+
+    /**
+     * Mark every value as not noisy.
+     */
+    void clear() {
+        Arrays.fill(m_words, 0);
+    }
+
+    /**
+     * Return whether an attribute value of a record is noisy.
+     *
+     * @param record - index of the record
+     * @param attribute - index of the attribute
+     * @return true if the value is noisy
+     */
+    public boolean isNoisy(int record, int attribute) {
+        return (m_words[record * m_wordsPerRecord + (attribute >>> 6)] & (1L << attribute)) != 0;
+    }
+
+    /**
+     * Return whether a record has at least one noisy value.
+     *
+     * @param record - index of the record
+     * @return true if the record is noisy
+     */
+    public boolean isRecordNoisy(int record) {
+
+        int start = record * m_wordsPerRecord;
+        for (int w = start; w < start + m_wordsPerRecord; w++) {
+            if (m_words[w] != 0) {
+                return true;
+            }
+        }
+        return false;
+
+    }
+
+    /**
+     * Return the first noisy attribute of a record at or after a given
+     * attribute. To visit every noisy value of a record:
+     * <pre>
+     * for (int j = q.nextNoisyAttribute(i, 0); j &gt;= 0; j = q.nextNoisyAttribute(i, j + 1)) {
+     *     ...
+     * }
+     * </pre>
+     *
+     * @param record - index of the record
+     * @param fromAttribute - attribute to start looking from, inclusive
+     * @return the index of the attribute, or -1 if there are no more
+     */
+    public int nextNoisyAttribute(int record, int fromAttribute) {
+
+        if (fromAttribute >= m_numAttributes) {
+            return -1;
+        }
+
+        int start = record * m_wordsPerRecord;
+        int w = fromAttribute >>> 6;
+        long word = m_words[start + w] & (-1L << fromAttribute);
+        while (true) {
+            if (word != 0) {
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++w == m_wordsPerRecord) {
+                return -1;
+            }
+            word = m_words[start + w];
+        }
+
+    }
+
+    /**
+     * Return the first record with a noisy value at or after a given record.
+     *
+     * @param fromRecord - record to start looking from, inclusive
+     * @return the index of the record, or -1 if there are no more
+     */
+    public int nextNoisyRecord(int fromRecord) {
+
+        for (int i = fromRecord; i < m_numRecords; i++) {
+            if (isRecordNoisy(i)) {
+                return i;
+            }
+        }
+        return -1;
+
+    }
+
+    /**
+     * Return the number of noisy values in the whole matrix.
+     *
+     * @return the number of noisy values
+     */
+    public long numNoisyValues() {
+
+        long count = 0;
+        for (long word : m_words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+
+    }
+
+    /**
+     * Return the number of records
+     *
+     * @return the number of records
+     */
+    public int numRecords() {
+        return m_numRecords;
+    }
+
+    /**
+     * Return the number of attributes
+     *
+     * @return the number of attributes
+     */
+    public int numAttributes() {
+        return m_numAttributes;
+    }
+
+    /**
+     * Copy the matrix into a dense array holding 1 for noisy values and 0
+     * otherwise.
+     *
+     * @return the dense matrix
+     */
+    public int[][] toIntMatrix() {
+
+        int[][] result = new int[m_numRecords][m_numAttributes];
+        for (int i = 0; i < m_numRecords; i++) {
+            for (int j = nextNoisyAttribute(i, 0); j >= 0; j = nextNoisyAttribute(i, j + 1)) {
+                result[i][j] = 1;
+            }
+        }
+        return result;
+
+    }
+
+}
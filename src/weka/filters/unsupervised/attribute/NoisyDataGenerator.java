@@ -0,0 +1,746 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    NoisyDataGenerator.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Random;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Generates reproducible datasets with known noise, for benchmarking CAIRAD
+ * at scale and measuring how well it finds noise. Each record belongs to one
+ * of a number of hidden clusters. Every attribute has a component per
+ * cluster: a nominal value, or a mean for a numeric attribute, whose values
+ * are drawn around the mean from a gaussian, uniform or exponential
+ * distribution. How strongly attributes depend on each other is set by the
+ * structure and the dependency:
+ * <ul>
+ * <li>latent: each attribute takes the record's cluster's component with
+ * probability dependency, otherwise a random component, so every attribute
+ * depends on every other through the cluster;</li>
+ * <li>chain: the first attribute takes the cluster's component and each
+ * later one takes the component of the attribute before it with probability
+ * dependency, so dependence fades along the chain.</li>
+ * </ul>
+ * Then each cell is made noisy with probability noiseRate: a nominal value
+ * is replaced with a different value, and a numeric value is drawn from a
+ * different component. The noisy cells are the ground truth.
+ * <p/>
+ * Records are generated one at a time from the seed, so a dataset can be
+ * returned as Instances or streamed to an ARFF file of any size in constant
+ * memory, and the same seed and settings always give the same records.
+ * Streamed ground truth is written as a CSV file of the 0-based record and
+ * attribute of each noisy cell. Run from the command line with:
+ * <p/>
+ * java weka.filters.unsupervised.attribute.NoisyDataGenerator -o
+ * &lt;output.arff&gt; [-truth &lt;truth.csv&gt;] [options]
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+public class NoisyDataGenerator {
+
+    /**
+     * Every attribute depends on a hidden cluster
+     */
+    public static final int STRUCTURE_LATENT = 0;
+
+    /**
+     * Each attribute depends on the one before it
+     */
+    public static final int STRUCTURE_CHAIN = 1;
+
+    /**
+     * Numeric values are normally distributed about their component's mean
+     */
+    public static final int DISTRIBUTION_GAUSSIAN = 0;
+
+    /**
+     * Numeric values are uniformly distributed about their component's mean
+     */
+    public static final int DISTRIBUTION_UNIFORM = 1;
+
+    /**
+     * Numeric values are exponentially distributed above their component's
+     * mean, less the standard deviation
+     */
+    public static final int DISTRIBUTION_EXPONENTIAL = 2;
+
+    /**
+     * Numeric values are rounded to this many decimal places, so they are
+     * read back from ARFF exactly
+     */
+    private static final double ROUNDING = 1e4;
+
+    /**
+     * Seed of the random number generator
+     */
+    private long m_seed = 1;
+
+    /**
+     * Number of records
+     */
+    private long m_numRecords = 1000;
+
+    /**
+     * Number of nominal attributes, which come first
+     */
+    private int m_numNominal = 8;
+
+    /**
+     * Number of numeric attributes
+     */
+    private int m_numNumeric = 2;
+
+    /**
+     * Number of values of each nominal attribute
+     */
+    private int m_cardinality = 10;
+
+    /**
+     * Number of hidden clusters
+     */
+    private int m_numClusters = 5;
+
+    /**
+     * How attributes depend on each other, STRUCTURE_LATENT or
+     * STRUCTURE_CHAIN
+     */
+    private int m_structure = STRUCTURE_LATENT;
+
+    /**
+     * Probability an attribute follows the cluster or attribute it depends on
+     */
+    private double m_dependency = 0.9;
+
+    /**
+     * Distribution of numeric values about their component's mean
+     */
+    private int m_distribution = DISTRIBUTION_GAUSSIAN;
+
+    /**
+     * Standard deviation of numeric values about their component's mean.
+     * Component means are 10 apart.
+     */
+    private double m_standardDeviation = 1;
+
+    /**
+     * Probability each cell is made noisy
+     */
+    private double m_noiseRate = 0.05;
+
+    /**
+     * Random number generator of the records being generated
+     */
+    private Random m_random;
+
+    /**
+     * Value (nominal) or mean (numeric) of each attribute's component for
+     * each cluster
+     */
+    private double[][] m_components;
+
+    /**
+     * Component of each attribute of the record being generated
+     */
+    private int[] m_recordComponents;
+
+    /**
+     * Return the total number of attributes
+     *
+     * @return the number of attributes
+     */
+    public int numAttributes() {
+        return m_numNominal + m_numNumeric;
+    }
+
+    /**
+     * Build the header of the datasets generated: nominal attributes
+     * nominal0... with values v0..., then numeric attributes numeric0....
+     *
+     * @return the empty dataset
+     */
+    public Instances defineDataFormat() {
+
+        ArrayList<Attribute> atts = new ArrayList<Attribute>(numAttributes());
+        for (int j = 0; j < m_numNominal; j++) {
+            ArrayList<String> values = new ArrayList<String>(m_cardinality);
+            for (int v = 0; v < m_cardinality; v++) {
+                values.add("v" + v);
+            }
+            atts.add(new Attribute("nominal" + j, values));
+        }
+        for (int j = 0; j < m_numNumeric; j++) {
+            atts.add(new Attribute("numeric" + j));
+        }
+        return new Instances("noisy-s" + m_seed + "-n" + m_numRecords, atts, 0);
+
+    }
+
+    /**
+     * Start generating from the seed: pick each attribute's components.
+     */
+    private void start() {
+
+        m_random = new Random(m_seed);
+        int numAttributes = numAttributes();
+        m_components = new double[numAttributes][m_numClusters];
+        m_recordComponents = new int[numAttributes];
+        for (int j = 0; j < numAttributes; j++) {
+            if (j < m_numNominal) {
+                for (int c = 0; c < m_numClusters; c++) {
+                    m_components[j][c] = m_random.nextInt(m_cardinality);
+                }
+            } else {
+                //means 10 apart, in a random order
+                for (int c = 0; c < m_numClusters; c++) {
+                    int other = m_random.nextInt(c + 1);
+                    m_components[j][c] = m_components[j][other];
+                    m_components[j][other] = c * 10;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Draw a numeric value about a mean.
+     *
+     * @param mean - the component's mean
+     * @return the value, rounded
+     */
+    private double drawNumeric(double mean) {
+
+        double draw;
+        switch (m_distribution) {
+            case DISTRIBUTION_UNIFORM:
+                draw = (2 * m_random.nextDouble() - 1) * Math.sqrt(3);
+                break;
+            case DISTRIBUTION_EXPONENTIAL:
+                draw = -Math.log(1 - m_random.nextDouble()) - 1;
+                break;
+            default:
+                draw = m_random.nextGaussian();
+                break;
+        }
+        return Math.round((mean + draw * m_standardDeviation) * ROUNDING) / ROUNDING;
+
+    }
+
+    /**
+     * Generate the next record.
+     *
+     * @param values - filled with the record's values, as indices of
+     * nominal values or numbers
+     * @param noisy - filled with whether each value was made noisy
+     * @return the number of noisy values
+     */
+    private int nextRecord(double[] values, boolean[] noisy) {
+
+        int cluster = m_random.nextInt(m_numClusters);
+        int numNoisy = 0;
+        for (int j = 0; j < values.length; j++) {
+
+            int parent = m_structure == STRUCTURE_CHAIN && j > 0 ? m_recordComponents[j - 1] : cluster;
+            int component = m_random.nextDouble() < m_dependency ? parent : m_random.nextInt(m_numClusters);
+            m_recordComponents[j] = component;
+
+            noisy[j] = m_random.nextDouble() < m_noiseRate;
+            if (j < m_numNominal) {
+                int value = (int) m_components[j][component];
+                if (noisy[j] && m_cardinality > 1) {
+                    //any value but the clean one
+                    int other = m_random.nextInt(m_cardinality - 1);
+                    value = other >= value ? other + 1 : other;
+                } else {
+                    noisy[j] = false;
+                }
+                values[j] = value;
+            } else {
+                if (noisy[j] && m_numClusters > 1) {
+                    //any component but the clean one
+                    int other = m_random.nextInt(m_numClusters - 1);
+                    component = other >= component ? other + 1 : other;
+                } else {
+                    noisy[j] = false;
+                }
+                values[j] = drawNumeric(m_components[j][component]);
+            }
+            if (noisy[j]) {
+                numNoisy++;
+            }
+
+        }
+        return numNoisy;
+
+    }
+
+    /**
+     * Generate a dataset in memory.
+     *
+     * @param truth - marked with the noisy cells, numRecords by
+     * numAttributes; may be null
+     * @return the dataset
+     * @throws IllegalArgumentException if there are too many records to hold
+     * as Instances
+     */
+    public Instances generateInstances(NoisyAttributeMatrix truth) {
+
+        if (m_numRecords > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(m_numRecords
+                    + " records can't be held in memory, stream them with writeArff");
+        }
+
+        start();
+        Instances data = defineDataFormat();
+        int numAttributes = numAttributes();
+        boolean[] noisy = new boolean[numAttributes];
+        for (int i = 0; i < m_numRecords; i++) {
+            double[] values = new double[numAttributes];
+            if (nextRecord(values, noisy) > 0 && truth != null) {
+                for (int j = 0; j < numAttributes; j++) {
+                    if (noisy[j]) {
+                        truth.set(i, j);
+                    }
+                }
+            }
+            data.add(new DenseInstance(1.0, values));
+        }
+        return data;
+
+    }
+
+    /**
+     * Stream a dataset to an ARFF file, one record at a time, and optionally
+     * its ground truth to a CSV file with a line "record,attribute" for each
+     * noisy cell.
+     *
+     * @param arff - ARFF file to write
+     * @param truth - ground truth file to write, or null for none
+     * @return the number of noisy cells
+     * @throws IOException if a file can't be written
+     */
+    public long writeArff(File arff, File truth) throws IOException {
+
+        start();
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(arff), "UTF-8"), 1 << 16);
+        Writer truthOut = truth == null ? null : new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(truth), "UTF-8"), 1 << 16);
+        long numNoisy = 0;
+        try {
+            Instances header = defineDataFormat();
+            out.write("@relation " + Utils.quote(header.relationName()) + "\n\n");
+            for (int j = 0; j < header.numAttributes(); j++) {
+                Attribute att = header.attribute(j);
+                out.write("@attribute " + att.name() + " ");
+                if (att.isNominal()) {
+                    out.write("{");
+                    for (int v = 0; v < att.numValues(); v++) {
+                        out.write((v > 0 ? "," : "") + att.value(v));
+                    }
+                    out.write("}\n");
+                } else {
+                    out.write("numeric\n");
+                }
+            }
+            out.write("\n@data\n");
+            if (truthOut != null) {
+                truthOut.write("record,attribute\n");
+            }
+
+            int numAttributes = numAttributes();
+            double[] values = new double[numAttributes];
+            boolean[] noisy = new boolean[numAttributes];
+            StringBuilder line = new StringBuilder();
+            for (long i = 0; i < m_numRecords; i++) {
+                int recordNoise = nextRecord(values, noisy);
+                line.setLength(0);
+                for (int j = 0; j < numAttributes; j++) {
+                    if (j > 0) {
+                        line.append(',');
+                    }
+                    if (j < m_numNominal) {
+                        line.append('v').append((int) values[j]);
+                    } else {
+                        line.append(values[j]);
+                    }
+                }
+                line.append('\n');
+                out.append(line);
+
+                if (recordNoise > 0 && truthOut != null) {
+                    for (int j = 0; j < numAttributes; j++) {
+                        if (noisy[j]) {
+                            truthOut.write(i + "," + j + "\n");
+                        }
+                    }
+                }
+                numNoisy += recordNoise;
+            }
+        } finally {
+            out.close();
+            if (truthOut != null) {
+                truthOut.close();
+            }
+        }
+        return numNoisy;
+
+    }
+
+    /**
+     * Return the seed of the random number generator
+     *
+     * @return the seed
+     */
+    public long getSeed() {
+        return m_seed;
+    }
+
+    /**
+     * Set the seed of the random number generator
+     *
+     * @param seed - the seed
+     */
+    public void setSeed(long seed) {
+        this.m_seed = seed;
+    }
+
+    /**
+     * Return the number of records generated
+     *
+     * @return the number of records
+     */
+    public long getNumRecords() {
+        return m_numRecords;
+    }
+
+    /**
+     * Set the number of records generated
+     *
+     * @param numRecords - the number of records
+     * @throws IllegalArgumentException if it is out of range
+     */
+    public void setNumRecords(long numRecords) {
+        if (numRecords < 0) {
+            throw new IllegalArgumentException("Number of records can't be negative: " + numRecords);
+        }
+        this.m_numRecords = numRecords;
+    }
+
+    /**
+     * Return the number of nominal attributes
+     *
+     * @return the number of nominal attributes
+     */
+    public int getNumNominal() {
+        return m_numNominal;
+    }
+
+    /**
+     * Set the number of nominal attributes
+     *
+     * @param numNominal - the number of nominal attributes
+     * @throws IllegalArgumentException if it is out of range
+     */
+    public void setNumNominal(int numNominal) {
+        if (numNominal < 0) {
+            throw new IllegalArgumentException("Number of nominal attributes can't be negative: " + numNominal);
+        }
+        this.m_numNominal = numNominal;
+    }
+
+    /**
+     * Return the number of numeric attributes
+     *
+     * @return the number of numeric attributes
+     */
+    public int getNumNumeric() {
+        return m_numNumeric;
+    }
+
+    /**
+     * Set the number of numeric attributes
+     *
+     * @param numNumeric - the number of numeric attributes
+     * @throws IllegalArgumentException if it is out of range
+     */
+    public void setNumNumeric(int numNumeric) {
+        if (numNumeric < 0) {
+            throw new IllegalArgumentException("Number of numeric attributes can't be negative: " + numNumeric);
+        }
+        this.m_numNumeric = numNumeric;
+    }
+
+    /**
+     * Return the number of values of each nominal attribute
+     *
+     * @return the cardinality
+     */
+    public int getCardinality() {
+        return m_cardinality;
+    }
+
+    /**
+     * Set the number of values of each nominal attribute
+     *
+     * @param cardinality - the cardinality
+     * @throws IllegalArgumentException if it is out of range
+     */
+    public void setCardinality(int cardinality) {
+        if (cardinality < 1) {
+            throw new IllegalArgumentException("Cardinality must be at least 1: " + cardinality);
+        }
+        this.m_cardinality = cardinality;
+    }
+
+    /**
+     * Return the number of hidden clusters
+     *
+     * @return the number of clusters
+     */
+    public int getNumClusters() {
+        return m_numClusters;
+    }
+
+    /**
+     * Set the number of hidden clusters
+     *
+     * @param numClusters - the number of clusters
+     * @throws IllegalArgumentException if it is out of range
+     */
+    public void setNumClusters(int numClusters) {
+        if (numClusters < 1) {
+            throw new IllegalArgumentException("Number of clusters must be at least 1: " + numClusters);
+        }
+        this.m_numClusters = numClusters;
+    }
+
+    /**
+     * Return how attributes depend on each other
+     *
+     * @return STRUCTURE_LATENT or STRUCTURE_CHAIN
+     */
+    public int getStructure() {
+        return m_structure;
+    }
+
+    /**
+     * Set how attributes depend on each other
+     *
+     * @param structure - STRUCTURE_LATENT or STRUCTURE_CHAIN
+     * @throws IllegalArgumentException if it is out of range
+     */
+    public void setStructure(int structure) {
+        if (structure != STRUCTURE_LATENT && structure != STRUCTURE_CHAIN) {
+            throw new IllegalArgumentException("Unknown structure: " + structure);
+        }
+        this.m_structure = structure;
+    }
+
+    /**
+     * Return the probability an attribute follows what it depends on
+     *
+     * @return the dependency
+     */
+    public double getDependency() {
+        return m_dependency;
+    }
+
+    /**
+     * Set the probability an attribute follows what it depends on
+     *
+     * @param dependency - the dependency, from 0 (independent attributes) to
+     * 1
+     * @throws IllegalArgumentException if it is out of range
+     */
+    public void setDependency(double dependency) {
+        if (!(dependency >= 0 && dependency <= 1)) {
+            throw new IllegalArgumentException("Dependency must be between 0 and 1: " + dependency);
+        }
+        this.m_dependency = dependency;
+    }
+
+    /**
+     * Return the distribution of numeric values
+     *
+     * @return one of the DISTRIBUTION_ constants
+     */
+    public int getDistribution() {
+        return m_distribution;
+    }
+
+    /**
+     * Set the distribution of numeric values
+     *
+     * @param distribution - one of the DISTRIBUTION_ constants
+     * @throws IllegalArgumentException if it is out of range
+     */
+    public void setDistribution(int distribution) {
+        if (distribution != DISTRIBUTION_GAUSSIAN && distribution != DISTRIBUTION_UNIFORM
+                && distribution != DISTRIBUTION_EXPONENTIAL) {
+            throw new IllegalArgumentException("Unknown distribution: " + distribution);
+        }
+        this.m_distribution = distribution;
+    }
+
+    /**
+     * Return the standard deviation of numeric values about their
+     * component's mean
+     *
+     * @return the standard deviation
+     */
+    public double getStandardDeviation() {
+        return m_standardDeviation;
+    }
+
+    /**
+     * Set the standard deviation of numeric values about their component's
+     * mean. Means are 10 apart.
+     *
+     * @param standardDeviation - the standard deviation
+     * @throws IllegalArgumentException if it is out of range
+     */
+    public void setStandardDeviation(double standardDeviation) {
+        if (!(standardDeviation >= 0)) {
+            throw new IllegalArgumentException("Standard deviation can't be negative: " + standardDeviation);
+        }
+        this.m_standardDeviation = standardDeviation;
+    }
+
+    /**
+     * Return the probability each cell is made noisy
+     *
+     * @return the noise rate
+     */
+    public double getNoiseRate() {
+        return m_noiseRate;
+    }
+
+    /**
+     * Set the probability each cell is made noisy
+     *
+     * @param noiseRate - the noise rate
+     * @throws IllegalArgumentException if it is out of range
+     */
+    public void setNoiseRate(double noiseRate) {
+        if (!(noiseRate >= 0 && noiseRate <= 1)) {
+            throw new IllegalArgumentException("Noise rate must be between 0 and 1: " + noiseRate);
+        }
+        this.m_noiseRate = noiseRate;
+    }
+
+    /**
+     * Generate a dataset from the command line.
+     *
+     * @param args - -o &lt;output.arff&gt; [-truth &lt;truth.csv&gt;] [-S
+     * seed] [-n records] [-nominal num] [-numeric num] [-cardinality num]
+     * [-clusters num] [-structure latent|chain] [-dependency p]
+     * [-distribution gaussian|uniform|exponential] [-sd num] [-noise p]
+     */
+    public static void main(String[] args) {
+
+        try {
+            String output = Utils.getOption('o', args);
+            if (output.length() == 0) {
+                throw new Exception("An output file (-o) is needed");
+            }
+            String truth = Utils.getOption("truth", args);
+
+            NoisyDataGenerator generator = new NoisyDataGenerator();
+            String optionString = Utils.getOption('S', args);
+            if (optionString.length() != 0) {
+                generator.setSeed(Long.parseLong(optionString));
+            }
+            optionString = Utils.getOption('n', args);
+            if (optionString.length() != 0) {
+                generator.setNumRecords(Long.parseLong(optionString));
+            }
+            optionString = Utils.getOption("nominal", args);
+            if (optionString.length() != 0) {
+                generator.setNumNominal(Integer.parseInt(optionString));
+            }
+            optionString = Utils.getOption("numeric", args);
+            if (optionString.length() != 0) {
+                generator.setNumNumeric(Integer.parseInt(optionString));
+            }
+            optionString = Utils.getOption("cardinality", args);
+            if (optionString.length() != 0) {
+                generator.setCardinality(Integer.parseInt(optionString));
+            }
+            optionString = Utils.getOption("clusters", args);
+            if (optionString.length() != 0) {
+                generator.setNumClusters(Integer.parseInt(optionString));
+            }
+            optionString = Utils.getOption("structure", args);
+            if (optionString.equals("chain")) {
+                generator.setStructure(STRUCTURE_CHAIN);
+            } else if (optionString.length() != 0 && !optionString.equals("latent")) {
+                throw new Exception("Structure must be latent or chain");
+            }
+            optionString = Utils.getOption("dependency", args);
+            if (optionString.length() != 0) {
+                generator.setDependency(Double.parseDouble(optionString));
+            }
+            optionString = Utils.getOption("distribution", args);
+            if (optionString.equals("uniform")) {
+                generator.setDistribution(DISTRIBUTION_UNIFORM);
+            } else if (optionString.equals("exponential")) {
+                generator.setDistribution(DISTRIBUTION_EXPONENTIAL);
+            } else if (optionString.length() != 0 && !optionString.equals("gaussian")) {
+                throw new Exception("Distribution must be gaussian, uniform or exponential");
+            }
+            optionString = Utils.getOption("sd", args);
+            if (optionString.length() != 0) {
+                generator.setStandardDeviation(Double.parseDouble(optionString));
+            }
+            optionString = Utils.getOption("noise", args);
+            if (optionString.length() != 0) {
+                generator.setNoiseRate(Double.parseDouble(optionString));
+            }
+            Utils.checkForRemainingOptions(args);
+
+            long numNoisy = generator.writeArff(new File(output),
+                    truth.length() == 0 ? null : new File(truth));
+            System.err.println(generator.getNumRecords() + " records written, with "
+                    + numNoisy + " noisy values");
+        } catch (Exception e) {
+            System.err.println(e.getMessage() + "\n\n"
+                    + "Usage: java " + NoisyDataGenerator.class.getName()
+                    + " -o <output.arff> [-truth <truth.csv>] [-S seed] [-n records]\n"
+                    + "\t[-nominal num] [-numeric num] [-cardinality num] [-clusters num]\n"
+                    + "\t[-structure latent|chain] [-dependency p]\n"
+                    + "\t[-distribution gaussian|uniform|exponential] [-sd num] [-noise p]");
+            System.exit(1);
+        }
+
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    OffHeapCountStore.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Counts held outside the Java heap, in direct buffers. The garbage collector
+ * never scans or copies them, so a large CAM adds nothing to GC pauses, and
+ * as the buffers are allocated in chunks of 2^28 counts (1GB) the CAM isn't
+ * limited to the 2^31 cells of a single array. The memory is released when
+ * the store is garbage collected; its total is bounded by the JVM's
+ * -XX:MaxDirectMemorySize.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+final class OffHeapCountStore extends CountStore {
+
+    /**
+     * For serialization
+     */
+    static final long serialVersionUID = -2608436071839617717L;
+
+    /**
+     * Log2 of the number of counts in each chunk
+     */
+    private static final int CHUNK_SHIFT = 28;
+
+    /**
+     * Mask giving a count's position within its chunk
+     */
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    /**
+     * Index of the first cell of each pair's block
+     */
+    private final long[] m_pairStarts;
+
+    /**
+     * The counts, written out cell by cell on serialization
+     */
+    private transient IntBuffer[] m_chunks;
+
+    /**
+     * Allocate zeroed counts for blocks of the given sizes.
+     *
+     * @param pairSizes - number of cells in each attribute pair's block
+     */
+    OffHeapCountStore(long[] pairSizes) {
+
+        super(pairSizes);
+
+        m_pairStarts = new long[pairSizes.length];
+        long start = 0;
+        for (int pair = 0; pair < pairSizes.length; pair++) {
+            m_pairStarts[pair] = start;
+            start += pairSizes[pair];
+        }
+
+        allocate();
+
+    }
+
+    /**
+     * Allocate the chunks. Direct buffers start zeroed.
+     */
+    private void allocate() {
+
+        long numCells = numCells();
+        int numChunks = (int) ((numCells + CHUNK_MASK) >>> CHUNK_SHIFT);
+        m_chunks = new IntBuffer[numChunks];
+        for (int c = 0; c < numChunks; c++) {
+            long size = Math.min(CHUNK_MASK + 1, numCells - ((long) c << CHUNK_SHIFT));
+            m_chunks[c] = ByteBuffer.allocateDirect((int) (size * 4))
+                    .order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+
+    }
+
+    @Override
+    long get(int pair, long index) {
+        long cell = m_pairStarts[pair] + index;
+        return m_chunks[(int) (cell >>> CHUNK_SHIFT)].get((int) (cell & CHUNK_MASK));
+    }
+
+    @Override
+    void add(int pair, long index, long delta) {
+        long cell = m_pairStarts[pair] + index;
+        IntBuffer chunk = m_chunks[(int) (cell >>> CHUNK_SHIFT)];
+        int position = (int) (cell & CHUNK_MASK);
+        chunk.put(position, (int) (chunk.get(position) + delta));
+    }
+
+    @Override
+    void countBlock(int pair, int[] xs, int[] ys, int stride, int count) {
+
+        long start = m_pairStarts[pair];
+        long end = start + pairSize(pair);
+        if (end == 0 || (start >>> CHUNK_SHIFT) != ((end - 1) >>> CHUNK_SHIFT)) {
+            //the block straddles two chunks
+            super.countBlock(pair, xs, ys, stride, count);
+            return;
+        }
+
+        IntBuffer chunk = m_chunks[(int) (start >>> CHUNK_SHIFT)];
+        int offset = (int) (start & CHUNK_MASK);
+        for (int r = 0; r < count; r++) {
+            int position = offset + xs[r] * stride + ys[r];
+            chunk.put(position, chunk.get(position) + 1);
+        }
+
+    }
+
+    @Override
+    long nativeBytes() {
+        return numCells() * 4;
+    }
+
+    /**
+     * Write the store out, counts included.
+     *
+     * @param out - the stream to write to
+     * @throws IOException if the stream can't be written
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+
+        out.defaultWriteObject();
+        for (IntBuffer chunk : m_chunks) {
+            for (int i = 0; i < chunk.capacity(); i++) {
+                out.writeInt(chunk.get(i));
+            }
+        }
+
+    }
+
+    /**
+     * Read the store back in, counts included.
+     *
+     * @param in - the stream to read from
+     * @throws IOException if the stream can't be read
+     * @throws ClassNotFoundException never
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+
+        in.defaultReadObject();
+        allocate();
+        for (IntBuffer chunk : m_chunks) {
+            for (int i = 0; i < chunk.capacity(); i++) {
+                chunk.put(i, in.readInt());
+            }
+        }
+
+    }
+
+}
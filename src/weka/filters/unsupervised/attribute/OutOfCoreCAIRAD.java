@@ -0,0 +1,422 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    OutOfCoreCAIRAD.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Option;
+import weka.core.Utils;
+import weka.core.converters.AbstractFileLoader;
+import weka.core.converters.ArffSaver;
+import weka.core.converters.ConverterUtils;
+import weka.core.converters.IncrementalConverter;
+import weka.core.converters.Saver;
+
+/**
+ * Runs CAIRAD over a file without loading it into memory. The file is read
+ * incrementally (through ArffLoader, CSVLoader or any other incremental file
+ * loader) three times:
+ * <ol>
+ * <li>to gather the attribute statistics and work out the bins and string
+ * dictionaries,</li>
+ * <li>to build the coappearance matrix,</li>
+ * <li>to score each record and write it straight out through an
+ * ArffSaver.</li>
+ * </ol>
+ * Only the statistics, the dictionaries and the CAM are held in memory, so
+ * heap usage depends on the attribute domains rather than the number of
+ * records. The results are the same as filtering the whole file with CAIRAD.
+ * <p/>
+ * If the filter's loadModelFile is set, the first two passes are skipped and
+ * the records are scored against the saved model; if its saveModelFile is
+ * set, the model built by the first two passes is saved. The records are
+ * read and scored one at a time as they stream past, so the filter's window,
+ * half-life, number of threads and metrics options can't be used.
+ * Run from the command line with:
+ * <p/>
+ * java weka.filters.unsupervised.attribute.OutOfCoreCAIRAD -i &lt;input&gt; -o
+ * &lt;output.arff&gt; [CAIRAD options]
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+public class OutOfCoreCAIRAD {
+
+    /**
+     * The filter holding the options, and the model once a file has been
+     * filtered
+     */
+    private final CAIRAD m_filter;
+
+    /**
+     * Number of records read in each pass over the last file filtered
+     */
+    private long m_numRecords;
+
+    /**
+     * Number of records with a noisy value in the last file filtered
+     */
+    private long m_numNoisyRecords;
+
+    /**
+     * Set up to filter with the given filter's options.
+     *
+     * @param filter - CAIRAD configured with the options to use
+     */
+    public OutOfCoreCAIRAD(CAIRAD filter) {
+        m_filter = filter;
+    }
+
+    /**
+     * Open a file for one incremental pass.
+     *
+     * @param input - the file
+     * @return a loader positioned at the start of the file
+     * @throws Exception if the file can't be read incrementally
+     */
+    static AbstractFileLoader openPass(File input) throws Exception {
+
+        AbstractFileLoader loader = ConverterUtils.getLoaderForFile(input);
+        if (loader == null) {
+            throw new Exception("No loader for file " + input);
+        }
+        if (!(loader instanceof IncrementalConverter)) {
+            throw new Exception(loader.getClass().getName()
+                    + " can't read files incrementally");
+        }
+        loader.setSource(input);
+        return loader;
+
+    }
+
+    /**
+     * Count the records in a file with one incremental pass.
+     *
+     * @param input - the file
+     * @return the number of records
+     * @throws Exception if the file can't be read
+     */
+    static long countRecords(File input) throws Exception {
+
+        AbstractFileLoader loader = openPass(input);
+        Instances structure = loader.getStructure();
+        long numRecords = 0;
+        while (loader.getNextInstance(structure) != null) {
+            numRecords++;
+        }
+        return numRecords;
+
+    }
+
+    /**
+     * Filter a file, writing the result to an ARFF file.
+     *
+     * @param input - file to read, in any format with an incremental loader
+     * @param output - ARFF file to write
+     * @throws Exception if either file can't be used
+     */
+    public void filterFile(File input, File output) throws Exception {
+
+        checkOptions();
+
+        Generalisation generalisation;
+        if (CAIRAD.isModelFile(m_filter.getLoadModelFile())) {
+            m_filter.loadModel(m_filter.getLoadModelFile());
+            generalisation = m_filter.getGeneralisation();
+            generalisation.checkCompatible(openPass(input).getStructure());
+        } else {
+            generalisation = buildModel(input);
+            if (CAIRAD.isModelFile(m_filter.getSaveModelFile())) {
+                m_filter.saveModel(m_filter.getSaveModelFile());
+            }
+        }
+
+        /*Pass 3: score each record and write it out */
+        AbstractFileLoader loader = openPass(input);
+        Instances structure = loader.getStructure();
+        int numAttributes = structure.numAttributes();
+        Instances outputFormat = structure.stringFreeStructure();
+        boolean makeNoisyMissing = m_filter.getMakeNoisyMissing();
+        if (!makeNoisyMissing) {
+            ArrayList<String> values = new ArrayList<String>();
+            values.add("False");
+            values.add("True");
+            outputFormat.insertAttributeAt(new Attribute("Noisy", values), 0);
+        }
+
+        ArffSaver saver = new ArffSaver();
+        saver.setFile(output);
+        saver.setRetrieval(Saver.INCREMENTAL);
+        saver.setStructure(outputFormat);
+
+        int[] theRecord = new int[numAttributes];
+        int[] totalScores = new int[numAttributes];
+        NoisyAttributeMatrix noisy = new NoisyAttributeMatrix(1, numAttributes);
+        int offset = makeNoisyMissing ? 0 : 1;
+        m_numRecords = 0;
+        m_numNoisyRecords = 0;
+
+        Instance instance;
+        while ((instance = loader.getNextInstance(structure)) != null) {
+
+            for (int j = 0; j < numAttributes; j++) {
+                theRecord[j] = generalisation.encode(instance, j);
+            }
+            noisy.clear();
+            boolean isNoisy = m_filter.NVI(theRecord, noisy, 0, totalScores);
+
+            double[] values = new double[outputFormat.numAttributes()];
+            if (!makeNoisyMissing) {
+                values[0] = isNoisy ? 1 : 0;
+            }
+            for (int j = 0; j < numAttributes; j++) {
+                if (instance.isMissing(j) || (makeNoisyMissing && noisy.isNoisy(0, j))) {
+                    values[j + offset] = Utils.missingValue();
+                } else if (instance.attribute(j).isString()) {
+                    //like the loader, only hold the current string value
+                    outputFormat.attribute(j + offset).setStringValue(instance.stringValue(j));
+                    values[j + offset] = 0;
+                } else {
+                    values[j + offset] = instance.value(j);
+                }
+            }
+
+            Instance result = new DenseInstance(instance.weight(), values);
+            result.setDataset(outputFormat);
+            saver.writeIncremental(result);
+
+            m_numRecords++;
+            if (isNoisy) {
+                m_numNoisyRecords++;
+            }
+
+        }
+        saver.writeIncremental(null);
+
+    }
+
+    /**
+     * Check the filter doesn't use options that only apply to filtering in
+     * memory.
+     *
+     * @throws Exception if it does
+     */
+    private void checkOptions() throws Exception {
+
+        if (m_filter.getWindowSize() > 0) {
+            throw new Exception("Can't use a window out of core");
+        }
+        if (m_filter.getHalfLife() > 0) {
+            throw new Exception("Can't use a half-life out of core");
+        }
+        if (m_filter.getNumThreads() != 1) {
+            throw new Exception("Can't use more than one thread out of core");
+        }
+        if (m_filter.getPrintMetrics()) {
+            throw new Exception("Can't print metrics out of core");
+        }
+
+    }
+
+    /**
+     * Work out the generalisation and build the CAM with the first two
+     * passes over a file, and give them to the filter.
+     *
+     * @param input - file to read
+     * @return the generalisation
+     * @throws Exception if the file can't be read
+     */
+    private Generalisation buildModel(File input) throws Exception {
+
+        Instances header = openPass(input).getStructure().stringFreeStructure();
+        DatasetStatistics statistics = gatherStatistics(input, header);
+        Generalisation generalisation = new Generalisation(header, statistics);
+        //the records are streamed, so only the CAM and its counts need room
+        m_filter.planMemory(generalisation.codeDomainSizes(), statistics.numInstances(), 0);
+        CAIRAD.CoappearanceMatrix cam = countFile(input, generalisation,
+                m_filter.countStoreFactory(statistics.numInstances()));
+        m_filter.setModel(statistics, generalisation, cam);
+        return generalisation;
+
+    }
+
+    /**
+     * Pass 1: gather the statistics the generalisation is worked out from.
+     * The loader only holds the current string value, so the string values
+     * seen are collected in a header of the caller's.
+     *
+     * @param input - file to read
+     * @param header - string free structure of the file, which string values
+     * are added to
+     * @return the statistics
+     * @throws Exception if the file can't be read
+     */
+    static DatasetStatistics gatherStatistics(File input, Instances header) throws Exception {
+
+        AbstractFileLoader loader = openPass(input);
+        Instances structure = loader.getStructure();
+        int numAttributes = structure.numAttributes();
+        boolean hasStrings = structure.checkForStringAttributes();
+        //the distinct dates of a file too large for memory are estimated
+        DatasetStatistics statistics = new DatasetStatistics(header, true);
+
+        Instance instance;
+        while ((instance = loader.getNextInstance(structure)) != null) {
+            if (hasStrings) {
+                Instance copy = (Instance) instance.copy();
+                for (int j = 0; j < numAttributes; j++) {
+                    if (header.attribute(j).isString() && !instance.isMissing(j)) {
+                        copy.setValue(j, header.attribute(j).addStringValue(instance.stringValue(j)));
+                    }
+                }
+                instance = copy;
+            }
+            statistics.add(instance);
+        }
+        statistics.endScan();
+        return statistics;
+
+    }
+
+    /**
+     * Pass 2: build the coappearance matrix of a file a block of records at
+     * a time. If the generalisation was worked out from other data, a string
+     * value it hasn't seen has code -1, which can't be held in a block, so a
+     * record with one is counted on its own, leaving that value out.
+     *
+     * @param input - file to read
+     * @param generalisation - bins and dictionaries to encode records with
+     * @param storeFactory - creates the CAM's count store
+     * @return the CAM
+     * @throws Exception if the file can't be read
+     */
+    static CAIRAD.CoappearanceMatrix countFile(File input, Generalisation generalisation,
+            CountStoreFactory storeFactory) throws Exception {
+
+        AbstractFileLoader loader = openPass(input);
+        Instances structure = loader.getStructure();
+        int numAttributes = structure.numAttributes();
+        int[] codeDomainSizes = generalisation.codeDomainSizes();
+        CAIRAD.CoappearanceMatrix cam = new CAIRAD.CoappearanceMatrix(codeDomainSizes,
+                storeFactory);
+        EncodedDataset block = new EncodedDataset(CAIRAD.CoappearanceMatrix.ROW_BLOCK_SIZE,
+                codeDomainSizes);
+        int[] theRecord = new int[numAttributes];
+        int blockSize = 0;
+        Instance instance;
+        while ((instance = loader.getNextInstance(structure)) != null) {
+            boolean unseen = false;
+            for (int j = 0; j < numAttributes; j++) {
+                theRecord[j] = generalisation.encode(instance, j);
+                unseen |= theRecord[j] < 0;
+            }
+            if (unseen) {
+                cam.addRecord(theRecord);
+                continue;
+            }
+            for (int j = 0; j < numAttributes; j++) {
+                block.set(blockSize, j, theRecord[j]);
+            }
+            if (++blockSize == block.numRows()) {
+                cam.countRows(block, 0, blockSize);
+                blockSize = 0;
+            }
+        }
+        cam.countRows(block, 0, blockSize);
+        return cam;
+
+    }
+
+    /**
+     * Return the number of records in the last file filtered
+     *
+     * @return the number of records
+     */
+    public long getNumRecords() {
+        return m_numRecords;
+    }
+
+    /**
+     * Return the number of records with a noisy value in the last file
+     * filtered
+     *
+     * @return the number of noisy records
+     */
+    public long getNumNoisyRecords() {
+        return m_numNoisyRecords;
+    }
+
+    /**
+     * Return the filter holding the options and, once a file has been
+     * filtered, its model
+     *
+     * @return the filter
+     */
+    public CAIRAD getFilter() {
+        return m_filter;
+    }
+
+    /**
+     * Filter a file from the command line.
+     *
+     * @param args - -i &lt;input&gt; -o &lt;output.arff&gt; followed by CAIRAD
+     * options
+     */
+    public static void main(String[] args) {
+
+        try {
+            String input = Utils.getOption('i', args);
+            String output = Utils.getOption('o', args);
+            if (input.length() == 0 || output.length() == 0) {
+                throw new Exception("Both an input file (-i) and an output file (-o) are needed");
+            }
+
+            CAIRAD filter = new CAIRAD();
+            filter.setOptions(args);
+            Utils.checkForRemainingOptions(args);
+
+            OutOfCoreCAIRAD outOfCore = new OutOfCoreCAIRAD(filter);
+            outOfCore.filterFile(new File(input), new File(output));
+            System.err.println(outOfCore.getNumNoisyRecords() + " of "
+                    + outOfCore.getNumRecords() + " records have noisy values");
+        } catch (Exception e) {
+            StringBuilder usage = new StringBuilder();
+            usage.append(e.getMessage()).append("\n\n");
+            usage.append("Usage: java ").append(OutOfCoreCAIRAD.class.getName())
+                    .append(" -i <input> -o <output.arff> [options]\n\n");
+            Enumeration<Option> options = new CAIRAD().listOptions();
+            while (options.hasMoreElements()) {
+                Option option = options.nextElement();
+                usage.append(option.synopsis()).append("\n")
+                        .append(option.description()).append("\n");
+            }
+            System.err.println(usage);
+            System.exit(1);
+        }
+
+    }
+
+}
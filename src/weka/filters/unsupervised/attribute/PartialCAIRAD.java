@@ -0,0 +1,239 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    PartialCAIRAD.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import weka.core.Instances;
+import weka.core.Option;
+import weka.core.Utils;
+
+/**
+ * Builds a CAIRAD model from data split into shards, which can be counted in
+ * separate processes or on separate machines. Coappearance counts add up, so
+ * once every shard is encoded with the same bins and dictionaries, the CAM
+ * of the whole dataset is the cell by cell sum of the shards' CAMs:
+ * <ol>
+ * <li>map counts one shard into a partial model (see ModelFile), reading
+ * the shard incrementally twice: once to count its records, which the
+ * storage is chosen and sized by, and once to count them into the CAM. The
+ * bins are fixed up front, taken from a saved model or partial, or worked
+ * out from a data file such as a sample of the whole dataset. Numeric values outside the bins' range fall in the first
+ * or last bin, and string values not in the dictionaries aren't counted.</li>
+ * <li>reduce adds partial models together into a model, which CAIRAD and
+ * OutOfCoreCAIRAD can load to score records, or into another partial, so
+ * partials can be reduced in a tree.</li>
+ * </ol>
+ * Run from the command line with:
+ * <p/>
+ * java weka.filters.unsupervised.attribute.PartialCAIRAD map -bins &lt;file&gt;
+ * -i &lt;shard&gt; -o &lt;partial&gt; [CAIRAD options]
+ * <p/>
+ * java weka.filters.unsupervised.attribute.PartialCAIRAD reduce -o
+ * &lt;model&gt; [-partial] [CAIRAD options] &lt;partial&gt;...
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+public class PartialCAIRAD {
+
+    /**
+     * The filter holding the options: the storage counts are held in, and
+     * tau and lambda for reduced models
+     */
+    private final CAIRAD m_filter;
+
+    /**
+     * Set up to map and reduce with the given filter's options.
+     *
+     * @param filter - CAIRAD configured with the options to use
+     */
+    public PartialCAIRAD(CAIRAD filter) {
+        m_filter = filter;
+    }
+
+    /**
+     * Read the bins and dictionaries shards are encoded with.
+     *
+     * @param bins - a saved model or partial, whose bins are used, or a data
+     * file the bins are worked out from
+     * @return the generalisation
+     * @throws Exception if the file can't be read
+     */
+    static Generalisation readBins(File bins) throws Exception {
+
+        if (ModelFile.hasMagic(bins)) {
+            return ModelFile.load(bins).getGeneralisation();
+        }
+
+        Instances header = OutOfCoreCAIRAD.openPass(bins).getStructure().stringFreeStructure();
+        DatasetStatistics statistics = OutOfCoreCAIRAD.gatherStatistics(bins, header);
+        return new Generalisation(header, statistics);
+
+    }
+
+    /**
+     * Count one shard into a partial model.
+     *
+     * @param bins - a saved model or partial, or a data file the bins are
+     * worked out from
+     * @param shard - the shard, in any format with an incremental loader
+     * @param partial - partial model file to write
+     * @throws Exception if a file can't be used or the shard's attributes
+     * don't match the bins
+     */
+    public void map(File bins, File shard, File partial) throws Exception {
+
+        Generalisation generalisation = readBins(bins);
+        generalisation.checkCompatible(OutOfCoreCAIRAD.openPass(shard).getStructure());
+
+        //hybrid storage tells sparse pairs from dense ones by the number of
+        //records, so the shard's are counted first
+        long numRows = OutOfCoreCAIRAD.countRecords(shard);
+        m_filter.planMemory(generalisation.codeDomainSizes(), numRows, 0);
+        CAIRAD.CoappearanceMatrix cam = OutOfCoreCAIRAD.countFile(shard, generalisation,
+                m_filter.countStoreFactory(numRows));
+        ModelFile.savePartial(partial, generalisation, cam);
+
+    }
+
+    /**
+     * Add partial models together.
+     *
+     * @param partials - the partial model files, all counted with the same
+     * bins
+     * @param output - file to write
+     * @param asPartial - whether to write a partial rather than a model
+     * @throws Exception if a file can't be used or the partials' bins differ
+     */
+    public void reduce(File[] partials, File output, boolean asPartial) throws Exception {
+
+        if (partials.length == 0) {
+            throw new Exception("No partial models to reduce");
+        }
+
+        ModelFile[] models = new ModelFile[partials.length];
+        long numRows = 0;
+        for (int i = 0; i < partials.length; i++) {
+            models[i] = ModelFile.load(partials[i]);
+            if (!models[i].isPartial()) {
+                throw new Exception(partials[i] + " is not a partial model");
+            }
+            models[i].getGeneralisation().checkSameBins(models[0].getGeneralisation());
+            long[][] valueAppearances = models[i].getCAM().valueAppearances;
+            if (valueAppearances.length > 0) {
+                for (long appearances : valueAppearances[0]) {
+                    numRows += appearances;
+                }
+            }
+        }
+
+        Generalisation generalisation = models[0].getGeneralisation();
+        m_filter.planMemory(generalisation.codeDomainSizes(), numRows, 0);
+        CAIRAD.CoappearanceMatrix cam = new CAIRAD.CoappearanceMatrix(
+                generalisation.codeDomainSizes(), m_filter.countStoreFactory(numRows));
+        for (ModelFile model : models) {
+            cam.merge(model.getCAM());
+        }
+
+        if (asPartial) {
+            ModelFile.savePartial(output, generalisation, cam);
+        } else {
+            ModelFile.save(output, generalisation, cam, m_filter.getCoappearanceThreshold(),
+                    m_filter.getCoappearanceScoreThreshold());
+        }
+
+    }
+
+    /**
+     * Map a shard or reduce partials from the command line.
+     *
+     * @param args - map -bins &lt;file&gt; -i &lt;shard&gt; -o
+     * &lt;partial&gt; or reduce -o &lt;model&gt; [-partial] &lt;partial&gt;...,
+     * followed by CAIRAD options
+     */
+    public static void main(String[] args) {
+
+        try {
+            String command = args.length > 0 ? args[0] : "";
+            String[] options = new String[Math.max(0, args.length - 1)];
+            System.arraycopy(args, args.length - options.length, options, 0, options.length);
+
+            CAIRAD filter = new CAIRAD();
+            PartialCAIRAD partial = new PartialCAIRAD(filter);
+            if (command.equals("map")) {
+                String bins = Utils.getOption("bins", options);
+                String input = Utils.getOption('i', options);
+                String output = Utils.getOption('o', options);
+                if (bins.length() == 0 || input.length() == 0 || output.length() == 0) {
+                    throw new Exception("A bins file (-bins), a shard (-i) and an output file (-o) are needed");
+                }
+                filter.setOptions(options);
+                Utils.checkForRemainingOptions(options);
+                partial.map(new File(bins), new File(input), new File(output));
+            } else if (command.equals("reduce")) {
+                String output = Utils.getOption('o', options);
+                if (output.length() == 0) {
+                    throw new Exception("An output file (-o) is needed");
+                }
+                boolean asPartial = Utils.getFlag("partial", options);
+                filter.setOptions(options);
+
+                //what's left are the partials
+                ArrayList<File> partials = new ArrayList<File>();
+                for (int i = 0; i < options.length; i++) {
+                    if (options[i].startsWith("-")) {
+                        throw new Exception("Illegal option: " + options[i]);
+                    }
+                    if (options[i].length() > 0) {
+                        partials.add(new File(options[i]));
+                        options[i] = "";
+                    }
+                }
+                partial.reduce(partials.toArray(new File[partials.size()]),
+                        new File(output), asPartial);
+            } else {
+                throw new Exception("The first argument must be map or reduce");
+            }
+        } catch (Exception e) {
+            StringBuilder usage = new StringBuilder();
+            usage.append(e.getMessage()).append("\n\n");
+            usage.append("Usage: java ").append(PartialCAIRAD.class.getName())
+                    .append(" map -bins <file> -i <shard> -o <partial> [options]\n")
+                    .append("       java ").append(PartialCAIRAD.class.getName())
+                    .append(" reduce -o <model> [-partial] [options] <partial>...\n\n")
+                    .append("-bins <file>\n\tA saved model or partial whose bins are used, or a\n")
+                    .append("\tdata file the bins are worked out from.\n")
+                    .append("-partial\n\tWrite a partial model rather than a model.\n");
+            Enumeration<Option> options = new CAIRAD().listOptions();
+            while (options.hasMoreElements()) {
+                Option option = options.nextElement();
+                usage.append(option.synopsis()).append("\n")
+                        .append(option.description()).append("\n");
+            }
+            System.err.println(usage);
+            System.exit(1);
+        }
+
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    PhaseEvents.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+/**
+ * Marks the phases of CAIRAD for a profiler. Each phase is bracketed by a
+ * begin call, which returns a handle, and an end call, which is given the
+ * handle and what the phase worked on. This class does nothing; when the JVM
+ * has Java Flight Recorder (JDK 11 and later, and 8u262 and later), EVENTS is
+ * a FlightRecorderEvents that records each phase as a JFR event. Nothing
+ * else refers to the jdk.jfr classes, so the filter still runs on JVMs
+ * without them.
+ * <p/>
+ * Begin returns null when the phase's event isn't being recorded, and end
+ * does nothing with a null handle, so a phase costs a null check when
+ * nothing is recording.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+class PhaseEvents {
+
+    /**
+     * The events used by CAIRAD
+     */
+    static final PhaseEvents EVENTS = load();
+
+    /**
+     * Events that are never recorded, for work done outside a call to
+     * process, such as planning memory
+     */
+    static final PhaseEvents NONE = new PhaseEvents();
+
+    /**
+     * Use Flight Recorder events if the JVM has Flight Recorder, and no
+     * events otherwise.
+     *
+     * @return the events
+     */
+    private static PhaseEvents load() {
+
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (PhaseEvents) Class.forName(PhaseEvents.class.getPackage().getName()
+                    + ".FlightRecorderEvents").getDeclaredConstructor().newInstance();
+        } catch (Throwable e) {
+            //no Flight Recorder, or it can't be used here
+            return new PhaseEvents();
+        }
+
+    }
+
+    /**
+     * Begin generalising a dataset: gathering its statistics, working out the
+     * bins and encoding it.
+     *
+     * @return the handle, null if the phase isn't recorded
+     */
+    Object beginGeneralise() {
+        return null;
+    }
+
+    /**
+     * End generalising a dataset.
+     *
+     * @param handle - the handle from beginGeneralise
+     * @param rows - number of records encoded
+     * @param attributes - number of attributes
+     * @param bytes - bytes taken up by the encoded records
+     */
+    void endGeneralise(Object handle, long rows, int attributes, long bytes) {
+    }
+
+    /**
+     * Begin working out the bins or dictionary of one attribute.
+     *
+     * @return the handle, null if the phase isn't recorded
+     */
+    Object beginAttribute() {
+        return null;
+    }
+
+    /**
+     * End working out the bins or dictionary of one attribute.
+     *
+     * @param handle - the handle from beginAttribute
+     * @param attribute - index of the attribute
+     * @param name - name of the attribute
+     * @param kind - numeric, string or nominal
+     * @param bins - the attribute's domain size once generalised
+     */
+    void endAttribute(Object handle, int attribute, String name, String kind, int bins) {
+    }
+
+    /**
+     * Begin building the coappearance matrix.
+     *
+     * @return the handle, null if the phase isn't recorded
+     */
+    Object beginBuildCAM() {
+        return null;
+    }
+
+    /**
+     * End building the coappearance matrix.
+     *
+     * @param handle - the handle from beginBuildCAM
+     * @param rows - number of records counted
+     * @param attributes - number of attributes
+     * @param cells - number of cells in the matrix
+     * @param heapBytes - heap bytes taken up by the counts
+     * @param nativeBytes - native bytes taken up by the counts
+     * @param storage - where the counts are held
+     */
+    void endBuildCAM(Object handle, long rows, int attributes, long cells, long heapBytes,
+            long nativeBytes, String storage) {
+    }
+
+    /**
+     * Begin scoring a chunk of records.
+     *
+     * @return the handle, null if the phase isn't recorded
+     */
+    Object beginScoring() {
+        return null;
+    }
+
+    /**
+     * End scoring a chunk of records.
+     *
+     * @param handle - the handle from beginScoring
+     * @param firstRow - index of the chunk's first record
+     * @param rows - number of records in the chunk
+     * @param attributes - number of attributes
+     */
+    void endScoring(Object handle, long firstRow, long rows, int attributes) {
+    }
+
+    /**
+     * Begin packaging the output.
+     *
+     * @return the handle, null if the phase isn't recorded
+     */
+    Object beginOutput() {
+        return null;
+    }
+
+    /**
+     * End packaging the output.
+     *
+     * @param handle - the handle from beginOutput
+     * @param rows - number of records output
+     * @param attributes - number of output attributes
+     * @param noisyRecords - number of records with a noisy value
+     */
+    void endOutput(Object handle, long rows, int attributes, long noisyRecords) {
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    RecordWindow.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.io.Serializable;
+
+/**
+ * The generalised codes of the most recent records, held in a ring buffer.
+ * Once the window is full, adding a record evicts the oldest one.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+final class RecordWindow implements Serializable {
+
+    /**
+     * For serialization
+     */
+    static final long serialVersionUID = -3300724169018652398L;
+
+    /**
+     * Number of attributes in each record
+     */
+    private final int m_numAttributes;
+
+    /**
+     * Maximum number of records held
+     */
+    private final int m_capacity;
+
+    /**
+     * The codes, one record after another
+     */
+    private final int[] m_codes;
+
+    /**
+     * Slot of the oldest record
+     */
+    private int m_oldest;
+
+    /**
+     * Number of records held
+     */
+    private int m_size;
+
+    /**
+     * Create an empty window.
+     *
+     * @param capacity - maximum number of records held
+     * @param numAttributes - number of attributes in each record
+     */
+    RecordWindow(int capacity, int numAttributes) {
+
+        long numCodes = (long) capacity * numAttributes;
+        if (numCodes > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Window of " + capacity
+                    + " records is too large");
+        }
+
+        m_numAttributes = numAttributes;
+        m_capacity = capacity;
+        m_codes = new int[(int) numCodes];
+
+    }
+
+    /**
+     * Add a record to the window, evicting the oldest record if the window
+     * is full.
+     *
+     * @param record - codes of the record to add
+     * @param evicted - set to the codes of the evicted record, if there is
+     * one
+     * @return whether or not a record was evicted
+     */
+    boolean add(int[] record, int[] evicted) {
+
+        boolean full = m_size == m_capacity;
+        int slot;
+        if (full) {
+            slot = m_oldest;
+            System.arraycopy(m_codes, slot * m_numAttributes, evicted, 0, m_numAttributes);
+            m_oldest = (m_oldest + 1) % m_capacity;
+        } else {
+            slot = (m_oldest + m_size) % m_capacity;
+            m_size++;
+        }
+        System.arraycopy(record, 0, m_codes, slot * m_numAttributes, m_numAttributes);
+        return full;
+
+    }
+
+    /**
+     * Return the number of records in the window
+     *
+     * @return the number of records
+     */
+    int size() {
+        return m_size;
+    }
+
+    /**
+     * Return the maximum number of records in the window
+     *
+     * @return the capacity
+     */
+    int capacity() {
+        return m_capacity;
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    SketchCountStore.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.util.Random;
+
+/**
+ * Approximate counts in a fixed amount of memory: each attribute pair is held
+ * in a Count-Min sketch of depth rows of width counters. Counting a cell adds
+ * to one counter per row, chosen by that row's hash of the cell index, and a
+ * cell's estimate is the smallest of its depth counters.
+ * <p/>
+ * Error bounds: if the pair has had N records counted into it, the estimate
+ * C' of a cell whose true count is C satisfies C &lt;= C' always, and
+ * C' &lt;= C + (e / width) * N with probability at least 1 - exp(-depth). So
+ * a width of 2048 and depth of 4 overestimate by at most 0.13% of N with
+ * probability 98.2%. Overestimated coappearances can only lower a value's
+ * NVI scores, so approximate counts flag at most as many values as exact
+ * ones, give or take ties.
+ * <p/>
+ * A pair whose block has no more cells than a sketch has counters is held
+ * exactly, in a dense block of the same or smaller size. Counters are longs,
+ * so a heavy counter can't wrap round and fall below the true count however
+ * many records are counted, and memory is at most width * depth * 8 bytes
+ * per pair.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+final class SketchCountStore extends CountStore {
+
+    /**
+     * For serialization
+     */
+    static final long serialVersionUID = -6318210524367802208L;
+
+    /**
+     * Seed of the hash functions. Fixed, so the sketches of partial CAMs
+     * line up and can be merged counter by counter.
+     */
+    private static final long HASH_SEED = 0x5EEDCA1BADL;
+
+    /**
+     * Number of counters in each row of a sketch
+     */
+    private final int m_width;
+
+    /**
+     * Number of rows (hash functions) in each sketch
+     */
+    private final int m_depth;
+
+    /**
+     * Multiplier (odd) and increment of each row's hash
+     */
+    private final long[][] m_hashes;
+
+    /**
+     * Counters of each pair: depth rows of width counters for a sketched
+     * pair, or the exact block for a small one
+     */
+    private final long[][] m_counters;
+
+    /**
+     * Whether each pair is sketched rather than held exactly
+     */
+    private final boolean[] m_sketched;
+
+    /**
+     * Allocate zeroed sketches.
+     *
+     * @param pairSizes - number of cells in each attribute pair's block
+     * @param width - number of counters in each row of a sketch
+     * @param depth - number of rows in each sketch
+     */
+    SketchCountStore(long[] pairSizes, int width, int depth) {
+
+        super(pairSizes);
+
+        if ((long) width * depth > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Sketch of " + width + " by "
+                    + depth + " counters is too large");
+        }
+        m_width = width;
+        m_depth = depth;
+
+        m_hashes = hashes(depth);
+
+        m_counters = new long[pairSizes.length][];
+        m_sketched = new boolean[pairSizes.length];
+        for (int pair = 0; pair < pairSizes.length; pair++) {
+            m_sketched[pair] = pairSizes[pair] > (long) width * depth;
+            m_counters[pair] = new long[m_sketched[pair] ? width * depth : (int) pairSizes[pair]];
+        }
+
+    }
+
+    /**
+     * Make the hash functions of sketches of a given depth. They depend on
+     * nothing else, so sketches of the same width and depth, including ones
+     * saved to a model file, always line up.
+     *
+     * @param depth - number of rows in each sketch
+     * @return the multiplier (odd) of each row's hash, then the increment of
+     * each row's hash
+     */
+    static long[][] hashes(int depth) {
+
+        Random random = new Random(HASH_SEED);
+        long[][] hashes = new long[2][depth];
+        for (int row = 0; row < depth; row++) {
+            hashes[0][row] = random.nextLong() | 1;
+            hashes[1][row] = random.nextLong();
+        }
+        return hashes;
+
+    }
+
+    /**
+     * Position of a cell's counter in one row of a sketch: a multiply-add
+     * hash of the index, whose top 32 bits are scaled down to the width.
+     *
+     * @param hashes - the hash functions, from hashes(depth)
+     * @param width - number of counters in each row
+     * @param row - the row
+     * @param index - index of the cell
+     * @return the position of the counter in the sketch's counters
+     */
+    static int counter(long[][] hashes, int width, int row, long index) {
+        long hash = (hashes[0][row] * (index ^ (index >>> 32)) + hashes[1][row]) >>> 32;
+        return row * width + (int) ((hash * width) >>> 32);
+    }
+
+    @Override
+    boolean isSketched(int pair) {
+        return m_sketched[pair];
+    }
+
+    @Override
+    int sketchWidth() {
+        return m_width;
+    }
+
+    @Override
+    int sketchDepth() {
+        return m_depth;
+    }
+
+    @Override
+    long sketchCounter(int pair, int counter) {
+        return m_counters[pair][counter];
+    }
+
+    @Override
+    long get(int pair, long index) {
+
+        long[] counters = m_counters[pair];
+        if (!m_sketched[pair]) {
+            return counters[(int) index];
+        }
+
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < m_depth; row++) {
+            estimate = Math.min(estimate, counters[counter(m_hashes, m_width, row, index)]);
+        }
+        return estimate;
+
+    }
+
+    @Override
+    void add(int pair, long index, long delta) {
+
+        long[] counters = m_counters[pair];
+        if (!m_sketched[pair]) {
+            counters[(int) index] += delta;
+            return;
+        }
+
+        for (int row = 0; row < m_depth; row++) {
+            counters[counter(m_hashes, m_width, row, index)] += delta;
+        }
+
+    }
+
+    @Override
+    void addAll(CountStore other) {
+
+        boolean sameSketches = other.sketchWidth() == m_width && other.sketchDepth() == m_depth;
+        for (int pair = 0; pair < m_counters.length; pair++) {
+            if (!m_sketched[pair] || !other.isSketched(pair) || !sameSketches) {
+                addPair(other, pair);
+                continue;
+            }
+            //sketches with the same hashes add up counter by counter
+            long[] counters = m_counters[pair];
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] += other.sketchCounter(pair, i);
+            }
+        }
+
+    }
+
+    @Override
+    long heapBytes() {
+
+        long bytes = 0;
+        for (long[] counters : m_counters) {
+            bytes += (long) counters.length * 8;
+        }
+        return bytes;
+
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    VerdictTable.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.io.Serializable;
+
+/**
+ * The NVI score (0, 1 or 2) of every cell of a coappearance matrix. The score
+ * of a pair of values only depends on their coappearance count and on the
+ * frequency of each value, so once the CAM is built it can be worked out once
+ * per value combination rather than once per record. Scores are packed two
+ * bits to a cell, 32 cells to a long, with the pairs' blocks one after
+ * another in pair order.
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+final class VerdictTable implements Serializable {
+
+    /**
+     * For serialization
+     */
+    static final long serialVersionUID = -1875560307735412265L;
+
+    /**
+     * The packed scores
+     */
+    private final long[] m_scores;
+
+    /**
+     * Index of the first cell of each pair's block
+     */
+    private final long[] m_pairStarts;
+
+    /**
+     * Work out the score of every cell of a CAM.
+     *
+     * @param cam - the coappearance matrix
+     * @param attributeDomainSizes - domain size of each attribute as used in
+     * the expected coappearance (A_j in the original paper)
+     * @param coappearanceThreshold - tau in the original paper
+     */
+    VerdictTable(CAIRAD.CoappearanceMatrix cam, int[] attributeDomainSizes,
+            double coappearanceThreshold) {
+
+        int[] domainSizes = cam.domainSizes;
+        long numCells = cam.counts.numCells();
+        if ((numCells + 31) / 32 > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Coappearance matrix of " + numCells
+                    + " cells is too large for verdict tables");
+        }
+        m_scores = new long[(int) ((numCells + 31) / 32)];
+        m_pairStarts = new long[cam.counts.numPairs()];
+
+        int pair = 0;
+        for (int j = 0; j < domainSizes.length - 1; j++) {
+
+            for (int k = j + 1; k < domainSizes.length; k++) {
+
+                int p = pair++;
+                long start = p == 0 ? 0 : m_pairStarts[p - 1] + cam.counts.pairSize(p - 1);
+                m_pairStarts[p] = start;
+
+                for (int x = 0; x < domainSizes[j]; x++) {
+
+                    double xf = cam.valueAppearances[j][x];
+                    double Exy = (xf / (double) attributeDomainSizes[k]) * coappearanceThreshold;
+
+                    for (int y = 0; y < domainSizes[k]; y++) {
+
+                        double yf = cam.valueAppearances[k][y];
+                        double Eyx = (yf / (double) attributeDomainSizes[j]) * coappearanceThreshold;
+
+                        long index = (long) x * domainSizes[k] + y;
+                        long cell = start + index;
+                        long score = CAIRAD.coappearanceScore(cam.counts.get(p, index), Exy, Eyx);
+                        m_scores[(int) (cell >>> 5)] |= score << ((cell & 31) << 1);
+
+                    }
+
+                }
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Return the score of a cell.
+     *
+     * @param pair - index of the pair, as in CoappearanceMatrix.counts
+     * @param index - index of the cell within the pair's block
+     * @return the score, 0, 1 or 2
+     */
+    int score(int pair, long index) {
+        long cell = m_pairStarts[pair] + index;
+        return (int) (m_scores[(int) (cell >>> 5)] >>> ((cell & 31) << 1)) & 3;
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    CAIRADFlightRecorderTest.java
+ *    Copyright (C) 2020 Michael Furner
+ *
+ */
+package weka.filters.unsupervised.attribute;
+
+import java.io.File;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import weka.core.Instances;
+import weka.filters.Filter;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the Flight Recorder events of CAIRAD. Kept apart from CAIRADTest,
+ * as this is the only test that uses the jdk.jfr classes; on a JVM without
+ * Flight Recorder it passes without checking anything. Run from the command
+ * line with:
+ * <p>
+ * java weka.filters.unsupervised.attribute.CAIRADFlightRecorderTest
+ *
+ * @author Michael Furner
+ * @version 1.0
+ */
+public class CAIRADFlightRecorderTest extends TestCase {
+
+    public CAIRADFlightRecorderTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Returns whether the JVM has Flight Recorder.
+     */
+    protected static boolean hasFlightRecorder() {
+        try {
+            Class.forName("jdk.jfr.Recording");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    public void testPhaseEvents() {
+        if (!hasFlightRecorder()) {
+            return;
+        }
+
+        NoisyDataGenerator generator = new NoisyDataGenerator();
+        generator.setNumRecords(3000);
+        Instances data = generator.generateInstances(null);
+        CAIRAD filter = new CAIRAD();
+
+        File file = null;
+        try (Recording recording = new Recording()) {
+            recording.enable("weka.CAIRAD.Generalise");
+            recording.enable("weka.CAIRAD.GeneraliseAttribute");
+            recording.enable("weka.CAIRAD.BuildCAM");
+            recording.enable("weka.CAIRAD.Score");
+            recording.enable("weka.CAIRAD.Output");
+            recording.start();
+            // Planning memory works out the bins, but isn't a phase
+            filter.planMemory(data);
+            filter.setInputFormat(data);
+            Filter.useFilter(data, filter);
+            recording.stop();
+            file = File.createTempFile("cairad", ".jfr");
+            recording.dump(file.toPath());
+
+            // One event per attribute when training, and one for each of the
+            // other phases
+            int attributes = 0;
+            int camBuilds = 0;
+            int scoreEvents = 0;
+            long rowsScored = 0;
+            for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+                String name = event.getEventType().getName();
+                if (name.equals("weka.CAIRAD.GeneraliseAttribute")) {
+                    attributes++;
+                } else if (name.equals("weka.CAIRAD.BuildCAM")) {
+                    camBuilds++;
+                    assertEquals(data.numInstances(), event.getLong("rows"));
+                    assertEquals(filter.getCAMHeapBytes(), event.getLong("heapBytes"));
+                } else if (name.equals("weka.CAIRAD.Score")) {
+                    scoreEvents++;
+                    rowsScored += event.getLong("rows");
+                }
+            }
+            assertEquals(data.numAttributes(), attributes);
+            assertEquals(1, camBuilds);
+            // one thread scores a block of 1024 records per event
+            assertEquals(3, scoreEvents);
+            assertEquals(data.numInstances(), rowsScored);
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Recording failed: " + e.toString());
+        } finally {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(CAIRADFlightRecorderTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
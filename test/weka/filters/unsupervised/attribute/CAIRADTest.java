@@ -18,7 +18,18 @@
  */
 package weka.filters.unsupervised.attribute;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
 import weka.core.Instances;
+import weka.core.SelectedTag;
+import weka.core.converters.ArffLoader;
+import weka.core.converters.ArffSaver;
 import weka.filters.AbstractFilterTest;
 import weka.filters.Filter;
 
@@ -57,6 +68,783 @@ public class CAIRADTest extends AbstractFilterTest {
         assertEquals(m_Instances.numInstances(), result.numInstances());
     }
 
+    public void testSingleStatisticsScan() {
+        this.m_FilteredClassifier = null;
+        useFilter();
+        // Attribute statistics should be gathered in a single pass
+        assertEquals(1, ((CAIRAD) m_Filter).getNumStatisticsScans());
+    }
+
+    public void testDistinctDates() {
+        // A date for every record: counted exactly in memory, and only
+        // estimated when the statistics are bounded
+        ArrayList<Attribute> atts = new ArrayList<Attribute>();
+        atts.add(new Attribute("time", "yyyy-MM-dd HH:mm:ss"));
+        Instances data = new Instances("dates", atts, 0);
+        int numDates = 2 * DatasetStatistics.EXACT_DISTINCT_LIMIT;
+        for (int i = 0; i < numDates; i++) {
+            data.add(new DenseInstance(1, new double[]{i * 1000.0}));
+        }
+        assertEquals(numDates, DatasetStatistics.collect(data).distinctCount(0));
+
+        DatasetStatistics bounded = new DatasetStatistics(data, true);
+        for (int i = 0; i < numDates; i++) {
+            bounded.add(data.instance(i));
+        }
+        assertEquals(numDates, bounded.distinctCount(0), numDates * 0.05);
+    }
+
+    public void testMetrics() {
+        CAIRAD filter = new CAIRAD();
+        filter.setNumThreads(4);
+        Instances data = getLargeInstances();
+        try {
+            filter.setInputFormat(data);
+            Filter.useFilter(data, filter);
+
+            // Every phase of a trained model should be timed, and the counts
+            // should match the model and matrix the filter ended up with
+            CAIRADMetrics metrics = filter.getMetrics();
+            for (int phase = CAIRADMetrics.GENERALISE; phase <= CAIRADMetrics.OUTPUT; phase++) {
+                assertTrue(metrics.getWallNanos(phase) > 0);
+                assertTrue(metrics.getCpuNanos(phase) != 0);
+            }
+            assertTrue(metrics.getTotalWallNanos() >= metrics.getWallNanos(CAIRADMetrics.SCORE));
+            assertEquals(data.numInstances(), metrics.getRowsScored());
+            assertEquals(filter.getNoisyValues().numNoisyValues(), metrics.getNoisyValues());
+            assertEquals(filter.getCAMHeapBytes(), metrics.getCAMHeapBytes());
+            assertTrue(metrics.getCAMCells() > 0);
+            assertTrue(metrics.getNoisyRecords() <= metrics.getNoisyValues());
+
+            // The same metrics should be readable over JMX
+            ObjectName name = metrics.registerMBean();
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                assertEquals(metrics.getRowsScored(), server.getAttribute(name, "RowsScored"));
+                assertEquals(metrics.getCAMCells(), server.getAttribute(name, "CAMCells"));
+            } finally {
+                metrics.unregisterMBean();
+            }
+
+            filter.setPrintMetrics(true);
+            assertTrue(Arrays.asList(filter.getOptions()).contains("-V"));
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Filtering failed: " + e.toString());
+        }
+    }
+
+    /**
+     * Returns a copy of the test data repeated enough times for the parallel
+     * code paths to split it between threads.
+     */
+    protected Instances getLargeInstances() {
+        Instances result = new Instances(m_Instances);
+        for (int i = 0; i < 5000; i++) {
+            result.add(m_Instances.instance(i % m_Instances.numInstances()));
+        }
+        return result;
+    }
+
+    /**
+     * Runs configured CAIRADs over data and checks that each one's output and
+     * noisy attribute matrix match those of a default, single threaded
+     * CAIRAD.
+     */
+    protected void checkMatchesSerial(Instances data, CAIRAD... configured) {
+        try {
+            CAIRAD serial = new CAIRAD();
+            serial.setInputFormat(data);
+            String expected = Filter.useFilter(data, serial).toString();
+            int[][] expectedMatrix = serial.getNoisyAttributeMatrix();
+
+            for (CAIRAD filter : configured) {
+                filter.setInputFormat(data);
+                Instances result = Filter.useFilter(data, filter);
+
+                assertEquals(expected, result.toString());
+                int[][] resultMatrix = filter.getNoisyAttributeMatrix();
+                for (int i = 0; i < expectedMatrix.length; i++) {
+                    for (int j = 0; j < expectedMatrix[i].length; j++) {
+                        assertEquals(expectedMatrix[i][j], resultMatrix[i][j]);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Filtering failed: " + e.toString());
+        }
+    }
+
+    /**
+     * Creates a CAIRAD that builds its CAM on four threads.
+     */
+    protected CAIRAD parallel(int storage, int partitioning) {
+        CAIRAD filter = new CAIRAD();
+        filter.setNumThreads(4);
+        filter.setStorage(new SelectedTag(storage, CAIRAD.TAGS_STORAGE));
+        filter.setPartitioning(new SelectedTag(partitioning, CAIRAD.TAGS_PARTITIONING));
+        return filter;
+    }
+
+    public void testParallelBuild() {
+        // Every storage split by rows, and the flat ones by attribute pair,
+        // should find exactly what the serial build does; the sketches are
+        // wide enough to hold every pair exactly
+        CAIRAD heap = parallel(CAIRAD.STORAGE_HEAP, CAIRAD.PARTITION_ROWS);
+        CAIRAD offHeap = parallel(CAIRAD.STORAGE_OFF_HEAP, CAIRAD.PARTITION_ROWS);
+        CAIRAD sketch = parallel(CAIRAD.STORAGE_SKETCH, CAIRAD.PARTITION_ROWS);
+        sketch.setSketchWidth(1 << 16);
+        checkMatchesSerial(getLargeInstances(), heap, offHeap, sketch,
+                parallel(CAIRAD.STORAGE_HEAP, CAIRAD.PARTITION_PAIRS),
+                parallel(CAIRAD.STORAGE_OFF_HEAP, CAIRAD.PARTITION_PAIRS),
+                parallel(CAIRAD.STORAGE_HYBRID, CAIRAD.PARTITION_ROWS),
+                parallel(CAIRAD.STORAGE_ADAPTIVE, CAIRAD.PARTITION_ROWS));
+
+        // The off-heap counts should live outside the heap
+        assertTrue(offHeap.getCAMNativeBytes() > 0);
+        assertEquals(0, offHeap.getCAMHeapBytes());
+    }
+
+    public void testVerdictTables() {
+        CAIRAD tables = new CAIRAD();
+        tables.setUseVerdictTables(true);
+        checkMatchesSerial(m_Instances, tables);
+    }
+
+    public void testHybridStorage() {
+        // A block with more than SPARSE_RATIO cells per row is hashed
+        HybridCountStore store = new HybridCountStore(new long[]{100000, 40}, 10);
+        assertTrue(store.isSparse(0));
+        assertFalse(store.isSparse(1));
+        for (int i = 0; i < 1000; i++) {
+            store.add(0, i * 97L, i);
+            store.add(1, i % 40, 1);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, store.get(0, i * 97L));
+        }
+        assertEquals(0, store.get(0, 1));
+        assertEquals(25, store.get(1, 3));
+
+        // Cells a sliding window takes back to zero give up their slots, so
+        // the map stays the size of the window however long the stream
+        HybridCountStore window = new HybridCountStore(new long[]{1L << 40}, 1);
+        for (long i = 0; i < 100000; i++) {
+            window.add(0, i * 7919, 1);
+            if (i >= 10) {
+                window.add(0, (i - 10) * 7919, -1);
+            }
+        }
+        assertEquals(32 * 12, window.heapBytes());
+        for (long i = 0; i < 100000; i++) {
+            assertEquals(i >= 99990 ? 1 : 0, window.get(0, i * 7919));
+        }
+    }
+
+    public void testSketchStorage() {
+        // Only the block with more cells than a sketch is estimated
+        SketchCountStore store = new SketchCountStore(new long[]{100000, 40}, 256, 4);
+        SketchCountStore other = new SketchCountStore(new long[]{100000, 40}, 256, 4);
+        assertTrue(store.isSketched(0));
+        assertFalse(store.isSketched(1));
+        int n = 0;
+        for (int i = 0; i < 1000; i++) {
+            store.add(0, i * 97L, 1 + i % 3);
+            other.add(0, i * 97L, 1);
+            n += 2 + i % 3;
+            store.add(1, i % 40, 1);
+        }
+        store.addAll(other);
+        assertEquals(25, store.get(1, 3));
+
+        // Never below the true count, rarely more than e/width * N above
+        int outside = 0;
+        for (int i = 0; i < 1000; i++) {
+            long estimate = store.get(0, i * 97L);
+            assertTrue(estimate >= 2 + i % 3);
+            if (estimate > 2 + i % 3 + Math.E / 256 * n) {
+                outside++;
+            }
+        }
+        assertTrue(outside < 1000 * Math.exp(-4) * 2);
+        assertEquals(256L * 4 * 8 + 40 * 8, store.heapBytes());
+
+        // A counter past 2^31 doesn't wrap round below the true count
+        store.add(0, 5, 3000000000L);
+        assertTrue(store.get(0, 5) >= 3000000000L);
+    }
+
+    public void testAdaptiveStorage() {
+        // Each block is promoted on its own as its counts outgrow it
+        AdaptiveCountStore store = new AdaptiveCountStore(new long[]{300, 10});
+        store.add(0, 7, 255);
+        assertEquals(AdaptiveCountStore.BYTE, store.width(0));
+        store.countBlock(0, new int[]{0, 0, 1}, new int[]{7, 7, 3}, 5, 3);
+        assertEquals(AdaptiveCountStore.SHORT, store.width(0));
+        assertEquals(257, store.get(0, 7));
+        assertEquals(1, store.get(0, 8));
+        store.add(0, 7, 70000);
+        assertEquals(AdaptiveCountStore.INT, store.width(0));
+        store.add(0, 7, 5000000000L);
+        assertEquals(AdaptiveCountStore.LONG, store.width(0));
+        assertEquals(5000070257L, store.get(0, 7));
+        assertEquals(1, store.get(0, 8));
+        assertEquals(AdaptiveCountStore.BYTE, store.width(1));
+        assertEquals(300 * 8 + 10, store.heapBytes());
+    }
+
+    public void testAutoStorage() {
+        CAIRAD auto = new CAIRAD();
+        auto.setStorage(new SelectedTag(CAIRAD.STORAGE_AUTO, CAIRAD.TAGS_STORAGE));
+        checkMatchesSerial(m_Instances, auto);
+        // A small CAM fits dense on the heap
+        assertEquals(CAIRAD.STORAGE_HEAP, auto.getMemoryPlan().getStorage());
+        assertEquals(auto.getMemoryPlan().getCAMHeapBytes(CAIRAD.STORAGE_HEAP),
+                auto.getCAMHeapBytes());
+    }
+
+    public void testMemoryPlan() {
+        // Three attributes of 100000 codes: 3 * 10^10 cells, too many for one
+        // array, but a thousand records only fill a thousand cells of each pair
+        int[] domainSizes = {100000, 100000, 100000};
+        long heap = 1L << 30;
+        MemoryPlan plan = new MemoryPlan(domainSizes, 1000, 1000, 0, false, 0, 0, 2048, 4,
+                CAIRAD.STORAGE_AUTO, 0, heap);
+        assertEquals(30000000000L, plan.getCAMCells());
+        assertNotNull(plan.getProblem(CAIRAD.STORAGE_HEAP));
+        assertNotNull(plan.getProblem(CAIRAD.STORAGE_ADAPTIVE));
+        assertEquals(CAIRAD.STORAGE_HYBRID, plan.getStorage());
+        assertTrue(plan.getHeapBytes(CAIRAD.STORAGE_HYBRID) < heap);
+
+        // With a million records each pair's hash map holds up to a million
+        // cells, 72 MB in all, so within a 64 MB budget only the sketch fits
+        plan = new MemoryPlan(domainSizes, 1000000, 1000000, 0, false, 0, 0, 2048, 4,
+                CAIRAD.STORAGE_AUTO, 64L << 20, heap);
+        assertNotNull(plan.getProblem(CAIRAD.STORAGE_HYBRID));
+        assertEquals(CAIRAD.STORAGE_SKETCH, plan.getStorage());
+        assertEquals(3L * 2048 * 4 * 8, plan.getCAMHeapBytes(CAIRAD.STORAGE_SKETCH));
+
+        // Asking for a storage that doesn't fit fails, and says why
+        plan = new MemoryPlan(domainSizes, 1000, 1000, 0, false, 0, 0, 2048, 4,
+                CAIRAD.STORAGE_OFF_HEAP, 512L << 20, heap);
+        assertFalse(plan.isFeasible());
+        assertTrue(plan.explain().contains("budget"));
+
+        // A window of 500 records is held as ints, and reducing the CAM to
+        // it builds a second CAM
+        plan = new MemoryPlan(domainSizes, 1000, 1000, 0, false, 500, 0, 2048, 4,
+                CAIRAD.STORAGE_SKETCH, 0, heap);
+        assertEquals(500 * 3 * 4, plan.getWorkingSetBytes() - new MemoryPlan(domainSizes,
+                1000, 1000, 0, false, 0, 0, 2048, 4, CAIRAD.STORAGE_SKETCH, 0, heap)
+                .getWorkingSetBytes());
+        assertEquals(plan.getWorkingSetBytes() + 2 * plan.getCAMHeapBytes(CAIRAD.STORAGE_SKETCH),
+                plan.getHeapBytes(CAIRAD.STORAGE_SKETCH));
+
+        // A half-life of 100 records keeps a dense block of doubles for a
+        // pair of 10 by 10 values, and the appearances of 20 values
+        plan = new MemoryPlan(new int[]{10, 10}, 3000000000L, 0, 0, false, 0, 100, 2048, 4,
+                CAIRAD.STORAGE_AUTO, 0, heap);
+        assertEquals((100 + 20) * 8, plan.getWorkingSetBytes() - new MemoryPlan(new int[]{10, 10},
+                3000000000L, 0, 0, false, 0, 0, 2048, 4, CAIRAD.STORAGE_AUTO, 0, heap)
+                .getWorkingSetBytes());
+        assertEquals(CAIRAD.STORAGE_HEAP, plan.getStorage());
+
+        // The filter stops before building anything
+        CAIRAD filter = new CAIRAD();
+        filter.setMemoryBudget(1);
+        filter.setStorage(new SelectedTag(CAIRAD.STORAGE_OFF_HEAP, CAIRAD.TAGS_STORAGE));
+        MemoryPlan explained = filter.planMemory(m_Instances);
+        assertTrue(explained.isFeasible());
+        assertEquals(explained.getCAMCells() * 4, explained.getCAMNativeBytes(CAIRAD.STORAGE_OFF_HEAP));
+    }
+
+    public void testNoisyValues() {
+        this.m_FilteredClassifier = null;
+        useFilter();
+        NoisyAttributeMatrix noisy = ((CAIRAD) m_Filter).getNoisyValues();
+        int[][] dense = ((CAIRAD) m_Filter).getNoisyAttributeMatrix();
+        assertEquals(dense.length, noisy.numRecords());
+
+        long count = 0;
+        for (int i = 0; i < dense.length; i++) {
+            boolean recordNoisy = false;
+            int next = noisy.nextNoisyAttribute(i, 0);
+            for (int j = 0; j < dense[i].length; j++) {
+                assertEquals(dense[i][j] == 1, noisy.isNoisy(i, j));
+                if (dense[i][j] == 1) {
+                    // Iteration should visit exactly the noisy values
+                    assertEquals(j, next);
+                    next = noisy.nextNoisyAttribute(i, j + 1);
+                    recordNoisy = true;
+                    count++;
+                }
+            }
+            assertEquals(-1, next);
+            assertEquals(recordNoisy, noisy.isRecordNoisy(i));
+        }
+        assertEquals(count, noisy.numNoisyValues());
+
+        // Bits either side of a word boundary
+        NoisyAttributeMatrix wide = new NoisyAttributeMatrix(3, 130);
+        wide.set(1, 63);
+        wide.set(1, 64);
+        wide.set(1, 129);
+        assertEquals(63, wide.nextNoisyAttribute(1, 0));
+        assertEquals(64, wide.nextNoisyAttribute(1, 64));
+        assertEquals(129, wide.nextNoisyAttribute(1, 65));
+        assertEquals(-1, wide.nextNoisyAttribute(1, 130));
+        assertEquals(-1, wide.nextNoisyAttribute(0, 0));
+        assertEquals(1, wide.nextNoisyRecord(0));
+        assertEquals(-1, wide.nextNoisyRecord(2));
+        assertEquals(3, wide.numNoisyValues());
+    }
+
+    /**
+     * Filters the test data twice with a filter that scores later batches;
+     * the second batch is scored against the same counts as the first, so
+     * should come out the same.
+     */
+    protected void checkScoreLaterBatches(CAIRAD filter) {
+        try {
+            filter.setInputFormat(m_Instances);
+            Instances first = Filter.useFilter(m_Instances, filter);
+            Instances second = Filter.useFilter(m_Instances, filter);
+            assertEquals(first.toString(), second.toString());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Filtering failed: " + e.toString());
+        }
+    }
+
+    public void testScoreLaterBatches() {
+        CAIRAD missing = new CAIRAD();
+        missing.setScoreLaterBatches(true);
+        checkScoreLaterBatches(missing);
+        CAIRAD indicator = new CAIRAD();
+        indicator.setScoreLaterBatches(true);
+        indicator.setMakeNoisyMissing(false);
+        checkScoreLaterBatches(indicator);
+    }
+
+    public void testWindow() {
+        // With a window as big as the data, streaming the data again keeps
+        // the same records in the window, just in a different order
+        CAIRAD window = new CAIRAD();
+        window.setWindowSize(m_Instances.numInstances());
+        window.setUseVerdictTables(true);
+        checkScoreLaterBatches(window);
+    }
+
+    public void testHalfLife() {
+        try {
+            Generalisation generalisation = new Generalisation(m_Instances,
+                    DatasetStatistics.collect(m_Instances));
+            EncodedDataset data = new EncodedDataset(generalisation, m_Instances);
+            CAIRAD.CoappearanceMatrix cam = new CAIRAD.CoappearanceMatrix(data);
+            int[] record = new int[data.numColumns()];
+            data.row(0, record);
+            int other = (record[0] + 1) % cam.domainSizes[0];
+            long index = (long) record[0] * cam.domainSizes[1] + record[1];
+            long cell = cam.counts.get(0, index);
+            long appearances = cam.valueAppearances[0][record[0]];
+            long otherAppearances = cam.valueAppearances[0][other];
+
+            DecayedCoappearanceMatrix decayed = new DecayedCoappearanceMatrix(cam, 2);
+            decayed.addRecord(record);
+            decayed.addRecord(record);
+
+            // Two records on, the first batch's counts have halved and the
+            // record's own counts are 1 + 1/sqrt(2)
+            double added = 1 + Math.sqrt(0.5);
+            assertEquals(cell / 2.0 + added, decayed.coappearances(0, index), 1e-3);
+            assertEquals(appearances / 2.0 + added, decayed.appearances(0, record[0]), 1e-3);
+            if (other != record[0]) {
+                assertEquals(otherAppearances / 2.0, decayed.appearances(0, other), 1e-3);
+            }
+
+            // Many half-lives on, after every block has been brought up to
+            // date and rebased, only the most recent records count:
+            // 1 / (1 - 2^-1/2) of them
+            for (int i = 0; i < 2000; i++) {
+                decayed.addRecord(record);
+            }
+            double steady = 1 / (1 - Math.sqrt(0.5));
+            assertEquals(steady, decayed.coappearances(0, index), 1e-9);
+            if (other != record[0]) {
+                assertEquals(0, decayed.appearances(0, other), 1e-9);
+            }
+
+            // The trained counts are left as they were
+            assertEquals(cell, cam.counts.get(0, index));
+            assertEquals(appearances, cam.valueAppearances[0][record[0]]);
+
+            CAIRAD filter = new CAIRAD();
+            filter.setHalfLife(10);
+            filter.setInputFormat(m_Instances);
+            Filter.useFilter(m_Instances, filter);
+            Instances second = Filter.useFilter(m_Instances, filter);
+            assertEquals(m_Instances.numInstances(), second.numInstances());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Filtering failed: " + e.toString());
+        }
+    }
+
+    public void testHalfLifePrecision() {
+        // A first batch of a billion records, with a half-life of ten
+        // thousand, decayed over forty thousand records: every count matches
+        // its exact value to within a billionth
+        int[] domainSizes = {4, 3};
+        CAIRAD.CoappearanceMatrix cam = new CAIRAD.CoappearanceMatrix(domainSizes);
+        long numRows = 1000000000L;
+        cam.counts.add(0, 0, numRows);
+        cam.valueAppearances[0][0] = numRows;
+        cam.valueAppearances[1][0] = numRows;
+        double halfLife = 10000;
+        DecayedCoappearanceMatrix decayed = new DecayedCoappearanceMatrix(cam, halfLife);
+
+        int[] first = {1, 2};
+        int[] second = {2, 2};
+        int numRecords = 40000;
+        double firstCount = 0;
+        double secondCount = 0;
+        for (int i = 0; i < numRecords; i++) {
+            firstCount *= Math.pow(2, -1 / halfLife);
+            secondCount *= Math.pow(2, -1 / halfLife);
+            if (i % 3 == 0) {
+                decayed.addRecord(second);
+                secondCount++;
+            } else {
+                decayed.addRecord(first);
+                firstCount++;
+            }
+        }
+
+        double trained = numRows * Math.pow(2, -numRecords / halfLife);
+        assertEquals(1, decayed.coappearances(0, 0) / trained, 1e-9);
+        assertEquals(1, decayed.coappearances(0, 1 * 3 + 2) / firstCount, 1e-9);
+        assertEquals(1, decayed.coappearances(0, 2 * 3 + 2) / secondCount, 1e-9);
+        assertEquals(1, decayed.appearances(1, 2) / (firstCount + secondCount), 1e-9);
+        assertEquals(0, decayed.coappearances(0, 3 * 3 + 2), 0);
+        assertEquals(numRows, cam.counts.get(0, 0));
+    }
+
+    /**
+     * Writes data to an ARFF file.
+     */
+    protected void save(Instances data, File file) throws Exception {
+        ArffSaver saver = new ArffSaver();
+        saver.setInstances(data);
+        saver.setFile(file);
+        saver.writeBatch();
+    }
+
+    /**
+     * Reads an ARFF file.
+     */
+    protected Instances load(File file) throws Exception {
+        ArffLoader loader = new ArffLoader();
+        loader.setFile(file);
+        return loader.getDataSet();
+    }
+
+    /**
+     * Filters the test data from a file with OutOfCoreCAIRAD and checks the
+     * result matches filtering it in memory.
+     */
+    protected void checkOutOfCore(boolean makeNoisyMissing) {
+        File input = null;
+        File expected = null;
+        File output = null;
+        try {
+            input = File.createTempFile("CAIRADTest", ".arff");
+            expected = File.createTempFile("CAIRADTest", ".arff");
+            output = File.createTempFile("CAIRADTest", ".arff");
+
+            save(m_Instances, input);
+            CAIRAD inMemory = new CAIRAD();
+            inMemory.setMakeNoisyMissing(makeNoisyMissing);
+            inMemory.setInputFormat(m_Instances);
+            save(Filter.useFilter(m_Instances, inMemory), expected);
+
+            CAIRAD filter = new CAIRAD();
+            filter.setMakeNoisyMissing(makeNoisyMissing);
+            OutOfCoreCAIRAD outOfCore = new OutOfCoreCAIRAD(filter);
+            outOfCore.filterFile(input, output);
+
+            assertEquals(m_Instances.numInstances(), outOfCore.getNumRecords());
+            assertEquals(load(expected).toString(), load(output).toString());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Filtering failed: " + e.toString());
+        } finally {
+            for (File file : new File[]{input, expected, output}) {
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    public void testOutOfCore() {
+        checkOutOfCore(true);
+        checkOutOfCore(false);
+
+        // Options that only apply in memory are rejected before anything is
+        // read
+        CAIRAD window = new CAIRAD();
+        window.setWindowSize(10);
+        try {
+            new OutOfCoreCAIRAD(window).filterFile(new File("missing.arff"),
+                    new File("missing.out.arff"));
+            fail("Filtered out of core with a window");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("window"));
+        }
+    }
+
+    public void testPartialModels() {
+        File[] files = new File[6];
+        try {
+            for (int i = 0; i < files.length; i++) {
+                files[i] = File.createTempFile("CAIRADTest", i < 3 ? ".arff" : ".model");
+            }
+            int half = m_Instances.numInstances() / 2;
+            save(m_Instances, files[0]);
+            save(new Instances(m_Instances, 0, half), files[1]);
+            save(new Instances(m_Instances, half, m_Instances.numInstances() - half), files[2]);
+
+            // Map each shard with the whole file's bins, then reduce in two
+            // steps, through a partial
+            CAIRAD options = new CAIRAD();
+            options.setCoappearanceThreshold(0.6);
+            PartialCAIRAD partial = new PartialCAIRAD(options);
+            partial.map(files[0], files[1], files[3]);
+            partial.map(files[0], files[2], files[4]);
+            partial.reduce(new File[]{files[3], files[4]}, files[5], true);
+            partial.reduce(new File[]{files[5]}, files[3], false);
+
+            CAIRAD whole = new CAIRAD();
+            whole.setCoappearanceThreshold(0.6);
+            whole.setInputFormat(m_Instances);
+            Instances expected = Filter.useFilter(m_Instances, whole);
+
+            CAIRAD reduced = new CAIRAD();
+            reduced.setLoadModelFile(files[3]);
+            reduced.setInputFormat(m_Instances);
+            Instances result = Filter.useFilter(m_Instances, reduced);
+            assertEquals(expected.toString(), result.toString());
+
+            // A partial isn't a model
+            try {
+                new CAIRAD().loadModel(files[5]);
+                fail("Loaded a partial model");
+            } catch (java.io.IOException e) {
+                // expected
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Mapping and reducing failed: " + e.toString());
+        } finally {
+            for (File file : files) {
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    public void testNoisyDataGenerator() {
+        File arff = null;
+        try {
+            NoisyDataGenerator generator = new NoisyDataGenerator();
+            generator.setNumRecords(2000);
+            NoisyAttributeMatrix truth = new NoisyAttributeMatrix(2000, generator.numAttributes());
+            Instances data = generator.generateInstances(truth);
+
+            // Streaming gives the same records as generating in memory
+            arff = File.createTempFile("CAIRADTest", ".arff");
+            assertEquals(truth.numNoisyValues(), generator.writeArff(arff, null));
+            assertEquals(data.toString(), load(arff).toString());
+            double rate = truth.numNoisyValues() / (2000.0 * generator.numAttributes());
+            assertEquals(generator.getNoiseRate(), rate, 0.01);
+
+            // Nearly all of the injected noise should be found
+            CAIRAD filter = new CAIRAD();
+            filter.setInputFormat(data);
+            Filter.useFilter(data, filter);
+            NoisyAttributeMatrix found = filter.getNoisyValues();
+            long truePositives = 0;
+            for (int i = 0; i < 2000; i++) {
+                for (int j = 0; j < generator.numAttributes(); j++) {
+                    if (truth.isNoisy(i, j) && found.isNoisy(i, j)) {
+                        truePositives++;
+                    }
+                }
+            }
+            assertTrue(truePositives > 0.9 * truth.numNoisyValues());
+
+            // Settings out of range are rejected when they are set
+            try {
+                generator.setNoiseRate(1.5);
+                fail("Accepted a noise rate above 1");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            try {
+                generator.setNumClusters(0);
+                fail("Accepted no clusters");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            try {
+                generator.setStructure(2);
+                fail("Accepted an unknown structure");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            try {
+                generator.setDistribution(-1);
+                fail("Accepted an unknown distribution");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Generating failed: " + e.toString());
+        } finally {
+            if (arff != null) {
+                arff.delete();
+            }
+        }
+    }
+
+    public void testSavedModel() {
+        File model = null;
+        try {
+            model = File.createTempFile("CAIRADTest", ".model");
+            CAIRAD trained = new CAIRAD();
+            trained.setCoappearanceThreshold(0.6);
+            trained.setSaveModelFile(model);
+            trained.setInputFormat(m_Instances);
+            Instances expected = Filter.useFilter(m_Instances, trained);
+
+            // Scoring the same data against the loaded model should give the
+            // same result, with tau taken from the model
+            CAIRAD loaded = new CAIRAD();
+            loaded.setLoadModelFile(model);
+            loaded.setInputFormat(m_Instances);
+            Instances result = Filter.useFilter(m_Instances, loaded);
+            assertEquals(0.6, loaded.getCoappearanceThreshold(), 0);
+            assertEquals(expected.numInstances(), result.numInstances());
+            for (int i = 0; i < expected.numInstances(); i++) {
+                assertEquals(expected.instance(i).toString(), result.instance(i).toString());
+            }
+            assertEquals(trained.getNoisyValues().numNoisyValues(),
+                    loaded.getNoisyValues().numNoisyValues());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Filtering failed: " + e.toString());
+        } finally {
+            if (model != null) {
+                model.delete();
+            }
+        }
+    }
+
+    public void testSavedStorages() {
+        File[] files = new File[3];
+        try {
+            for (int i = 0; i < files.length; i++) {
+                files[i] = File.createTempFile("CAIRADTest", ".model");
+            }
+
+            // Two attributes of 100000 codes: a hashed pair of 10^10 cells,
+            // 40GB written densely, is saved as a list of the cells counted
+            // into it, next to 1.6MB of value appearances
+            int[] domainSizes = {100000, 100000};
+            Generalisation generalisation = new Generalisation(new String[]{"a", "b"},
+                    new int[]{Generalisation.BINNED, Generalisation.BINNED},
+                    new double[2][], new String[2][], domainSizes, domainSizes);
+            CAIRAD.CoappearanceMatrix hybrid = new CAIRAD.CoappearanceMatrix(domainSizes,
+                    new CountStoreFactory(CAIRAD.STORAGE_HYBRID, 1000, 0, 0));
+            for (int i = 0; i < 1000; i++) {
+                hybrid.addRecord(new int[]{i * 97 % 100000, i});
+            }
+            ModelFile.savePartial(files[0], generalisation, hybrid);
+            assertTrue(files[0].length() < 2000000);
+            CountStore loaded = ModelFile.load(files[0]).getCAM().counts;
+            assertEquals(1000, loaded.numListedCells(0));
+            assertEquals(1, loaded.get(0, (5 * 97L) * 100000 + 5));
+            assertEquals(0, loaded.get(0, 5));
+
+            // A sketched pair is saved as its counters, so the loaded
+            // estimates are the same, and partials add up counter by counter
+            CAIRAD.CoappearanceMatrix sketch = new CAIRAD.CoappearanceMatrix(domainSizes,
+                    new CountStoreFactory(CAIRAD.STORAGE_SKETCH, 1000, 64, 2));
+            for (int i = 0; i < 1000; i++) {
+                sketch.addRecord(new int[]{i % 50, i % 70});
+            }
+            ModelFile.savePartial(files[1], generalisation, sketch);
+            assertTrue(files[1].length() < 2000000);
+            CountStore mapped = ModelFile.load(files[1]).getCAM().counts;
+            assertTrue(mapped.isSketched(0));
+            for (int i = 0; i < 1000; i++) {
+                long index = (long) (i % 50) * 100000 + i % 70;
+                assertEquals(sketch.counts.get(0, index), mapped.get(0, index));
+            }
+            PartialCAIRAD partial = new PartialCAIRAD(sketchOptions(64, 2));
+            partial.reduce(new File[]{files[1], files[1]}, files[2], true);
+            CountStore reduced = ModelFile.load(files[2]).getCAM().counts;
+            for (int i = 0; i < 1000; i++) {
+                long index = (long) (i % 50) * 100000 + i % 70;
+                assertEquals(2 * sketch.counts.get(0, index), reduced.get(0, index));
+            }
+
+            // Estimates can't be added up as exact counts
+            try {
+                new PartialCAIRAD(sketchOptions(128, 2)).reduce(new File[]{files[1]}, files[2], true);
+                fail("Reduced sketches into sketches of another width");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("sketch"));
+            }
+
+            // Hybrid and sketch models score as they did when trained
+            CAIRAD[] trained = {new CAIRAD(), sketchOptions(4, 2)};
+            trained[0].setStorage(new SelectedTag(CAIRAD.STORAGE_HYBRID, CAIRAD.TAGS_STORAGE));
+            for (CAIRAD filter : trained) {
+                filter.setSaveModelFile(files[0]);
+                filter.setInputFormat(m_Instances);
+                Instances expected = Filter.useFilter(m_Instances, filter);
+                CAIRAD scored = new CAIRAD();
+                scored.setLoadModelFile(files[0]);
+                scored.setInputFormat(m_Instances);
+                assertEquals(expected.toString(), Filter.useFilter(m_Instances, scored).toString());
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Saving failed: " + e.toString());
+        } finally {
+            for (File file : files) {
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a CAIRAD that holds its counts in sketches of a given size.
+     */
+    protected CAIRAD sketchOptions(int width, int depth) {
+        CAIRAD filter = new CAIRAD();
+        filter.setStorage(new SelectedTag(CAIRAD.STORAGE_SKETCH, CAIRAD.TAGS_STORAGE));
+        filter.setSketchWidth(width);
+        filter.setSketchDepth(depth);
+        return filter;
+    }
+
     @Override
     public void testIncremental() {
         Instances icopy = new Instances(m_Instances);